@@ -10,6 +10,14 @@ const char* g_CameraDeviceName = "gFocus Light Sensor";
 const char* g_versionProp = "Version";
 
 const char* g_PixelType_16bit = "16bit";
+const char* g_LaserProp = "Laser";
+const char* g_LaserOn = "On";
+const char* g_LaserOff = "Off";
+const char* g_TransferProp = "Transfer";
+const char* g_Transfer16bit = "16-bit";
+const char* g_TransferPacked = "Packed 12-bit";
+// Chunk-0 timeouts in a row before packed transfer is given up
+const int PACKED_FALLBACK_TIMEOUTS = 3;
 
 
 MODULE_API void InitializeModuleData()
@@ -118,6 +126,9 @@ bool gFocus::ReadExactBytes(const std::string& port, uint8_t* buffer, size_t exp
 */
 int gFocus::SnapImage()
 {
+	if (packed_)
+		return SnapPackedImage();
+
 	LogMessage("SnapImage...", false);
 	std::vector<uint8_t> lowerAll(128);
 	std::vector<uint8_t> upperAll(128);
@@ -201,6 +212,86 @@ int gFocus::SnapImage()
 	return DEVICE_OK;
 }
 
+/**
+* As SnapImage, with the frame sent packed (Protocol::GET_DATA_PACKED): 4
+* messages of 53 bytes instead of 8 of 37. The packed bytes are copied to the
+* image buffer as they are, one byte per "pixel", and unpacked by the plugin.
+* Firmware that does not answer the packed request for several frames in a
+* row falls back to 16-bit; the Transfer property then reads "16-bit".
+*/
+int gFocus::SnapPackedImage()
+{
+	LogMessage("SnapImage (packed)...", false);
+	const int MAX_RETRIES = 3;
+	const int chunkSize = Protocol::CHUNK_PACKED_BYTES + Protocol::MESSAGE_OVERHEAD;
+
+	std::vector<uint8_t> message = protocol_.createSetSettingsMessage(settings_);
+	int ret = WriteToComPort(port_.c_str(), message.data(), static_cast<unsigned int>(message.size()));
+	if (ret != DEVICE_OK) return ret;
+
+	message = protocol_.createGetDataPackedMessage();
+	ret = WriteToComPort(port_.c_str(), message.data(), static_cast<unsigned int>(message.size()));
+	if (ret != DEVICE_OK) return ret;
+
+	std::vector<uint8_t> chunkData(chunkSize);
+	uint8_t* pixels = img_.GetPixelsRW();
+
+	for (int chunk = 0; chunk < Protocol::CHUNKS; ++chunk) {
+		bool success = false;
+		for (int retry = 0; retry < MAX_RETRIES; ++retry) {
+			if (!ReadExactBytes(port_, chunkData.data(), chunkSize, 200)) {  // 200 ms timeout
+				LogMessage("Timeout waiting for packed chunk " + std::to_string(chunk) + ".");
+				if (chunk == 0) {
+					PurgeComPort(port_.c_str());
+					// One USB hiccup is no reason to drop the packed mode; only
+					// firmware that never answers the request is
+					if (++packedTimeouts_ >= PACKED_FALLBACK_TIMEOUTS) {
+						LogMessage("Firmware does not send packed frames, switching to 16-bit transfer.");
+						SetPacked(false);
+						OnPropertyChanged(g_TransferProp, g_Transfer16bit);
+					}
+				}
+				return DEVICE_ERR;
+			}
+
+			if (!protocol_.validateDataMessage(chunkData, Protocol::CommandType::GET_DATA_PACKED)) {
+				LogMessage("Packed chunk " + std::to_string(chunk) + " invalid, retry " + std::to_string(retry));
+				uint8_t nack = 0x55;
+				WriteToComPort(port_.c_str(), &nack, 1);
+				continue;
+			}
+
+			uint8_t ack = 0xAA;
+			WriteToComPort(port_.c_str(), &ack, 1);
+			std::copy(chunkData.begin() + 3, chunkData.end() - 2, pixels + chunk * Protocol::CHUNK_PACKED_BYTES);
+			success = true;
+			break;
+		}
+
+		if (!success) {
+			LogMessage("Failed to get valid packed chunk " + std::to_string(chunk) + " after retries.");
+			return DEVICE_ERR;
+		}
+	}
+
+	packedTimeouts_ = 0;
+	LogMessage("SnapImage done.");
+	return DEVICE_OK;
+}
+
+/**
+* Packed frames are 1.5 bytes per pixel, exposed as a row of 8-bit values.
+*/
+void gFocus::SetPacked(bool packed)
+{
+	packed_ = packed;
+	packedTimeouts_ = 0;
+	if (packed)
+		img_.Resize(imageWidth_ * 3 / 2, imageHeight_, 1);
+	else
+		img_.Resize(imageWidth_, imageHeight_, 2);
+}
+
 
 /**
 * Returns pixel data.
@@ -410,6 +501,30 @@ int gFocus::Initialize()
 	if (nRet != DEVICE_OK)
 		return nRet;
 
+	// Laser, switched between frames by the plugin to subtract ambient light
+	pAct = new CPropertyAction(this, &gFocus::OnLaser);
+	nRet = CreateStringProperty(g_LaserProp, g_LaserOn, false, pAct);
+	assert(nRet == DEVICE_OK);
+
+	std::vector<std::string> laserValues;
+	laserValues.push_back(g_LaserOn);
+	laserValues.push_back(g_LaserOff);
+	nRet = SetAllowedValues(g_LaserProp, laserValues);
+	if (nRet != DEVICE_OK)
+		return nRet;
+
+	// Frame transfer format, see Protocol::GET_DATA_PACKED
+	pAct = new CPropertyAction(this, &gFocus::OnTransfer);
+	nRet = CreateStringProperty(g_TransferProp, g_Transfer16bit, false, pAct);
+	assert(nRet == DEVICE_OK);
+
+	std::vector<std::string> transferValues;
+	transferValues.push_back(g_Transfer16bit);
+	transferValues.push_back(g_TransferPacked);
+	nRet = SetAllowedValues(g_TransferProp, transferValues);
+	if (nRet != DEVICE_OK)
+		return nRet;
+
 	nRet = UpdateStatus();
 	if (nRet != DEVICE_OK)
 		return nRet;
@@ -503,7 +618,8 @@ int gFocus::OnPixelType(MM::PropertyBase* pProp, MM::ActionType eAct)
 
 		if (pixelType.compare(g_PixelType_16bit) == 0)
 		{
-			img_.Resize(img_.Width(), img_.Height(), 2);
+			// Keeps the packed layout while packed transfer is on
+			SetPacked(packed_);
 			bitDepth_ = 16;
 			ret = DEVICE_OK;
 		}
@@ -513,7 +629,7 @@ int gFocus::OnPixelType(MM::PropertyBase* pProp, MM::ActionType eAct)
 	{
 		long bytesPerPixel = GetImageBytesPerPixel();
 
-		if (bytesPerPixel == 2)
+		if (bytesPerPixel == 2 || packed_)
 		{
 			pProp->Set(g_PixelType_16bit);
 		}
@@ -599,7 +715,11 @@ int gFocus::OnBitDepth(MM::PropertyBase* pProp, MM::ActionType eAct)
 			bytesPerPixel = 2;
 		}
 
-		img_.Resize(img_.Width(), img_.Height(), bytesPerPixel);
+		// A packed buffer is one byte per packed byte, whatever the bit depth
+		if (packed_)
+			SetPacked(true);
+		else
+			img_.Resize(imageWidth_, imageHeight_, bytesPerPixel);
 
 	} break;
 	case MM::BeforeGet:
@@ -616,6 +736,46 @@ int gFocus::OnBitDepth(MM::PropertyBase* pProp, MM::ActionType eAct)
 
 
 
+int gFocus::OnLaser(MM::PropertyBase* pProp, MM::ActionType eAct)
+{
+	if (eAct == MM::BeforeGet)
+	{
+		pProp->Set(laserOn_ ? g_LaserOn : g_LaserOff);
+	}
+	else if (eAct == MM::AfterSet)
+	{
+		std::string value;
+		pProp->Get(value);
+		bool on = value.compare(g_LaserOn) == 0;
+
+		// Takes effect before the next SnapImage, which is sent on the same port
+		std::vector<uint8_t> message = protocol_.createSetLaserMessage(on);
+		int ret = WriteToComPort(port_.c_str(), message.data(), static_cast<unsigned int>(message.size()));
+		if (ret != DEVICE_OK)
+			return ret;
+		laserOn_ = on;
+	}
+	return DEVICE_OK;
+}
+
+int gFocus::OnTransfer(MM::PropertyBase* pProp, MM::ActionType eAct)
+{
+	if (eAct == MM::BeforeGet)
+	{
+		pProp->Set(packed_ ? g_TransferPacked : g_Transfer16bit);
+	}
+	else if (eAct == MM::AfterSet)
+	{
+		if (IsCapturing())
+			return DEVICE_CAMERA_BUSY_ACQUIRING;
+
+		std::string value;
+		pProp->Get(value);
+		SetPacked(value.compare(g_TransferPacked) == 0);
+	}
+	return DEVICE_OK;
+}
+
 int gFocus::OnPort(MM::PropertyBase* pProp, MM::ActionType pAct)
 {
 	if (pAct == MM::BeforeGet)
@@ -46,6 +46,8 @@ public:
 	int OnBinning(MM::PropertyBase* pProp, MM::ActionType eAct);
 	int OnPixelType(MM::PropertyBase* pProp, MM::ActionType eAct);
 	int OnBitDepth(MM::PropertyBase* pProp, MM::ActionType eAct);
+	int OnLaser(MM::PropertyBase* pProp, MM::ActionType eAct);
+	int OnTransfer(MM::PropertyBase* pProp, MM::ActionType eAct);
 
 	int Shutdown();
 	void GetName(char* name) const;
@@ -77,6 +79,8 @@ public:
 
 private:
 	int GetControllerVersion(int& version);
+	int SnapPackedImage();
+	void SetPacked(bool packed);
 	bool initialized_;
 	Protocol::SetSettingsCommand settings_;
 	ImgBuffer img_;
@@ -85,6 +89,10 @@ private:
 	unsigned imageWidth_ = 128;
 	unsigned imageHeight_ = 1;
 	int version_;
+	bool laserOn_ = true;
+	// Frames passed on still packed, see Protocol::GET_DATA_PACKED
+	bool packed_ = false;
+	int packedTimeouts_ = 0;
 	Protocol protocol_;
 	std::string port_;
 	bool portAvailable_;
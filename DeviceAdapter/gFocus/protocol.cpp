@@ -26,6 +26,11 @@ std::vector<uint8_t> Protocol::createGetDataMessage()
     return createMessage(CommandType::GET_DATA, {});
 }
 
+std::vector<uint8_t> Protocol::createGetDataPackedMessage()
+{
+    return createMessage(CommandType::GET_DATA_PACKED, {});
+}
+
 std::vector<uint8_t> Protocol::createSetSettingsMessage(const SetSettingsCommand& command)
 {
     std::vector<uint8_t> payload;
@@ -38,6 +43,13 @@ std::vector<uint8_t> Protocol::createSetSettingsMessage(const SetSettingsCommand
     return createMessage(CommandType::SET_SETTINGS, payload);
 }
 
+std::vector<uint8_t> Protocol::createSetLaserMessage(bool on)
+{
+    std::vector<uint8_t> payload;
+    payload.push_back(on ? 1 : 0);
+    return createMessage(CommandType::SET_LASER, payload);
+}
+
 bool Protocol::validateCRC(const std::vector<uint8_t>& message)
 {
     if (message.size() < 5) return false;
@@ -139,7 +151,7 @@ bool Protocol::validateDeviceMessage(const std::vector<uint8_t>& message) {
     return false;
 }
 
-bool Protocol::validateDataMessage(const std::vector<uint8_t>& message) {
+bool Protocol::validateDataMessage(const std::vector<uint8_t>& message, CommandType expected) {
     if (message.size() < 32) {
         error = "Message too short.";
         return false;
@@ -204,7 +216,7 @@ bool Protocol::validateDataMessage(const std::vector<uint8_t>& message) {
     if (validateCRC(message)) {
         uint8_t commandByte = coreMessage[0];
 
-        if (commandByte == static_cast<uint8_t>(CommandType::GET_DATA)) {
+        if (commandByte == static_cast<uint8_t>(expected)) {
             return true;
         }
         else {
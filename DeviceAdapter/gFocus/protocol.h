@@ -16,9 +16,24 @@ public:
     enum class CommandType : uint8_t {
         GET_DEVICE = 0x01,
         SET_SETTINGS = 0x02,
-        GET_DATA = 0x03
+        GET_DATA = 0x03,
+        SET_LASER = 0x04,
+        // As GET_DATA, but 12-bit pixels packed two per three bytes
+        GET_DATA_PACKED = 0x05
     };
 
+    // A frame is sent in 4 chunks of 32 pixels. GET_DATA sends each chunk as
+    // a message of the 32 low bytes followed by one of the 32 high bytes.
+    // GET_DATA_PACKED sends one message of 48 bytes per chunk instead, each
+    // pair of pixels p0, p1 as the little-endian 24-bit value p0 | p1 << 12:
+    //   b0 = p0 & 0xFF, b1 = (p0 >> 8) | (p1 & 0x0F) << 4, b2 = p1 >> 4
+    // Chunks are acknowledged (0xAA) or refused (0x55) the same way.
+    static constexpr int CHUNKS = 4;
+    static constexpr int CHUNK_PIXELS = 32;
+    static constexpr int CHUNK_PACKED_BYTES = CHUNK_PIXELS * 3 / 2;
+    // Start flag, command, length ... CRC, stop flag
+    static constexpr int MESSAGE_OVERHEAD = 5;
+
     // Struct for "set_settings" command
     struct SetSettingsCommand {
         uint8_t avarage;   // Avarage
@@ -30,13 +45,18 @@ public:
 
     std::vector<uint8_t> createGetDataMessage();
 
+    std::vector<uint8_t> createGetDataPackedMessage();
+
     std::vector<uint8_t> createSetSettingsMessage(const SetSettingsCommand& command);
 
+    // Switches the IR laser, for on/off (lock-in) acquisition
+    std::vector<uint8_t> createSetLaserMessage(bool on);
+
     bool validateCRC(const std::vector<uint8_t>& message);
 
     bool validateDeviceMessage(const std::vector<uint8_t>& message);
 
-    bool validateDataMessage(const std::vector<uint8_t>& message);
+    bool validateDataMessage(const std::vector<uint8_t>& message, CommandType expected = CommandType::GET_DATA);
 
     std::string getError();
 
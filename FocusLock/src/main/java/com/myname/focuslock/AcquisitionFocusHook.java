@@ -0,0 +1,152 @@
+package com.myname.focuslock;
+
+import com.google.common.eventbus.Subscribe;
+
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.micromanager.Studio;
+import org.micromanager.acquisition.AcquisitionEndedEvent;
+import org.micromanager.acquisition.AcquisitionStartedEvent;
+import org.micromanager.acquisition.SequenceSettings;
+
+/**
+ * Couples the focus lock to Micro-Manager's multi-dimensional acquisition.
+ * While an acquisition runs, the free-running lock loop is paused so it can
+ * never move the stage during an exposure or inside a z-stack. Instead, a
+ * runnable attached to the first channel and slice of every time point and
+ * position settles the focus until the error is within tolerance.
+ *
+ * For relative z-stacks the settle target is shifted by the offset of the
+ * first slice, so the stack keeps its shape. Absolute z-stacks are left
+ * alone, since there the acquisition owns the Z positions.
+ */
+public class AcquisitionFocusHook {
+	/**
+	 * The runnable attached to the acquisitions of one Studio. Runnables
+	 * cannot be detached, so there is one per Studio, attached once, which
+	 * forwards to the hooks installed at the time and keeps no engine
+	 * reachable after they are uninstalled.
+	 */
+	private static final class Dispatcher implements Runnable {
+		final List<AcquisitionFocusHook> hooks = new CopyOnWriteArrayList<>();
+
+		@Override
+		public void run() {
+			for (AcquisitionFocusHook hook : hooks) {
+				hook.beforeTimePoint();
+			}
+		}
+	}
+
+	private static final Map<Studio, Dispatcher> dispatchers = new WeakHashMap<>();
+
+	private final Studio studio;
+	private final FocusLockEngine engine;
+
+	private volatile boolean installed = false;
+	private Dispatcher dispatcher;
+	private volatile boolean pausedByAcquisition = false;
+	private volatile boolean settleEnabled = true;
+	private volatile double sliceOffsetUm = 0;
+
+	private volatile double toleranceUm = 0.05;
+	private volatile long timeoutMs = 2000;
+
+	public AcquisitionFocusHook(Studio studio, FocusLockEngine engine) {
+		this.studio = studio;
+		this.engine = engine;
+	}
+
+	public synchronized void install() {
+		if (installed) {
+			return;
+		}
+		dispatcher = dispatcher(studio);
+		studio.events().registerForEvents(this);
+		dispatcher.hooks.add(this);
+		installed = true;
+	}
+
+	private static synchronized Dispatcher dispatcher(Studio studio) {
+		Dispatcher dispatcher = dispatchers.get(studio);
+		if (dispatcher == null) {
+			dispatcher = new Dispatcher();
+			studio.acquisitions().attachRunnable(-1, -1, 0, 0, dispatcher);
+			dispatchers.put(studio, dispatcher);
+		}
+		return dispatcher;
+	}
+
+	public synchronized void uninstall() {
+		if (!installed) {
+			return;
+		}
+		installed = false;
+		dispatcher.hooks.remove(this);
+		studio.events().unregisterForEvents(this);
+		if (pausedByAcquisition) {
+			pausedByAcquisition = false;
+			engine.resume();
+		}
+	}
+
+	public void setTolerance(double toleranceUm) {
+		this.toleranceUm = toleranceUm;
+	}
+
+	public void setTimeout(long timeoutMs) {
+		this.timeoutMs = timeoutMs;
+	}
+
+	@Subscribe
+	public void onAcquisitionStarted(AcquisitionStartedEvent event) {
+		if (!installed || engine.getState() != FocusLockEngine.State.LOCKED) {
+			return;
+		}
+
+		SequenceSettings settings = studio.acquisitions().getAcquisitionSettings();
+		sliceOffsetUm = 0;
+		settleEnabled = true;
+		if (settings != null && settings.useSlices()) {
+			if (settings.relativeZSlice()) {
+				if (settings.slices() != null && !settings.slices().isEmpty()) {
+					sliceOffsetUm = settings.slices().get(0);
+				}
+			} else {
+				settleEnabled = false;
+			}
+		}
+
+		engine.pause();
+		pausedByAcquisition = true;
+		studio.logs().logMessage("Focus lock paused for acquisition" + (settleEnabled
+				? String.format(", settling to %.3f µm before each time point", sliceOffsetUm)
+				: " (absolute z-stack, no settling)"));
+	}
+
+	@Subscribe
+	public void onAcquisitionEnded(AcquisitionEndedEvent event) {
+		if (pausedByAcquisition) {
+			pausedByAcquisition = false;
+			engine.resume();
+			studio.logs().logMessage("Focus lock resumed after acquisition");
+		}
+	}
+
+	private void beforeTimePoint() {
+		if (!installed || !pausedByAcquisition || !settleEnabled) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		boolean settled = engine.settle(toleranceUm, timeoutMs, sliceOffsetUm);
+		long elapsed = System.currentTimeMillis() - start;
+		if (settled) {
+			studio.logs().logMessage("Focus settled in " + elapsed + " ms");
+		} else {
+			studio.logs().logMessage("Focus did not settle within " + timeoutMs + " ms, continuing acquisition");
+		}
+	}
+}
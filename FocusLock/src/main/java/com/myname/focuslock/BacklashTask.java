@@ -0,0 +1,89 @@
+package com.myname.focuslock;
+
+import org.micromanager.Studio;
+
+import mmcorej.CMMCore;
+
+/**
+ * Measures the lost motion of the focus drive over a range of positions
+ * with the focus sensor. Each position is approached once from below and
+ * once from above; the beam shift between the two approaches is the
+ * backlash there. Needs a calibration to convert the shift to µm.
+ */
+public class BacklashTask {
+	// Overshoot before each approach, larger than any expected backlash
+	private static final double approachUm = 0.5;
+	private static final long settleMs = 200;
+
+	private final Studio studio;
+	private final CMMCore core;
+	private final CameraPollingTask camera;
+	private final String stage;
+
+	public BacklashTask(Studio studio, CameraPollingTask camera, String stage) {
+		this.studio = studio;
+		this.core = studio.core();
+		this.camera = camera;
+		this.stage = stage;
+	}
+
+	/**
+	 * Measures {@code points} positions spread over {@code rangeUm} around the
+	 * current one and returns [positions, backlash] in µm, or null when the
+	 * stage or the sensor failed. The stage is returned to where it started.
+	 * {@code table} may be null to convert with {@code slope} alone.
+	 */
+	public double[][] measure(double rangeUm, int points, double slope, FocusLookupTable table) {
+		double startZ;
+		try {
+			startZ = core.getPosition(stage);
+		} catch (Exception e) {
+			studio.logs().showError("Failed to get initial stage position: " + e.getMessage());
+			return null;
+		}
+
+		double[] positions = new double[points];
+		double[] backlash = new double[points];
+		try {
+			for (int i = 0; i < points; i++) {
+				double z = points == 1 ? startZ : startZ - rangeUm / 2 + rangeUm * i / (points - 1);
+				double fromBelow = approach(z - approachUm, z);
+				double fromAbove = approach(z + approachUm, z);
+				if (Double.isNaN(fromBelow) || Double.isNaN(fromAbove)) {
+					studio.logs().showError("Backlash measurement failed: no beam at Z=" + z);
+					return null;
+				}
+				positions[i] = z;
+				backlash[i] = table != null
+						? table.toUm(fromBelow) - table.toUm(fromAbove)
+						: (fromBelow - fromAbove) * slope;
+			}
+		} catch (Exception e) {
+			studio.logs().showError("Stage movement failed: " + e.getMessage());
+			return null;
+		} finally {
+			try {
+				core.setPosition(stage, startZ);
+			} catch (Exception e) {
+				studio.logs().showError("Returning to original Z position failed: " + e.getMessage());
+			}
+		}
+		return new double[][] {positions, backlash};
+	}
+
+	/**
+	 * Moves to {@code from}, then to {@code to}, and returns the beam mean.
+	 */
+	private double approach(double from, double to) throws Exception {
+		core.setPosition(stage, from);
+		core.waitForDevice(stage);
+		core.setPosition(stage, to);
+		core.waitForDevice(stage);
+		Thread.sleep(settleMs);
+		short[] data = camera.snapOnce();
+		if (data == null) {
+			return Double.NaN;
+		}
+		return new GaussianFitter(data).fit()[1];
+	}
+}
@@ -0,0 +1,167 @@
+package com.myname.focuslock;
+
+/**
+ * Tells whether a frame still shows the reflected beam well enough to lock
+ * on. When drift pushes the spot off the array the Gaussian fit does not
+ * fail cleanly: it fits the tail at the edge, or noise. The detector looks
+ * at what the fit cannot see from its own output:
+ *
+ * - amplitude against the amplitude at the reference;
+ * - width against the width at the reference;
+ * - the fraction of the signal in the outermost pixels, and on which side.
+ *
+ * The frame statistics take one pass and no fit, so the recapture search
+ * can also use them on every probe.
+ */
+public class BeamDetector {
+	public enum Verdict {
+		OK,
+		// Too little signal anywhere: the beam is off the array or blocked
+		WEAK,
+		// Beam leaving past the first or the last pixel
+		EDGE_LOW,
+		EDGE_HIGH,
+		// Amplitude present but far too narrow or wide for the beam
+		MISSHAPEN
+	}
+
+	private volatile double minAmplitudeFraction = 0.3;
+	private volatile double maxEdgeFraction = 0.2;
+	private volatile double maxSigmaRatio = 3;
+	private volatile int edgePixels = 4;
+
+	private volatile double referenceAmplitude = Double.NaN;
+	private volatile double referenceSigma = Double.NaN;
+
+	/**
+	 * Amplitude and sigma of the beam when it was locked, from the fit of
+	 * the reference frame.
+	 */
+	public void setReference(double amplitude, double sigma) {
+		referenceAmplitude = amplitude;
+		referenceSigma = sigma;
+	}
+
+	/**
+	 * Checks a frame from its statistics only.
+	 */
+	public Verdict check(double[] frame) {
+		int n = frame.length;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		int peak = 0;
+		for (int i = 0; i < n; i++) {
+			double v = frame[i];
+			if (v < min) min = v;
+			if (v > max) {
+				max = v;
+				peak = i;
+			}
+		}
+		double amplitude = max - min;
+		double required = Double.isNaN(referenceAmplitude) ? 0 : minAmplitudeFraction * referenceAmplitude;
+		if (!(amplitude > 0) || amplitude < required) {
+			return Verdict.WEAK;
+		}
+
+		int edge = Math.min(edgePixels, n / 4);
+		double total = 0;
+		double low = 0;
+		double high = 0;
+		for (int i = 0; i < n; i++) {
+			double v = frame[i] - min;
+			total += v;
+			if (i < edge) {
+				low += v;
+			} else if (i >= n - edge) {
+				high += v;
+			}
+		}
+		if (peak < edge || low > maxEdgeFraction * total) {
+			return low >= high ? Verdict.EDGE_LOW : Verdict.EDGE_HIGH;
+		}
+		if (peak >= n - edge || high > maxEdgeFraction * total) {
+			return Verdict.EDGE_HIGH;
+		}
+		return Verdict.OK;
+	}
+
+	/**
+	 * Checks a frame together with its fit [amplitude, mean, sigma].
+	 */
+	public Verdict check(double[] frame, double[] fit) {
+		Verdict verdict = check(frame);
+		if (verdict != Verdict.OK) {
+			return verdict;
+		}
+		double amplitude = fit[0];
+		double mean = fit[1];
+		double sigma = fit[2];
+		if (Double.isNaN(mean) || Double.isNaN(amplitude) || Double.isNaN(sigma)) {
+			return Verdict.MISSHAPEN;
+		}
+		if (mean < 0) {
+			return Verdict.EDGE_LOW;
+		}
+		if (mean > frame.length - 1) {
+			return Verdict.EDGE_HIGH;
+		}
+		if (!Double.isNaN(referenceAmplitude) && amplitude < minAmplitudeFraction * referenceAmplitude) {
+			return Verdict.WEAK;
+		}
+		if (!Double.isNaN(referenceSigma)
+				&& (sigma > maxSigmaRatio * referenceSigma || sigma < referenceSigma / maxSigmaRatio)) {
+			return Verdict.MISSHAPEN;
+		}
+		return Verdict.OK;
+	}
+
+	/**
+	 * Centroid of the pixels above half of the peak, in pixels, or NaN for a
+	 * flat frame. A fraction of the cost of a fit and good enough to steer
+	 * the search.
+	 */
+	public static double centroid(double[] frame) {
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (double v : frame) {
+			if (v < min) min = v;
+			if (v > max) max = v;
+		}
+		double half = (min + max) / 2;
+		double sum = 0;
+		double sumX = 0;
+		for (int i = 0; i < frame.length; i++) {
+			double v = frame[i] - half;
+			if (v > 0) {
+				sum += v;
+				sumX += v * i;
+			}
+		}
+		return sum > 0 ? sumX / sum : Double.NaN;
+	}
+
+	/**
+	 * Smallest amplitude, as a fraction of the reference, that still counts
+	 * as the beam.
+	 */
+	public void setMinAmplitudeFraction(double fraction) {
+		this.minAmplitudeFraction = fraction;
+	}
+
+	/**
+	 * Largest fraction of the signal allowed in the {@code pixels} outermost
+	 * pixels on either side.
+	 */
+	public void setEdge(int pixels, double maxFraction) {
+		this.edgePixels = pixels;
+		this.maxEdgeFraction = maxFraction;
+	}
+
+	/**
+	 * Largest factor by which the width may differ from the reference.
+	 */
+	public void setMaxSigmaRatio(double ratio) {
+		this.maxSigmaRatio = ratio;
+	}
+}
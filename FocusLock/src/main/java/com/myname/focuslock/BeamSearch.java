@@ -0,0 +1,143 @@
+package com.myname.focuslock;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+import org.micromanager.Studio;
+import mmcorej.CMMCore;
+
+/**
+ * Brings the beam back onto the sensor after it was lost. The stage steps
+ * outward from where the beam was lost, alternately above and below, by
+ * half the Z range the array covers, so the beam cannot slip between two
+ * probes. When the beam left past an edge the search starts in the
+ * direction that brings it back. Each probe is one unfiltered frame checked
+ * by the {@link BeamDetector} statistics, without a fit.
+ *
+ * The search is bounded in distance and in time. When it fails the stage
+ * returns to where it started.
+ */
+class BeamSearch {
+	private final Studio studio;
+	private final CMMCore core;
+	private final String stage;
+	private final CameraPollingTask camera;
+	private final ExecutorService io;
+	private final BeamDetector detector;
+
+	private volatile double maxRangeUm = 10;
+	private volatile long timeoutMs = 1000;
+	private volatile long settleMs = 0;
+
+	BeamSearch(Studio studio, CMMCore core, String stage, CameraPollingTask camera, ExecutorService io,
+			BeamDetector detector) {
+		this.studio = studio;
+		this.core = core;
+		this.stage = stage;
+		this.camera = camera;
+		this.io = io;
+		this.detector = detector;
+	}
+
+	/**
+	 * Searches from {@code startZ}. {@code slope} is the calibration in µm
+	 * per pixel and {@code lostAs} how the beam was last seen. Returns true
+	 * with the stage where the beam is back on the array.
+	 */
+	boolean search(double startZ, double slope, BeamDetector.Verdict lostAs) {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		int pixels = camera.getConfig().getPixels();
+		double stepUm = Math.max(Math.abs(slope) * pixels / 2, 0.1);
+		int steps = Math.max(1, (int) Math.floor(maxRangeUm / stepUm));
+
+		// A beam below the first pixel needs a higher mean: dz = -slope * dmean
+		int first = 1;
+		if (lostAs == BeamDetector.Verdict.EDGE_LOW) {
+			first = slope > 0 ? -1 : 1;
+		} else if (lostAs == BeamDetector.Verdict.EDGE_HIGH) {
+			first = slope > 0 ? 1 : -1;
+		}
+
+		int probes = 0;
+		try {
+			for (int k = 1; k <= steps; k++) {
+				for (int side : new int[] {first, -first}) {
+					if (System.currentTimeMillis() > deadline) {
+						return giveUp(startZ, probes, "timed out");
+					}
+					probes++;
+					double z = startZ + side * k * stepUm;
+					moveTo(z);
+					short[] data = camera.snapOnce();
+					if (data == null) {
+						return giveUp(startZ, probes, "light sensor unavailable");
+					}
+					double[] frame = new double[data.length];
+					for (int i = 0; i < data.length; i++) {
+						frame[i] = data[i] & 0xFFFF;
+					}
+					if (detector.check(frame) == BeamDetector.Verdict.OK) {
+						studio.logs().logMessage(String.format(
+								"Focus lock recaptured the beam at %+.2f um after %d probes (centroid %.1f px)",
+								z - startZ, probes, BeamDetector.centroid(frame)));
+						return true;
+					}
+				}
+			}
+		} catch (CompletionException e) {
+			studio.logs().showError("Stage movement failed: " + e.getCause().getMessage());
+			return giveUp(startZ, probes, "stage movement failed");
+		}
+		return giveUp(startZ, probes, "not found within " + maxRangeUm + " um");
+	}
+
+	private boolean giveUp(double startZ, int probes, String reason) {
+		studio.logs().logMessage("Focus lock beam search failed after " + probes + " probes: " + reason);
+		try {
+			moveTo(startZ);
+		} catch (CompletionException e) {
+			studio.logs().showError("Returning to original Z position failed: " + e.getCause().getMessage());
+		}
+		return false;
+	}
+
+	private void moveTo(double z) {
+		CompletableFuture.runAsync(() -> {
+			try {
+				core.setPosition(stage, z);
+				core.waitForDevice(stage);
+				if (settleMs > 0) {
+					Thread.sleep(settleMs);
+				}
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}, io).join();
+	}
+
+	/**
+	 * Farthest the search goes from where the beam was lost, each way.
+	 */
+	void setMaxRange(double um) {
+		this.maxRangeUm = um;
+	}
+
+	double getMaxRange() {
+		return maxRangeUm;
+	}
+
+	/**
+	 * Time after which the search gives up.
+	 */
+	void setTimeout(long ms) {
+		this.timeoutMs = ms;
+	}
+
+	/**
+	 * Extra wait after each move, for stages that report arrival early.
+	 */
+	void setSettle(long ms) {
+		this.settleMs = ms;
+	}
+}
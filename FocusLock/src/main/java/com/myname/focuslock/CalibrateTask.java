@@ -1,7 +1,9 @@
 package com.myname.focuslock;
 
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import org.micromanager.Studio;
 
@@ -11,26 +13,39 @@ public class CalibrateTask {
     private Studio studio;
     private CMMCore core;
     private CameraPollingTask camera;
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> nextStep;
+    private volatile boolean cancelled = false;
     private BiConsumer<Double, Double> onCalibrationFinished;
 
     private int currentStep = 0;
     private double startZ = 0;
+    // The slope is fitted over this range, where the sensor is linear
     private double zLowerBound =  -1.0;
     private double zUpperBound = 1.0;
-    private final int numSteps = 5;
-    private final double stepSizeUm = (zUpperBound - zLowerBound) / numSteps;
+    private final int numSteps = 21;
+    private final double stepSizeUm = (zUpperBound - zLowerBound) / (numSteps - 1);
+    // Beyond it the sweep continues in coarser steps, for the lookup table to
+    // follow the curvature towards the sensor edges. Points where the beam
+    // has left the sensor are dropped.
+    private double lutRangeUm = 3.0;
+    private final double lutStepUm = 0.25;
+    private final long settleMs = 200;
     
-    private final double[] positionsUm = new double[numSteps];
-    private final double[] pixelMeans = new double[numSteps];
+    // Stage offsets from the start position, in sweep order
+    private final double[] targetsUm = sweepTargets();
+    private final double[] positionsUm = new double[targetsUm.length];
+    private final double[] pixelMeans = new double[targetsUm.length];
     
+    private volatile FocusLookupTable lookupTable;
     private String stage;
     
     
-    public CalibrateTask(Studio studio, CameraPollingTask camera) {
+    public CalibrateTask(Studio studio, CameraPollingTask camera, ScheduledExecutorService scheduler) {
     	this.studio = studio;
     	this.core = studio.core();
     	this.camera = camera;
+    	this.scheduler = scheduler;
     	
     	try {
     		this.stage = core.getFocusDevice();
@@ -39,35 +54,95 @@ public class CalibrateTask {
     	}
     }
     
+    /**
+     * Coarse steps from -lutRangeUm up to the slope range, the fine slope
+     * steps, then coarse steps up to +lutRangeUm, all approached upwards.
+     */
+    private double[] sweepTargets() {
+    	int below = Math.max(0, (int) Math.floor((zLowerBound + lutRangeUm) / lutStepUm + 1e-9));
+    	int above = Math.max(0, (int) Math.floor((lutRangeUm - zUpperBound) / lutStepUm + 1e-9));
+    	double[] targets = new double[below + numSteps + above];
+    	int t = 0;
+    	for (int i = below; i >= 1; i--) {
+    		targets[t++] = zLowerBound - i * lutStepUm;
+    	}
+    	for (int i = 0; i < numSteps; i++) {
+    		targets[t++] = zLowerBound + i * stepSizeUm;
+    	}
+    	for (int i = 1; i <= above; i++) {
+    		targets[t++] = zUpperBound + i * lutStepUm;
+    	}
+    	return targets;
+    }
+    
     public void setOnCalibrationFinished(BiConsumer<Double, Double> callback) {
         this.onCalibrationFinished = callback;
     }
     
+    /**
+     * Table from the last completed sweep, or null when it had too few
+     * valid points.
+     */
+    public FocusLookupTable getLookupTable() {
+    	return lookupTable;
+    }
+    
     public void startCalibration() {
     	try {
     		startZ = core.getPosition(stage);
-    		core.setPosition(stage, startZ + zLowerBound); // start at -1 um of the reference
+    		core.setPosition(stage, startZ + targetsUm[0]); // start at the low end of the sweep
     	} catch (Exception e) {
     		studio.logs().showError("Failed to get initial stage position: " + e.getMessage());
+    		if (onCalibrationFinished != null) {
+    			onCalibrationFinished.accept(Double.NaN, Double.NaN);
+    		}
     		return;
     	}
     	
-    	scheduler.execute(this::stepCalibration);
+    	scheduleStep(0);
+    }
+    
+    /**
+     * Stops the sweep after the current step, returning the stage to where
+     * it started and reporting a failed calibration.
+     */
+    public synchronized void cancel() {
+    	if (cancelled) {
+    		return;
+    	}
+    	cancelled = true;
+    	if (nextStep != null && nextStep.cancel(false)) {
+    		failCalibration();
+    	}
+    }
+    
+    private synchronized void scheduleStep(long delayMs) {
+    	if (cancelled) {
+    		failCalibration();
+    		return;
+    	}
+    	try {
+    		nextStep = scheduler.schedule(this::stepCalibration, delayMs, TimeUnit.MILLISECONDS);
+    	} catch (RejectedExecutionException e) {
+    		failCalibration();
+    	}
     }
     
     private void stepCalibration() {
-    	if (currentStep >= numSteps) {
+    	if (currentStep >= targetsUm.length) {
     		finishCalibration();
     		return;
     	}
     	
-    	double targetZ = (startZ + zLowerBound) + currentStep * stepSizeUm;
+    	double targetZ = startZ + targetsUm[currentStep];
     	
     	try {
     		core.setPosition(stage, targetZ);
-    		Thread.sleep(1000); // Give hardware a moment to settle
+    		core.waitForDevice(stage);
+    		Thread.sleep(settleMs); // Give hardware a moment to settle
     	} catch (Exception e) {
     		studio.logs().showError("Stage movement failed: " + e.getMessage());
+    		failCalibration();
     		return;
     	}
     	
@@ -75,15 +150,34 @@ public class CalibrateTask {
     		short[] data = camera.snapOnce();
             double[] result = new GaussianFitter(data).fit();
             double mean = result[1];
+            if (!(mean >= 0 && mean <= data.length - 1)) {
+            	mean = Double.NaN; // beam off the sensor
+            }
 
             positionsUm[currentStep] = targetZ;
             pixelMeans[currentStep] = mean;
 //            studio.logs().logMessage("Step " + currentStep + ": Z=" + targetZ + ", Mean=" + mean);
        
             currentStep++;
-            scheduler.schedule(this::stepCalibration, 1000, java.util.concurrent.TimeUnit.MILLISECONDS); // 1.0s between steps
+            scheduleStep(0);
     	} catch (Exception e) {
             studio.logs().showError("Image acquisition failed: " + e.getMessage());
+            failCalibration();
+    	}
+    }
+    
+    /**
+     * Returns the stage to where it started and reports a NaN slope, so
+     * callers waiting for the calibration are not left hanging.
+     */
+    private void failCalibration() {
+    	try {
+    		core.setPosition(stage, startZ);
+    	} catch (Exception e) {
+    		studio.logs().showError("Returning to original Z position failed: " + e.getMessage());
+    	}
+    	if (onCalibrationFinished != null) {
+    		onCalibrationFinished.accept(Double.NaN, Double.NaN);
     	}
     }
     
@@ -95,10 +189,20 @@ public class CalibrateTask {
     	}
     	
         double sumX = 0, sumY = 0, sumXY = 0, sumX2 = 0;
+        int points = 0;
         
-        for (int i = 0; i < numSteps; i++) {
+        int lutPoints = 0;
+        for (int i = 0; i < targetsUm.length; i++) {
             double x = pixelMeans[i];
             double y = positionsUm[i];
+            if (Double.isNaN(x)) {
+                continue; // fit failed at this step
+            }
+            lutPoints++;
+            if (targetsUm[i] < zLowerBound - 1e-9 || targetsUm[i] > zUpperBound + 1e-9) {
+                continue; // lookup table only
+            }
+            points++;
 
             sumX += x;
             sumY += y;
@@ -106,10 +210,14 @@ public class CalibrateTask {
             sumX2 += x * x;
         }
         
-        double slope = (numSteps * sumXY - sumX * sumY) / (numSteps * sumX2 - sumX * sumX);
-        double intercept = (sumY - slope * sumX) / numSteps;
+        double slope = (points * sumXY - sumX * sumY) / (points * sumX2 - sumX * sumX);
+        double intercept = (sumY - slope * sumX) / points;
+        lookupTable = FocusLookupTable.fromSweep(positionsUm, pixelMeans);
 
-        studio.logs().logMessage(String.format("Calibration complete. µm per mean pixel value = %.6f, intercept = %.3f", slope, intercept));
+        studio.logs().logMessage(String.format("Calibration complete. µm per mean pixel value = %.6f, intercept = %.3f, %d of %d points%s",
+        		slope, intercept, points, numSteps, lookupTable == null ? ", no lookup table"
+        				: String.format(", lookup table from %d of %d points over %.2f to %.2f px",
+        						lutPoints, targetsUm.length, lookupTable.getFirstPx(), lookupTable.getLastPx())));
         
         if (onCalibrationFinished != null) {
             onCalibrationFinished.accept(-slope, intercept);
@@ -3,8 +3,10 @@ package com.myname.focuslock;
 import org.micromanager.Studio;
 import mmcorej.CMMCore;
 
-import java.util.concurrent.Executors;
+import java.io.File;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
@@ -15,36 +17,212 @@ import java.util.function.Consumer;
 public class CameraPollingTask {
     private final Studio studio;
     private final CMMCore privateCore ;
-    private final String cameraName = "fgFocus Light Sensor";
-    private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();    
+    private final SensorConfig config;
+    private final String cameraName;
+    private final String configPath;
+    private final String correctionPath;
+    private final SensorCorrection correction = new SensorCorrection();
+    private short[] frameBuffer;
+    private final Object filterLock = new Object();
+    private FrameFilter lockFilter;
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> pollFuture;
+    private ScheduledFuture<?> watchdogFuture;
+    private final SensorConnection connection = new SensorConnection();
+    private volatile boolean polling = false;
+    // Bumped on every start/stop so a poll already in flight cannot restart an old loop
+    private volatile int pollGeneration = 0;
+    private final long pollIntervalMs = 100;
+    private final long watchdogIntervalMs = 250;
+    // Needed to reinitialize the sensor device on its own
+    private String deviceLibrary;
+    private String deviceName;
+    private String port;
     public volatile short[] pixelData;
     private Consumer<short[]> onImageUpdate;
     private final Object coreLock = new Object();
+    // Held while the configuration loads, see initialize()
+    private final Object initLock = new Object();
     private final Object schedulerLock = new Object();
 
 //    private boolean isCameraAttached = false;
-    private int average;
-    private double exposure;
+    private int average = 1;
+    private double exposure = 1.0;
+    // The sensor configuration is loaded on first use, see initialize()
+    private volatile boolean initialized = false;
+    private boolean initializeFailed = false;
+    // Set by close(); the sensor is not opened again afterwards
+    private volatile boolean closed = false;
+
+    // Packed 12-bit frames, see PackedPixels
+    private final String transferProperty = "Transfer";
+    private volatile boolean packedTransfer = false;
+
+    // Laser on/off acquisition, see LockInDemodulator
+    private final String laserProperty = "Laser";
+    private volatile boolean laserControl = false;
+    private volatile boolean lockIn = false;
+    private volatile long lockInMaxAgeMs = 50;
+    private LockInDemodulator demodulator;
+    private boolean laserOn = true;
+    // Reused under the core lock: raw laser on/off frames (the demodulator
+    // copies them) and the demodulated frame of snap()
+    private short[] laserFrameBuffer;
+    private double[] snapDemodulated;
+    // Raw frame of snapFiltered(), converted under the core lock
+    private short[] filterFrameBuffer;
+    // Demodulated frame of the polling thread, read outside the core lock
+    private double[] pollDemodulated;
+
+    private interface Grab<T> {
+        /**
+         * Takes a frame into {@code out} when it fits, else into a new array.
+         */
+        T grab(T out) throws Exception;
+    }
+    // Kept so the lock's snapFiltered() does not make a lambda per frame
+    private final Grab<double[]> filteredGrab = this::grabFiltered;
     
-    public CameraPollingTask(Studio studio, CMMCore privateCore) {
+    public CameraPollingTask(Studio studio, CMMCore privateCore, ScheduledExecutorService scheduler) {
+        this(studio, privateCore, SensorConfig.defaults(), scheduler);
+    }
+
+    public CameraPollingTask(Studio studio, CMMCore privateCore, SensorConfig config, ScheduledExecutorService scheduler) {
         this.studio = studio;
         this.privateCore  = privateCore;
+        this.config = config;
+        this.cameraName = config.getDevice();
+        this.configPath = config.getConfigPath();
+        this.correctionPath = config.getCorrectionPath();
+        this.scheduler = scheduler;
+
+        if (new File(correctionPath).isFile()) {
+            try {
+                correction.load(correctionPath);
+                studio.logs().logMessage("Loaded light sensor dark/flat correction from " + correctionPath);
+            } catch (Exception e) {
+                studio.logs().logMessage("Failed to load light sensor correction: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Loads the sensor configuration into the private core and opens the
+     * device, which takes seconds when the sensor is slow or absent. Does
+     * nothing once it succeeded; the frame methods call it on first use.
+     * Returns true when the sensor is ready.
+     *
+     * The configuration is loaded without the core lock, so exposure and
+     * averaging set from the UI meanwhile are only recorded and applied
+     * once the device is open, instead of waiting for the load. Nothing
+     * else touches the private core before {@code initialized} is set.
+     */
+    public boolean initialize() {
+        if (initialized) {
+            return true;
+        }
+        synchronized (initLock) {
+            if (initialized || closed) {
+                return initialized;
+            }
+            try {
+                privateCore.loadSystemConfiguration(configPath);
+                privateCore.setCameraDevice(cameraName);
+                deviceLibrary = privateCore.getDeviceLibrary(cameraName);
+                deviceName = privateCore.getDeviceName(cameraName);
+                if (privateCore.hasProperty(cameraName, "Port")) {
+                    port = privateCore.getProperty(cameraName, "Port");
+                }
+                laserControl = privateCore.hasProperty(cameraName, laserProperty);
+                synchronized (coreLock) {
+                    initialized = true;
+                    // Settings made before the sensor was up
+                    setAverage(average);
+                    setExposure(exposure);
+                    applyTransfer();
+                }
+                studio.logs().logMessage("Private core for light sensor " + config.getName() + " initialized");
+            } catch (Exception e) {
+                String message = "Failed to initialize private core for light sensor " + config.getName() + ": " + e.getMessage();
+                // Polling keeps retrying; only the first failure is shown
+                if (initializeFailed) {
+                    studio.logs().logMessage(message);
+                } else {
+                    studio.logs().showError(message);
+                    e.printStackTrace();
+                }
+                initializeFailed = true;
+            }
+            return initialized;
+        }
+    }
+
+    /**
+     * Stops polling and unloads the sensor from the private core, which
+     * frees its serial port. Waits for a configuration load in progress to
+     * finish first. The sensor cannot be used afterwards.
+     */
+    public void close() {
+        stop();
+        synchronized (initLock) {
+            closed = true;
+            synchronized (coreLock) {
+                if (!initialized) {
+                    return;
+                }
+                initialized = false;
+                try {
+                    privateCore.unloadAllDevices();
+                    studio.logs().logMessage("Private core for light sensor " + config.getName() + " closed");
+                } catch (Exception e) {
+                    studio.logs().logMessage("Failed to unload light sensor " + config.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    public SensorConfig getConfig() {
+        return config;
+    }
+
+    public SensorCorrection getCorrection() {
+        return correction;
+    }
 
+    public void setDarkProfile(double[] profile) {
+        correction.setDark(profile);
+        saveCorrection();
+    }
+
+    public void setFlatProfile(double[] profile) {
+        correction.setFlat(profile);
+        saveCorrection();
+    }
+
+    public void clearCorrection() {
+        correction.clear();
+        saveCorrection();
+    }
+
+    private void saveCorrection() {
         try {
-        	privateCore.loadSystemConfiguration("C:/Program Files/Micro-Manager-2.0/fgFocus/fgFocus.cfg");
-        	privateCore.setCameraDevice(cameraName);
-        	this.setAverage(1);
-        	this.setExposure(1.0);
-            studio.logs().logMessage("Private core for light sensor initialized");
+            correction.save(correctionPath);
         } catch (Exception e) {
-            studio.logs().showError("Failed to initialize private core for light sensor: " + e.getMessage());
-            e.printStackTrace();
+            studio.logs().showError("Failed to save light sensor correction: " + e.getMessage());
         }
     }
     
     public void setExposure(double expo) {
         try {
         	synchronized (coreLock) {
+        		if (!initialized) {
+        			exposure = expo; // applied by initialize()
+        			return;
+        		}
 	            privateCore.setProperty(cameraName, "Time [ms]", expo);
 	            studio.logs().logMessage("Set exposure to: " + expo);
 	            exposure = expo;
@@ -57,6 +235,10 @@ public class CameraPollingTask {
     public void setAverage(int avg) {
         try {
         	synchronized (coreLock) {
+        		if (!initialized) {
+        			average = avg; // applied by initialize()
+        			return;
+        		}
 	            privateCore.setProperty(cameraName, "Average #", avg);        	
 	            studio.logs().logMessage("Set averaging to: " + avg);
 	            average = avg;
@@ -66,108 +248,591 @@ public class CameraPollingTask {
         }
     }
     
+    /**
+     * Has the sensor send its 12-bit pixels packed two per three bytes, a
+     * quarter less to transfer per frame. Needs the device adapter's
+     * {@code Transfer} property and firmware that answers the packed data
+     * request; the adapter falls back to 16-bit transfer when it does not,
+     * after which {@link #isPackedTransfer()} is false again. Returns false
+     * when the adapter has no packed mode.
+     */
+    public boolean setPackedTransfer(boolean packed) {
+        packedTransfer = packed;
+        if (!initialized) {
+            return true; // applied by initialize()
+        }
+        synchronized (coreLock) {
+            return applyTransfer();
+        }
+    }
+
+    public boolean isPackedTransfer() {
+        return packedTransfer;
+    }
+
+    /**
+     * Sets the transfer format on the device. The caller holds the core lock.
+     */
+    private boolean applyTransfer() {
+        try {
+            if (!privateCore.hasProperty(cameraName, transferProperty)) {
+                if (packedTransfer) {
+                    studio.logs().logMessage("Light sensor " + config.getName() + " has no packed transfer mode");
+                }
+                return !packedTransfer;
+            }
+            privateCore.setProperty(cameraName, transferProperty, packedTransfer ? "Packed 12-bit" : "16-bit");
+            return true;
+        } catch (Exception e) {
+            studio.logs().showError("Failed to set the light sensor transfer format: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Reads the transfer format back once an unpacked frame arrives, as the
+     * adapter gives up packed transfer when the firmware keeps not answering
+     * it. Packed transfer is then switched off here as well, so it is not
+     * applied again on a reconnect. The caller holds the core lock.
+     */
+    private void checkTransfer() {
+        try {
+            if (privateCore.hasProperty(cameraName, transferProperty)
+                    && "16-bit".equals(privateCore.getProperty(cameraName, transferProperty))) {
+                packedTransfer = false;
+                studio.logs().logMessage("Light sensor " + config.getName() + " fell back to 16-bit transfer");
+            }
+        } catch (Exception e) {
+            studio.logs().logError(e, "Failed to read the light sensor transfer format");
+        }
+    }
+
+    /**
+     * True when the sensor can switch the IR laser, which lock-in needs.
+     */
+    public boolean hasLaserControl() {
+        return laserControl;
+    }
+
+    /**
+     * Alternates laser-on and laser-off frames and uses their difference
+     * instead of plain frames, so light that is not from the laser cancels.
+     * Returns false when the sensor cannot switch the laser.
+     */
+    public boolean setLockIn(boolean enabled) {
+        if (enabled && !initialize()) {
+            return false;
+        }
+        if (enabled && !laserControl) {
+            studio.logs().showError("Light sensor " + config.getName() + " cannot switch the laser; lock-in is unavailable");
+            return false;
+        }
+        synchronized (coreLock) {
+            lockIn = enabled;
+            demodulator = null;
+            if (!enabled && initialized) {
+                try {
+                    switchLaser(true);
+                } catch (Exception e) {
+                    studio.logs().showError("Failed to switch the laser on: " + e.getMessage());
+                }
+            }
+        }
+        // Background-free frames have a different baseline than plain ones
+        resetLockFilter();
+        studio.logs().logMessage("Light sensor lock-in " + (enabled ? "enabled" : "disabled"));
+        return true;
+    }
+
+    public boolean isLockIn() {
+        return lockIn;
+    }
+
+    /**
+     * Longest time between a laser-on and a laser-off frame that are still
+     * subtracted from each other.
+     */
+    public void setLockInMaxAge(long maxAgeMs) {
+        lockInMaxAgeMs = maxAgeMs;
+    }
+
     public void setOnImageUpdate(Consumer<short[]> callback) {
         this.onImageUpdate = callback;
     }
 
     public void start() {
         synchronized (schedulerLock) {
-            if (scheduler.isShutdown() || scheduler.isTerminated()) {
-                scheduler = Executors.newSingleThreadScheduledExecutor();
+            if (polling) {
+                return;
+            }
+            polling = true;
+            int generation = ++pollGeneration;
+            connection.resetFrameAge();
+            try {
+                pollFuture = scheduler.schedule(() -> poll(generation), 0, TimeUnit.MILLISECONDS);
+                watchdogFuture = scheduler.scheduleAtFixedRate(() -> connection.checkFrameAge(frameTimeoutMs()),
+                        watchdogIntervalMs, watchdogIntervalMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                polling = false; // engine already shut down
             }
+        }
+    }
 
-            scheduler.scheduleWithFixedDelay(() -> {
-                final int maxRetries = 10;
+    public void stop() {
+        synchronized (schedulerLock) {
+            polling = false;
+            pollGeneration++;
+            if (pollFuture != null) {
+                pollFuture.cancel(false);
+                pollFuture = null;
+            }
+            if (watchdogFuture != null) {
+                watchdogFuture.cancel(false);
+                watchdogFuture = null;
+            }
+        }
+    }
+
+    public SensorConnection getConnection() {
+        return connection;
+    }
+
+    public boolean isConnected() {
+        return connection.isConnected();
+    }
+
+    private void poll(int generation) {
+        if (generation != pollGeneration) {
+            return;
+        }
+
+        long delay = pollIntervalMs;
+        try {
+            if (!initialize()) {
+                throw new IllegalStateException("sensor not initialized");
+            }
+            short[] frame;
+            double[] demodulated = null;
+            synchronized (coreLock) {
+                if (lockIn) {
+                    demodulated = acquireLockIn(pollDemodulated);
+                    if (demodulated != null) {
+                        pollDemodulated = demodulated;
+                    }
+                    frame = demodulated == null ? null : toShort(demodulated, frameBuffer);
+                } else {
+                    frame = grab(frameBuffer, true);
+                }
+            }
 
-                for (int attempt = 1; attempt <= maxRetries; attempt++) {
+            if (frame != null) {
+                connection.frameReceived();
+                frameBuffer = frame;
+                pixelData = frame;
+
+                if (onImageUpdate != null) {
+                    onImageUpdate.accept(pixelData);
+                }
+            }
+        } catch (Exception e) {
+            delay = handleFailure(e);
+        }
+
+        synchronized (schedulerLock) {
+            if (generation != pollGeneration) {
+                return; // stopped while this frame was in flight
+            }
+            try {
+                pollFuture = scheduler.schedule(() -> poll(generation), delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                polling = false;
+            }
+        }
+    }
+
+    /**
+     * Advances the connection state machine after a failed snap and returns
+     * how long to wait before the next attempt.
+     */
+    private long handleFailure(Exception e) {
+        if (connection.failure()) {
+            reconnect(e);
+        }
+        return connection.backoffMs();
+    }
+
+    /**
+     * Reinitializes only the sensor device, which takes milliseconds plus the
+     * firmware boot delay. The full configuration is reloaded only when that
+     * already failed once, e.g. because the serial port itself disappeared.
+     */
+    private void reconnect(Exception cause) {
+        if (!initialized) {
+            // Never came up: nothing to reinitialize, just try again
+            if (initialize()) {
+                connection.reconnectSucceeded();
+            } else {
+                connection.reconnectFailed();
+            }
+            return;
+        }
+        boolean fullReload = connection.getReconnectAttempts() > 0 || deviceLibrary == null;
+        studio.logs().logMessage("Light sensor not responding (" + cause.getMessage() + "), "
+                + (fullReload ? "reloading configuration" : "reinitializing device"));
+        try {
+            synchronized (coreLock) {
+                if (fullReload) {
+                    privateCore.unloadAllDevices();
+                    privateCore.loadSystemConfiguration(configPath);
+                } else {
+                    privateCore.unloadDevice(cameraName);
+                    privateCore.loadDevice(cameraName, deviceLibrary, deviceName);
+                    if (port != null) {
+                        privateCore.setProperty(cameraName, "Port", port);
+                    }
+                    privateCore.initializeDevice(cameraName);
+                }
+                privateCore.setCameraDevice(cameraName);
+                setAverage(average);
+                setExposure(exposure);
+                applyTransfer();
+                // A fresh device starts with the laser on
+                laserControl = privateCore.hasProperty(cameraName, laserProperty);
+                laserOn = true;
+                demodulator = null;
+            }
+            connection.reconnectSucceeded();
+            studio.logs().logMessage("Light sensor reinitialized");
+        } catch (Exception e) {
+            connection.reconnectFailed();
+            studio.logs().logMessage("Light sensor reconnect failed: " + e.toString());
+        }
+    }
+
+    private long frameTimeoutMs() {
+        // Generous compared to a frame: exposure x average plus the USB transfer
+        return 1000 + (long) (10 * exposure * Math.max(average, 1));
+    }
+
+    public short[] snapOnce() {
+        return snap(true, false);
+    }
+
+    /**
+     * Sets the software filter applied to the stream used by the focus lock.
+     * Only the frames the lock snaps with {@link #snapFiltered()} go through
+     * it; the display polling frames run on their own schedule, often while
+     * the stage moves, and would make its time constant depend on the GUI.
+     * Pass null to use raw frames.
+     */
+    public void setLockFilter(FrameFilter filter) {
+        synchronized (filterLock) {
+            lockFilter = filter;
+        }
+    }
+
+    /**
+     * True when the lock's frames are filtered, so they lag the stage.
+     */
+    public boolean hasLockFilter() {
+        synchronized (filterLock) {
+            return lockFilter != null;
+        }
+    }
+
+    public void resetLockFilter() {
+        synchronized (filterLock) {
+            if (lockFilter != null) {
+                lockFilter.reset();
+            }
+        }
+    }
+
+    /**
+     * Snaps a new frame, pushes it through the lock filter and returns the
+     * filtered frame.
+     */
+    public double[] snapFiltered() {
+        return snapFiltered(null);
+    }
+
+    /**
+     * Like {@link #snapFiltered()}, but returns the frame in {@code out} when
+     * it has the right length, so the lock loop allocates no frame per cycle.
+     */
+    public double[] snapFiltered(double[] out) {
+        double[] frame = withRetries(filteredGrab, out);
+        if (frame != null) {
+            feedLockFilter(frame);
+        }
+        return frame;
+    }
+
+    private double[] grabFiltered(double[] out) throws Exception {
+        synchronized (coreLock) {
+            if (lockIn) {
+                return acquireLockIn(out);
+            }
+            short[] data = grab(filterFrameBuffer, true);
+            if (data == null) {
+                return null;
+            }
+            filterFrameBuffer = data;
+            if (out == null || out.length != data.length) {
+                out = new double[data.length];
+            }
+            for (int i = 0; i < data.length; i++) {
+                out[i] = data[i] & 0xFFFF;
+            }
+            return out;
+        }
+    }
+
+    private void feedLockFilter(double[] frame) {
+        synchronized (filterLock) {
+            if (lockFilter != null) {
+                lockFilter.apply(frame);
+            }
+        }
+    }
+
+    /**
+     * Averages {@code frames} uncorrected snapshots, used to record the dark
+     * and flat profiles. A {@code dark} profile is taken with the laser
+     * switched off when the sensor can switch it, and the laser is switched
+     * back on afterwards; otherwise the beam has to be blocked.
+     */
+    public double[] captureProfile(int frames, boolean dark) {
+        try {
+            return averageProfile(frames, dark);
+        } finally {
+            if (dark) {
+                synchronized (coreLock) {
                     try {
-                        synchronized (coreLock) {
-                            privateCore.snapImage();
-                            Object img = privateCore.getImage();
-
-                            if (img instanceof byte[]) {
-                                byte[] raw = (byte[]) img;
-                                int numPixels = raw.length / 2;
-                                pixelData = new short[numPixels];
-                                for (int i = 0; i < numPixels; i++) {
-                                    int low = raw[2 * i] & 0xFF;
-                                    int high = raw[2 * i + 1] & 0xFF;
-                                    pixelData[i] = (short) ((high << 8) | low);
-                                }
-                            } else if (img instanceof short[]) {
-                            	pixelData = (short[]) img;
-                            } else {
-                                studio.logs().showError("Unsupported image type: " + img.getClass().getSimpleName());
-                                return;
-                            }
-
-                            if (onImageUpdate != null) {
-                                onImageUpdate.accept(pixelData);
-                            }
-
-                            return;  // Success
-                        }
+                        switchLaser(true);
                     } catch (Exception e) {
-                        if (attempt == maxRetries) {
-                            try {
-                                synchronized (coreLock) {
-                                    privateCore.reset();
-                                    privateCore.loadSystemConfiguration("C:/Program Files/Micro-Manager-2.0/fgFocus/fgFocus.cfg");
-                                    setAverage(average);
-                                    setExposure(exposure);
-                                }
-                                studio.logs().logMessage("Max retries reached. Core reset attempted.");
-                            } catch (Exception e1) {
-                                studio.logs().logMessage("Reset failed: " + e1.toString());
-                            }
-                        }
-                        // No delay between retries
+                        studio.logs().logError(e, "Failed to switch the laser back on");
                     }
                 }
-            }, 0, 100, TimeUnit.MILLISECONDS);
+            }
         }
     }
 
-    public void stop() {
-        scheduler.shutdownNow();
+    private double[] averageProfile(int frames, boolean dark) {
+        double[] sum = null;
+        for (int f = 0; f < frames; f++) {
+            short[] data = snap(false, dark);
+            if (data == null) {
+                return null;
+            }
+            if (sum == null) {
+                sum = new double[data.length];
+            }
+            for (int i = 0; i < data.length; i++) {
+                sum[i] += data[i] & 0xFFFF;
+            }
+        }
+        if (sum != null) {
+            for (int i = 0; i < sum.length; i++) {
+                sum[i] /= frames;
+            }
+        }
+        return sum;
     }
-    
-    public short[] snapOnce() {
-        final int maxRetries = 10;
 
-        for (int attempt = 1; attempt <= maxRetries; attempt++) {
+    private short[] snap(boolean corrected, boolean dark) {
+        return withRetries(out -> {
             synchronized (coreLock) {
-                try {
-                    privateCore.snapImage();
-                    Object img = privateCore.getImage();
-                    
-                    if (img instanceof byte[]) {
-                        byte[] raw = (byte[]) img;
-                        int numPixels = raw.length / 2;
-                        short[] result = new short[numPixels];
-                        for (int i = 0; i < numPixels; i++) {
-                            int low = raw[2 * i] & 0xFF;
-                            int high = raw[2 * i + 1] & 0xFF;
-                            result[i] = (short) ((high << 8) | low);
+                if (dark) {
+                    switchLaser(false);
+                } else if (lockIn) {
+                    if (corrected) {
+                        double[] frame = acquireLockIn(snapDemodulated);
+                        if (frame == null) {
+                            return null;
                         }
-                        return result;
-                    } else if (img instanceof short[]) {
-                        return (short[]) img;
-                    } else {
-                        studio.logs().showError("Unsupported image type: " + img.getClass().getSimpleName());
-                        return null;
+                        snapDemodulated = frame;
+                        // A new array, like grab(null, ...): callers keep it past the core lock
+                        return toShort(frame, null);
                     }
+                    // Flat profiles are taken as plain frames with the laser on
+                    switchLaser(true);
+                }
+                return grab(null, corrected);
+            }
+        }, null);
+    }
 
-                } catch (Exception e) {
-                    if (attempt == maxRetries) {
-                        studio.logs().showError("snapOnce failed after " + maxRetries + " attempts: " + e.getMessage());
-                    }
-                    // retry
+    /**
+     * Runs {@code grab} into {@code out} up to three times, backing off
+     * between attempts. Returns null when all attempts failed or the image
+     * type is unsupported.
+     */
+    private <T> T withRetries(Grab<T> grab, T out) {
+        final int maxAttempts = 3;
+        if (!initialize()) {
+            return null;
+        }
+
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            try {
+                T result = grab.grab(out);
+                if (result == null) {
+                    return null;
+                }
+                connection.frameReceived();
+                return result;
+
+            } catch (Exception e) {
+                long delay = handleFailure(e);
+                if (attempt == maxAttempts) {
+                    studio.logs().logMessage("snapOnce failed after " + maxAttempts + " attempts: " + e.getMessage());
+                    break;
+                }
+                try {
+                    // Back off outside the core lock so other callers are not blocked
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
         }
 
         return null;
     }
-}
 
+    /**
+     * Snaps and decodes one frame. The caller holds the core lock.
+     */
+    private short[] grab(short[] out, boolean corrected) throws Exception {
+        privateCore.snapImage();
+        Object img = privateCore.getImage();
+        if (packedTransfer && !isPacked(img)) {
+            checkTransfer();
+        }
+        short[] frame = decode(img, out, corrected);
+        if (frame == null) {
+            studio.logs().showError("Unsupported image type: " + img.getClass().getSimpleName());
+        }
+        return frame;
+    }
+
+    /**
+     * Takes the next frame of the laser on/off sequence, plus one of the
+     * other phase when the last one is too old to pair with, and returns the
+     * laser-only frame in {@code out}, reusing it when it has the right
+     * length. The caller holds the core lock.
+     */
+    private double[] acquireLockIn(double[] out) throws Exception {
+        boolean phase = !laserOn;
+        long start = System.nanoTime();
+        short[] frame = grabWithLaser(phase);
+        if (frame == null) {
+            return null;
+        }
+        long time = System.nanoTime();
+        if (demodulator == null || demodulator.getPixels() != frame.length) {
+            demodulator = new LockInDemodulator(frame.length, lockInMaxAgeMs);
+        }
+        // Never shorter than a few frames, or slow exposures would never pair
+        demodulator.setMaxAge(Math.max(lockInMaxAgeMs, 3 * ((time - start) / 1_000_000 + 1)));
+        demodulator.add(frame, phase, time);
+        if (!demodulator.canPair(phase, time)) {
+            short[] other = grabWithLaser(!phase);
+            if (other == null) {
+                return null;
+            }
+            demodulator.add(other, !phase, System.nanoTime());
+        }
+        if (out == null || out.length != frame.length) {
+            out = new double[frame.length];
+        }
+        return demodulator.demodulate(out) ? out : null;
+    }
+
+    /**
+     * Snaps a frame with the laser switched {@code on} into a buffer that
+     * the next call overwrites. The caller holds the core lock.
+     */
+    private short[] grabWithLaser(boolean on) throws Exception {
+        switchLaser(on);
+        short[] frame = grab(laserFrameBuffer, true);
+        if (frame != null) {
+            laserFrameBuffer = frame;
+        }
+        return frame;
+    }
+
+    private void switchLaser(boolean on) throws Exception {
+        if (laserOn != on && laserControl) {
+            privateCore.setProperty(cameraName, laserProperty, on ? "On" : "Off");
+            laserOn = on;
+        }
+    }
+
+    /**
+     * Rounds a demodulated frame into sensor counts for display; noise below
+     * the background clips at 0.
+     */
+    private static short[] toShort(double[] frame, short[] out) {
+        if (out == null || out.length != frame.length) {
+            out = new short[frame.length];
+        }
+        for (int i = 0; i < frame.length; i++) {
+            out[i] = (short) Math.max(0, Math.min(0xFFFF, Math.round(frame[i])));
+        }
+        return out;
+    }
+
+    /**
+     * Decodes the image returned by the core into {@code out}, reusing it when
+     * it has the right length. Returns null for unsupported image types.
+     */
+    private boolean isPacked(Object img) {
+        return img instanceof byte[] && ((byte[]) img).length == PackedPixels.packedLength(config.getPixels());
+    }
+
+    private short[] decode(Object img, short[] out, boolean corrected) {
+        if (isPacked(img)) {
+            // Packed 12-bit frame; told apart by its length, as the adapter
+            // may have fallen back to 16-bit on its own
+            byte[] raw = (byte[]) img;
+            int numPixels = PackedPixels.pixels(raw.length);
+            if (out == null || out.length != numPixels) {
+                out = new short[numPixels];
+            }
+            PackedPixels.unpack12(raw, out);
+            if (corrected) {
+                correction.apply(out, out);
+            }
+            return out;
+        } else if (img instanceof byte[]) {
+            byte[] raw = (byte[]) img;
+            int numPixels = raw.length / 2;
+            if (out == null || out.length != numPixels) {
+                out = new short[numPixels];
+            }
+            if (corrected) {
+                correction.decode(raw, out);
+            } else {
+                for (int i = 0; i < numPixels; i++) {
+                    out[i] = (short) (((raw[2 * i + 1] & 0xFF) << 8) | (raw[2 * i] & 0xFF));
+                }
+            }
+            return out;
+        } else if (img instanceof short[]) {
+            short[] src = (short[]) img;
+            if (out == null || out.length != src.length) {
+                out = new short[src.length];
+            }
+            if (corrected) {
+                correction.apply(src, out);
+            } else {
+                System.arraycopy(src, 0, out, 0, src.length);
+            }
+            return out;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,61 @@
+package com.myname.focuslock;
+
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import org.micromanager.Studio;
+
+/**
+ * Records the dark (laser off or blocked) and flat profiles of the light
+ * sensor and hands them to the {@link CameraPollingTask}, which stores them
+ * next to the sensor configuration.
+ */
+public class CorrectionTask {
+    private Studio studio;
+    private CameraPollingTask camera;
+    private final ExecutorService scheduler;
+    private Consumer<String> onCaptureFinished;
+
+    private final int numFrames = 20;
+
+    public CorrectionTask(Studio studio, CameraPollingTask camera, ExecutorService scheduler) {
+    	this.studio = studio;
+    	this.camera = camera;
+    	this.scheduler = scheduler;
+    }
+
+    public void setOnCaptureFinished(Consumer<String> callback) {
+        this.onCaptureFinished = callback;
+    }
+
+    public void captureDark() {
+    	scheduler.execute(() -> capture(true));
+    }
+
+    public void captureFlat() {
+    	scheduler.execute(() -> capture(false));
+    }
+
+    private void capture(boolean dark) {
+    	String name = dark ? "Dark" : "Flat";
+    	double[] profile = camera.captureProfile(numFrames, dark);
+    	if (profile == null) {
+    		studio.logs().showError(name + " profile capture failed.");
+    		finish(name + " capture failed.");
+    		return;
+    	}
+
+    	if (dark) {
+    		camera.setDarkProfile(profile);
+    	} else {
+    		camera.setFlatProfile(profile);
+    	}
+    	studio.logs().logMessage(name + " profile recorded from " + numFrames + " frames.");
+    	finish(name + " profile recorded.");
+    }
+
+    private void finish(String message) {
+    	if (onCaptureFinished != null) {
+    		onCaptureFinished.accept(message);
+    	}
+    }
+}
@@ -0,0 +1,36 @@
+package com.myname.focuslock;
+
+/**
+ * Per-pixel exponential moving average. The first frame seeds the state so
+ * the output does not ramp up from zero.
+ */
+public class EmaFilter implements FrameFilter {
+	private final double alpha;
+	private double[] state;
+
+	public EmaFilter(double alpha) {
+		if (!(alpha > 0 && alpha <= 1)) {
+			throw new IllegalArgumentException("Alpha must be in (0, 1]");
+		}
+		this.alpha = alpha;
+	}
+
+	@Override
+	public void apply(double[] frame) {
+		int n = frame.length;
+		if (state == null || state.length != n) {
+			state = frame.clone();
+			return;
+		}
+		for (int i = 0; i < n; i++) {
+			double s = state[i] + alpha * (frame[i] - state[i]);
+			state[i] = s;
+			frame[i] = s;
+		}
+	}
+
+	@Override
+	public void reset() {
+		state = null;
+	}
+}
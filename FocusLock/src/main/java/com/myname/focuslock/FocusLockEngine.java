@@ -0,0 +1,831 @@
+package com.myname.focuslock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+import org.micromanager.Studio;
+import mmcorej.CMMCore;
+
+/**
+ * Headless focus lock. Owns the private core of the light sensor and the
+ * polling, calibration and focus tasks, and exposes them as a plain Java API
+ * that does not depend on Swing or EMU. {@link LockPanel} is a view on top of
+ * it; Micro-Manager scripts reach the running engine through
+ * {@link #getInstance()}.
+ *
+ * A scope with several light sensors runs one engine per
+ * {@link SensorConfig}, each with its own private core, threads and fitter.
+ * The engines share the Z stage through a {@link StageArbiter}, so only one
+ * of them locks or calibrates at a time.
+ *
+ * Commands are queued on a single command thread and return futures, so
+ * callers on the EDT never block on hardware. Constructing an engine does
+ * not touch the sensor either: its configuration is loaded by
+ * {@link #start()} in the background, at the latest when monitoring, a
+ * calibration or a lock first needs it. {@link #obtain(Studio, SensorConfig)}
+ * hands a recreated panel the engine, and the opened sensor, it had before.
+ */
+public class FocusLockEngine {
+	public enum State {
+		IDLE,
+		CALIBRATING,
+		LOCKED,
+		PAUSED
+	}
+
+	public enum Startup {
+		// Sensor not opened yet
+		PENDING,
+		STARTING,
+		READY,
+		// Opening failed; the next start() tries again
+		FAILED
+	}
+
+	private static volatile FocusLockEngine instance;
+	private static final List<FocusLockEngine> instances = new CopyOnWriteArrayList<>();
+
+	private final Studio studio;
+	private final SensorConfig config;
+	private final CMMCore privateCore;
+	private final CameraPollingTask camera;
+	private final FocusTask focusTask;
+	private final CorrectionTask correctionTask;
+	private final AcquisitionFocusHook acquisitionHook;
+	private final LockExecutors executors;
+	private final ExecutorService commands;
+	private final StageArbiter stageArbiter;
+	private volatile CalibrateTask calibrateTask;
+	private LockControlServer remoteServer;
+	private SensorRecording.Recorder recorder;
+
+	private volatile State state = State.IDLE;
+	private volatile Startup startup = Startup.PENDING;
+	private CompletableFuture<Boolean> started;
+	private volatile boolean shutDown = false;
+	private volatile boolean monitoring = false;
+	private volatile double slopeCal = Double.NaN;
+
+	private final List<Consumer<State>> stateListeners = new CopyOnWriteArrayList<>();
+	private final List<Consumer<SensorConnection.State>> sensorListeners = new CopyOnWriteArrayList<>();
+	private final List<Consumer<short[]>> frameListeners = new CopyOnWriteArrayList<>();
+	private final List<Consumer<Double>> errorListeners = new CopyOnWriteArrayList<>();
+	private final List<Consumer<Double>> calibrationListeners = new CopyOnWriteArrayList<>();
+	private final List<Consumer<String>> correctionListeners = new CopyOnWriteArrayList<>();
+	private final List<Consumer<Startup>> startupListeners = new CopyOnWriteArrayList<>();
+
+	public FocusLockEngine(Studio studio) {
+		this(studio, SensorConfig.defaults());
+	}
+
+	public FocusLockEngine(Studio studio, SensorConfig config) {
+		this.studio = studio;
+		this.config = config;
+		this.executors = new LockExecutors(config.getThreadPrefix(), LockExecutors.IoThreads.AUTO);
+		this.commands = executors.commands();
+		this.privateCore = new CMMCore();
+		this.camera = new CameraPollingTask(studio, privateCore, config, executors.sensor());
+		this.focusTask = new FocusTask(studio, camera, executors.lock(), executors.io());
+		this.correctionTask = new CorrectionTask(studio, camera, executors.sensor());
+		this.stageArbiter = StageArbiter.forStage(focusTask.getStage());
+
+		camera.setOnImageUpdate(frame -> fire(frameListeners, frame));
+		camera.getConnection().setOnStateChange(s -> fire(sensorListeners, s));
+		focusTask.setOnErrorUpdate(error -> fire(errorListeners, error));
+		// The refined slope also serves the next lock
+		focusTask.setOnSlopeUpdate(slope -> slopeCal = slope);
+		correctionTask.setOnCaptureFinished(message -> fire(correctionListeners, message));
+
+		acquisitionHook = new AcquisitionFocusHook(studio, this);
+		try {
+			acquisitionHook.install();
+		} catch (Exception e) {
+			studio.logs().logMessage("Focus lock acquisition hooks unavailable: " + e.getMessage());
+		}
+
+		instances.add(this);
+		if (config.getIndex() == 0 || instance == null) {
+			instance = this;
+		}
+	}
+
+	/**
+	 * The engine of the first sensor, or null when the plugin is not running.
+	 */
+	public static FocusLockEngine getInstance() {
+		return instance;
+	}
+
+	/**
+	 * The running engine of the sensor called {@code name}, or null.
+	 */
+	public static FocusLockEngine getInstance(String name) {
+		for (FocusLockEngine engine : instances) {
+			if (engine.config.getName().equals(name)) {
+				return engine;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The running engine of {@code config}'s sensor in {@code studio}, or a
+	 * new one. Panels use this so that closing and reopening the plugin
+	 * neither reloads the sensor nor loses the calibration.
+	 */
+	public static synchronized FocusLockEngine obtain(Studio studio, SensorConfig config) {
+		FocusLockEngine engine = getInstance(config.getName());
+		if (engine != null && engine.studio == studio && !engine.shutDown) {
+			return engine;
+		}
+		return new FocusLockEngine(studio, config);
+	}
+
+	/**
+	 * All running engines, one per sensor.
+	 */
+	public static List<FocusLockEngine> getInstances() {
+		return new ArrayList<>(instances);
+	}
+
+	public SensorConfig getConfig() {
+		return config;
+	}
+
+	// Listeners
+
+	public void addStateListener(Consumer<State> listener) {
+		stateListeners.add(listener);
+	}
+
+	public void addSensorStateListener(Consumer<SensorConnection.State> listener) {
+		sensorListeners.add(listener);
+	}
+
+	/**
+	 * Raw (corrected, unfiltered) frames while monitoring. Called on the
+	 * polling thread with a reused buffer: copy it before handing it on.
+	 */
+	public void addFrameListener(Consumer<short[]> listener) {
+		frameListeners.add(listener);
+	}
+
+	/**
+	 * Focus error in µm after every lock cycle.
+	 */
+	public void addErrorListener(Consumer<Double> listener) {
+		errorListeners.add(listener);
+	}
+
+	/**
+	 * Slope in µm per pixel after every calibration, NaN when it failed.
+	 */
+	public void addCalibrationListener(Consumer<Double> listener) {
+		calibrationListeners.add(listener);
+	}
+
+	public void addCorrectionListener(Consumer<String> listener) {
+		correctionListeners.add(listener);
+	}
+
+	/**
+	 * Progress of opening the sensor, see {@link #start()}.
+	 */
+	public void addStartupListener(Consumer<Startup> listener) {
+		startupListeners.add(listener);
+	}
+
+	public void removeListener(Object listener) {
+		stateListeners.remove(listener);
+		sensorListeners.remove(listener);
+		frameListeners.remove(listener);
+		errorListeners.remove(listener);
+		calibrationListeners.remove(listener);
+		correctionListeners.remove(listener);
+		startupListeners.remove(listener);
+	}
+
+	// Startup
+
+	/**
+	 * Opens the sensor on the sensor thread. Returns at once; the future
+	 * completes with true when the sensor is ready. Calling it again returns
+	 * the same future, unless the last attempt failed.
+	 */
+	public synchronized CompletableFuture<Boolean> start() {
+		if (started != null && startup != Startup.FAILED) {
+			return started;
+		}
+		CompletableFuture<Boolean> done = new CompletableFuture<>();
+		started = done;
+		setStartup(Startup.STARTING);
+		try {
+			executors.sensor().execute(() -> {
+				boolean ok = camera.initialize();
+				setStartup(ok ? Startup.READY : Startup.FAILED);
+				done.complete(ok);
+			});
+		} catch (RejectedExecutionException e) {
+			setStartup(Startup.FAILED);
+			done.complete(false);
+		}
+		return done;
+	}
+
+	public Startup getStartup() {
+		return startup;
+	}
+
+	private void setStartup(Startup newStartup) {
+		startup = newStartup;
+		fire(startupListeners, newStartup);
+	}
+
+	/**
+	 * Waits on the command thread for the sensor, failing {@code done} when
+	 * it cannot be opened.
+	 */
+	private boolean awaitStartup(CompletableFuture<?> done) {
+		if (start().join()) {
+			return true;
+		}
+		done.completeExceptionally(new IllegalStateException("Light sensor " + config.getName() + " not initialized"));
+		return false;
+	}
+
+	// Sensor
+
+	public void setExposure(double exposure) {
+		camera.setExposure(exposure);
+	}
+
+	public void setAverage(int average) {
+		camera.setAverage(average);
+	}
+
+	public void setLockFilter(FrameFilter filter) {
+		camera.setLockFilter(filter);
+	}
+
+	/**
+	 * Switches to laser on/off frames and uses their difference, which
+	 * removes room light and the microscope illumination from the signal.
+	 * Returns false when the sensor cannot switch its laser.
+	 */
+	public boolean setLockIn(boolean enabled) {
+		return camera.setLockIn(enabled);
+	}
+
+	/**
+	 * Has the sensor send packed 12-bit frames, see
+	 * {@link CameraPollingTask#setPackedTransfer(boolean)}. Returns false when
+	 * its device adapter cannot.
+	 */
+	public boolean setPackedTransfer(boolean packed) {
+		return camera.setPackedTransfer(packed);
+	}
+
+	public boolean isLockIn() {
+		return camera.isLockIn();
+	}
+
+	public boolean hasLaserControl() {
+		return camera.hasLaserControl();
+	}
+
+	/**
+	 * Starts polling the sensor, once it is open.
+	 */
+	public void startMonitoring() {
+		monitoring = true;
+		start().thenAccept(ok -> {
+			if (ok && monitoring) {
+				camera.start();
+			}
+		});
+	}
+
+	public void stopMonitoring() {
+		monitoring = false;
+		camera.stop();
+	}
+
+	public boolean isMonitoring() {
+		return monitoring;
+	}
+
+	/**
+	 * Writes every frame received while monitoring to {@code path}, for
+	 * replaying the session offline with {@link ReplayEngine}.
+	 */
+	public synchronized void startRecording(String path) throws IOException {
+		stopRecording();
+		recorder = new SensorRecording.Recorder(path);
+		addFrameListener(recorder);
+	}
+
+	public synchronized void stopRecording() {
+		if (recorder == null) {
+			return;
+		}
+		removeListener(recorder);
+		try {
+			recorder.close();
+		} catch (IOException e) {
+			studio.logs().logMessage("Failed to close sensor recording: " + e.getMessage());
+		}
+		recorder = null;
+	}
+
+	public synchronized boolean isRecording() {
+		return recorder != null;
+	}
+
+	public void captureDark() {
+		correctionTask.captureDark();
+	}
+
+	public void captureFlat() {
+		correctionTask.captureFlat();
+	}
+
+	// Controller
+
+	public void setProportionalGain(double kp) {
+		focusTask.setProportionalGain(kp);
+	}
+
+	public void setIntegralGain(double ki) {
+		focusTask.setIntegratoinGain(ki);
+	}
+
+	public void setDifferentialGain(double kd) {
+		focusTask.setDifferentialGain(kd);
+	}
+
+	/**
+	 * Spin-waits the last ~2 ms before every lock cycle for sub-ms timing.
+	 */
+	public void setPreciseTiming(boolean precise) {
+		focusTask.setPreciseTiming(precise);
+	}
+
+	/**
+	 * Runs the lock as a three-stage pipeline correcting every
+	 * {@code periodMs}, see {@link FocusPipeline}. Takes effect at the next lock.
+	 */
+	public void setPipelined(boolean pipelined, long periodMs) {
+		focusTask.setPipelined(pipelined, periodMs);
+	}
+
+	/**
+	 * Lets the lock refine the calibration slope from its own corrections,
+	 * see {@link SlopeEstimator}. On by default.
+	 */
+	public void setOnlineCalibration(boolean enabled) {
+		focusTask.setOnlineCalibration(enabled);
+	}
+
+	public SlopeEstimator getSlopeEstimator() {
+		return focusTask.getSlopeEstimator();
+	}
+
+	/**
+	 * Lets the loop slow down while the focus is stable and speed up after
+	 * a disturbance, between {@code minPeriodMs} and {@code maxPeriodMs};
+	 * see {@link LoopRate}. On by default, between 100 ms and 2 s.
+	 */
+	public void setAdaptiveRate(boolean adaptive, long minPeriodMs, long maxPeriodMs) {
+		LoopRate rate = focusTask.getLoopRate();
+		rate.setLimits(minPeriodMs, maxPeriodMs);
+		rate.setAdaptive(adaptive);
+	}
+
+	public LoopRate getLoopRate() {
+		return focusTask.getLoopRate();
+	}
+
+	/**
+	 * Searches for the beam when it leaves the sensor, up to
+	 * {@code maxRangeUm} each way and for at most {@code timeoutMs}, then
+	 * resumes the lock. On by default, 10 µm and 1 s.
+	 */
+	public void setBeamRecapture(boolean enabled, double maxRangeUm, long timeoutMs) {
+		focusTask.setBeamRecapture(enabled, maxRangeUm, timeoutMs);
+	}
+
+	public BeamDetector getBeamDetector() {
+		return focusTask.getBeamDetector();
+	}
+
+	/**
+	 * Stability statistics of the current lock, see {@link LockStatistics}.
+	 */
+	public LockStatistics getStatistics() {
+		return focusTask.getStatistics();
+	}
+
+	public void setGains(double kp, double ki, double kd) {
+		setProportionalGain(kp);
+		setIntegralGain(ki);
+		setDifferentialGain(kd);
+	}
+
+	// Calibration and lock
+
+	public boolean isCalibrated() {
+		return !Double.isNaN(slopeCal);
+	}
+
+	/**
+	 * Calibration slope in µm per pixel, NaN before the first calibration.
+	 */
+	public double getSlope() {
+		return slopeCal;
+	}
+
+	/**
+	 * Sets the slope directly, e.g. from a calibration stored by a script.
+	 * Drops the lookup table of the last calibration, which belongs to the
+	 * old slope.
+	 */
+	public void setSlope(double slope) {
+		slopeCal = slope;
+		focusTask.setLookupTable(null);
+	}
+
+	/**
+	 * Centroid to Z table of the last calibration, or null when the lock
+	 * uses the slope alone.
+	 */
+	public FocusLookupTable getLookupTable() {
+		return focusTask.getLookupTable();
+	}
+
+	/**
+	 * Replaces the table used from the next lock; null locks on the slope
+	 * alone.
+	 */
+	public void setLookupTable(FocusLookupTable table) {
+		focusTask.setLookupTable(table);
+	}
+
+	/**
+	 * Runs the Z sweep calibration, unlocking first if needed. Completes with
+	 * the slope in µm per pixel, or NaN when the calibration failed.
+	 */
+	public CompletableFuture<Double> calibrate() {
+		CompletableFuture<Double> done = new CompletableFuture<>();
+		submit(done, () -> {
+			if (state == State.CALIBRATING) {
+				done.completeExceptionally(new IllegalStateException("Calibration already running"));
+				return;
+			}
+			if (!awaitStartup(done)) {
+				return;
+			}
+			if (!stageArbiter.claim(this)) {
+				done.completeExceptionally(stageBusy());
+				return;
+			}
+			if (state == State.LOCKED || state == State.PAUSED) {
+				focusTask.stopFocus();
+			}
+			setState(State.CALIBRATING);
+
+			CalibrateTask task = new CalibrateTask(studio, camera, executors.lock());
+			calibrateTask = task;
+			task.setOnCalibrationFinished((slope, intercept) -> {
+				if (!Double.isNaN(slope)) {
+					slopeCal = slope;
+					focusTask.setLookupTable(task.getLookupTable());
+				}
+				calibrateTask = null;
+				stageArbiter.release(this);
+				setState(State.IDLE);
+				fire(calibrationListeners, slope);
+				done.complete(slope);
+			});
+			task.startCalibration();
+		});
+		return done;
+	}
+
+	/**
+	 * Measures the backlash of the focus drive at {@code points} positions
+	 * over {@code rangeUm} around the current one and uses it for the stage
+	 * commands, see {@link StageOutput}. Needs a calibration and an unlocked
+	 * stage. Completes with [positions, backlash] in µm.
+	 */
+	public CompletableFuture<double[][]> measureBacklash(double rangeUm, int points) {
+		CompletableFuture<double[][]> done = new CompletableFuture<>();
+		if (points < 1 || !(rangeUm >= 0) || Double.isInfinite(rangeUm)) {
+			done.completeExceptionally(new IllegalArgumentException(
+					"Need at least 1 point and a finite range >= 0, got " + points + " points over " + rangeUm + " um"));
+			return done;
+		}
+		submit(done, () -> {
+			if (!isCalibrated()) {
+				done.completeExceptionally(new IllegalStateException("Focus lock is not calibrated"));
+				return;
+			}
+			if (state != State.IDLE) {
+				done.completeExceptionally(new IllegalStateException("Focus lock is " + state.toString().toLowerCase()));
+				return;
+			}
+			if (!awaitStartup(done)) {
+				return;
+			}
+			if (!stageArbiter.claim(this)) {
+				done.completeExceptionally(stageBusy());
+				return;
+			}
+			setState(State.CALIBRATING);
+			try {
+				executors.lock().execute(() -> {
+					double[][] profile = null;
+					Throwable failure = null;
+					try {
+						profile = new BacklashTask(studio, camera, focusTask.getStage())
+								.measure(rangeUm, points, slopeCal, focusTask.getLookupTable());
+						if (profile != null) {
+							double[] backlash = profile[1].clone();
+							for (int i = 0; i < backlash.length; i++) {
+								backlash[i] = Math.max(backlash[i], 0); // noise can make a tight drive look negative
+							}
+							focusTask.getStageOutput().setBacklash(profile[0], backlash);
+						}
+					} catch (RuntimeException e) {
+						failure = e;
+						studio.logs().logError(e, "Backlash measurement failed");
+					} finally {
+						stageArbiter.release(this);
+						setState(State.IDLE);
+						if (profile != null && failure == null) {
+							done.complete(profile);
+						} else {
+							done.completeExceptionally(failure != null ? failure
+									: new IllegalStateException("Backlash measurement failed"));
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				stageArbiter.release(this);
+				setState(State.IDLE);
+				done.completeExceptionally(new IllegalStateException("Focus lock engine is shut down"));
+			}
+		});
+		return done;
+	}
+
+	/**
+	 * Dead-band, step size and backlash applied to the stage commands.
+	 */
+	public StageOutput getStageOutput() {
+		return focusTask.getStageOutput();
+	}
+
+	/**
+	 * Takes the current beam position as reference and starts the lock.
+	 * Completes with the reference fit [amplitude, mean, sigma].
+	 */
+	public CompletableFuture<double[]> lock() {
+		CompletableFuture<double[]> done = new CompletableFuture<>();
+		submit(done, () -> {
+			if (!isCalibrated()) {
+				done.completeExceptionally(new IllegalStateException("Focus lock is not calibrated"));
+				return;
+			}
+			if (state == State.CALIBRATING) {
+				done.completeExceptionally(new IllegalStateException("Calibration is running"));
+				return;
+			}
+			if (!awaitStartup(done)) {
+				return;
+			}
+			if (!stageArbiter.claim(this)) {
+				done.completeExceptionally(stageBusy());
+				return;
+			}
+			if (state == State.LOCKED || state == State.PAUSED) {
+				focusTask.stopFocus();
+			}
+			if (!focusTask.startFocus(slopeCal)) {
+				stageArbiter.release(this);
+				setState(State.IDLE);
+				done.completeExceptionally(new IllegalStateException(
+						"No beam to lock on: " + focusTask.getReferenceFailure()));
+				return;
+			}
+			setState(State.LOCKED);
+			done.complete(focusTask.getReference());
+		});
+		return done;
+	}
+
+	public CompletableFuture<Void> unlock() {
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		submit(done, () -> {
+			if (state == State.LOCKED || state == State.PAUSED) {
+				focusTask.stopFocus();
+				stageArbiter.release(this);
+				setState(State.IDLE);
+			}
+			done.complete(null);
+		});
+		return done;
+	}
+
+	/**
+	 * Holds the stage where it is without dropping the reference, e.g. while
+	 * an acquisition runs. Does nothing unless locked. Queued on the command
+	 * thread like lock() and unlock(), so it cannot land between their steps.
+	 */
+	public CompletableFuture<Void> pause() {
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		submit(done, () -> {
+			if (state == State.LOCKED) {
+				focusTask.setPaused(true);
+				setState(State.PAUSED);
+			}
+			done.complete(null);
+		});
+		return done;
+	}
+
+	public CompletableFuture<Void> resume() {
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		submit(done, () -> {
+			if (state == State.PAUSED) {
+				focusTask.setPaused(false);
+				setState(State.LOCKED);
+			}
+			done.complete(null);
+		});
+		return done;
+	}
+
+	/**
+	 * Corrects the focus on the calling thread until the error is below
+	 * {@code toleranceUm} or {@code timeoutMs} has passed. Returns true when
+	 * settled; false when not locked or the timeout expired.
+	 */
+	public boolean settle(double toleranceUm, long timeoutMs) {
+		return settle(toleranceUm, timeoutMs, 0);
+	}
+
+	/**
+	 * As {@link #settle(double, long)}, but settles to the reference plus
+	 * {@code offsetUm}, for acquisitions that start away from the focal plane.
+	 */
+	public boolean settle(double toleranceUm, long timeoutMs, double offsetUm) {
+		if (state != State.LOCKED && state != State.PAUSED) {
+			return false;
+		}
+		return focusTask.settle(toleranceUm, timeoutMs, offsetUm);
+	}
+
+	public AcquisitionFocusHook getAcquisitionHook() {
+		return acquisitionHook;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * True while a reference is held, including while paused.
+	 */
+	public boolean isLocked() {
+		return state == State.LOCKED || state == State.PAUSED;
+	}
+
+	public FocusLockMetrics getMetrics() {
+		SensorConnection connection = camera.getConnection();
+		LoopTiming timing = focusTask.getTiming();
+		StageOutput output = focusTask.getStageOutput();
+		LockStatistics statistics = focusTask.getStatistics();
+		return new FocusLockMetrics(state, connection.getState(), slopeCal,
+				focusTask.getReferenceMean(), focusTask.getMean(), focusTask.getLastError(),
+				focusTask.getCycleCount(), focusTask.getHoldCount(), connection.frameAgeMs(),
+				timing.getMeanPeriodMs(), timing.getRmsJitterMs(), timing.getMaxJitterMs(),
+				output.getSentCount(), output.getAvoidedCount(),
+				statistics.getRmsUm(), statistics.getPeakToPeakUm(), statistics.getDriftUmPerS(),
+				statistics.getMinAllanDeviationUm(), statistics.getBestTauS());
+	}
+
+	/**
+	 * Starts the localhost control and telemetry server, see
+	 * {@link LockControlServer}.
+	 */
+	public synchronized void startRemoteServer(int port) throws IOException {
+		if (remoteServer != null && remoteServer.isRunning()) {
+			return;
+		}
+		remoteServer = new LockControlServer(studio, this, port);
+		remoteServer.start();
+	}
+
+	public synchronized void stopRemoteServer() {
+		if (remoteServer != null) {
+			remoteServer.stop();
+			remoteServer = null;
+		}
+	}
+
+	public Studio getStudio() {
+		return studio;
+	}
+
+	public CameraPollingTask getCamera() {
+		return camera;
+	}
+
+	public FocusTask getFocusTask() {
+		return focusTask;
+	}
+
+	/**
+	 * Lets go of the engine when its panel closes: stops the lock, the sensor
+	 * polling and the remote server, but keeps the sensor open and the
+	 * calibration for the next {@link #obtain(Studio, SensorConfig)}.
+	 */
+	public void release() {
+		if (shutDown) {
+			return;
+		}
+		stopRemoteServer();
+		CalibrateTask task = calibrateTask;
+		if (task != null) {
+			task.cancel();
+		}
+		unlock();
+		stopMonitoring();
+	}
+
+	/**
+	 * Stops the lock, the sensor polling and the remote server, ends all
+	 * threads of the engine and closes the sensor. Called when the plugin
+	 * window is closed; the engine cannot be used afterwards.
+	 */
+	public void shutdown() {
+		shutDown = true;
+		stopRemoteServer();
+		stopRecording();
+		acquisitionHook.uninstall();
+		CalibrateTask task = calibrateTask;
+		if (task != null) {
+			task.cancel();
+		}
+		if (isLocked()) {
+			focusTask.stopFocus();
+			setState(State.IDLE);
+		}
+		stopMonitoring();
+		executors.shutdown();
+		camera.close();
+		stageArbiter.release(this);
+		instances.remove(this);
+		if (instance == this) {
+			instance = instances.isEmpty() ? null : instances.get(0);
+		}
+	}
+
+	private IllegalStateException stageBusy() {
+		Object owner = stageArbiter.getOwner();
+		String holder = owner instanceof FocusLockEngine ? ((FocusLockEngine) owner).config.getName() : String.valueOf(owner);
+		return new IllegalStateException("Stage " + stageArbiter.getStage() + " is in use by focus lock " + holder);
+	}
+
+	/**
+	 * Runs a command on the command thread, failing {@code done} instead of
+	 * throwing once the engine has been shut down.
+	 */
+	private void submit(CompletableFuture<?> done, Runnable command) {
+		try {
+			commands.execute(command);
+		} catch (RejectedExecutionException e) {
+			done.completeExceptionally(new IllegalStateException("Focus lock engine is shut down"));
+		}
+	}
+
+	private void setState(State newState) {
+		if (state == newState) {
+			return;
+		}
+		state = newState;
+		fire(stateListeners, newState);
+	}
+
+	private static <T> void fire(List<Consumer<T>> listeners, T value) {
+		for (Consumer<T> listener : listeners) {
+			listener.accept(value);
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package com.myname.focuslock;
+
+/**
+ * Snapshot of the focus lock state, taken by {@link FocusLockEngine#getMetrics()}.
+ */
+public class FocusLockMetrics {
+	private final FocusLockEngine.State state;
+	private final SensorConnection.State sensorState;
+	private final double slope;
+	private final double referenceMean;
+	private final double mean;
+	private final double error;
+	private final long cycles;
+	private final long holds;
+	private final long frameAgeMs;
+	private final double periodMs;
+	private final double jitterRmsMs;
+	private final double jitterMaxMs;
+	private final long movesSent;
+	private final long movesAvoided;
+	private final double rmsUm;
+	private final double peakToPeakUm;
+	private final double driftUmPerS;
+	private final double allanUm;
+	private final double bestTauS;
+
+	public FocusLockMetrics(FocusLockEngine.State state, SensorConnection.State sensorState, double slope,
+			double referenceMean, double mean, double error, long cycles, long holds, long frameAgeMs,
+			double periodMs, double jitterRmsMs, double jitterMaxMs, long movesSent, long movesAvoided,
+			double rmsUm, double peakToPeakUm, double driftUmPerS, double allanUm, double bestTauS) {
+		this.state = state;
+		this.sensorState = sensorState;
+		this.slope = slope;
+		this.referenceMean = referenceMean;
+		this.mean = mean;
+		this.error = error;
+		this.cycles = cycles;
+		this.holds = holds;
+		this.frameAgeMs = frameAgeMs;
+		this.periodMs = periodMs;
+		this.jitterRmsMs = jitterRmsMs;
+		this.jitterMaxMs = jitterMaxMs;
+		this.movesSent = movesSent;
+		this.movesAvoided = movesAvoided;
+		this.rmsUm = rmsUm;
+		this.peakToPeakUm = peakToPeakUm;
+		this.driftUmPerS = driftUmPerS;
+		this.allanUm = allanUm;
+		this.bestTauS = bestTauS;
+	}
+
+	public FocusLockEngine.State getState() {
+		return state;
+	}
+
+	public SensorConnection.State getSensorState() {
+		return sensorState;
+	}
+
+	/**
+	 * Calibration slope in µm per pixel.
+	 */
+	public double getSlope() {
+		return slope;
+	}
+
+	/**
+	 * Beam centroid at the moment the lock was engaged, in pixels.
+	 */
+	public double getReferenceMean() {
+		return referenceMean;
+	}
+
+	/**
+	 * Latest beam centroid, in pixels.
+	 */
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 * Latest focus error in µm.
+	 */
+	public double getError() {
+		return error;
+	}
+
+	/**
+	 * Number of corrections sent to the stage since the engine was created.
+	 */
+	public long getCycles() {
+		return cycles;
+	}
+
+	/**
+	 * Number of cycles in which the lock held position, e.g. while the sensor reconnected.
+	 */
+	public long getHolds() {
+		return holds;
+	}
+
+	public long getFrameAgeMs() {
+		return frameAgeMs;
+	}
+
+	/**
+	 * Mean time between lock cycles in ms, NaN before the second cycle.
+	 */
+	public double getPeriodMs() {
+		return periodMs;
+	}
+
+	/**
+	 * RMS deviation of the cycle start times from the requested interval, in ms.
+	 */
+	public double getJitterRmsMs() {
+		return jitterRmsMs;
+	}
+
+	/**
+	 * Largest deviation of a cycle start time from the requested interval, in ms.
+	 */
+	public double getJitterMaxMs() {
+		return jitterMaxMs;
+	}
+
+	/**
+	 * Stage commands sent by the lock.
+	 */
+	public long getMovesSent() {
+		return movesSent;
+	}
+
+	/**
+	 * Corrections not sent because they were inside the dead-band or below
+	 * the step size of the stage.
+	 */
+	public long getMovesAvoided() {
+		return movesAvoided;
+	}
+
+	/**
+	 * RMS of the focus error over the last cycles in µm, see
+	 * {@link LockStatistics}.
+	 */
+	public double getRmsUm() {
+		return rmsUm;
+	}
+
+	/**
+	 * Largest minus smallest focus error over the last cycles in µm.
+	 */
+	public double getPeakToPeakUm() {
+		return peakToPeakUm;
+	}
+
+	/**
+	 * Drift of the sample over the last cycles in µm/s, as corrected by the lock.
+	 */
+	public double getDriftUmPerS() {
+		return driftUmPerS;
+	}
+
+	/**
+	 * Lowest Allan deviation of the uncorrected focus in µm since the lock started.
+	 */
+	public double getAllanDeviationUm() {
+		return allanUm;
+	}
+
+	/**
+	 * Averaging time in s at which the Allan deviation is lowest.
+	 */
+	public double getBestTauS() {
+		return bestTauS;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("state=%s, sensor=%s, slope=%.6f um/px, reference=%.3f px, mean=%.3f px, "
+				+ "error=%.2f nm, cycles=%d, holds=%d, frameAge=%d ms, period=%.1f ms, jitter=%.3f ms rms / %.3f ms max, "
+				+ "moves=%d sent / %d avoided, rms=%.2f nm, p-p=%.2f nm, drift=%.2f nm/s, adev=%.2f nm at %.2f s",
+				state, sensorState, slope, referenceMean, mean, error * 1000.0, cycles, holds, frameAgeMs,
+				periodMs, jitterRmsMs, jitterMaxMs, movesSent, movesAvoided, rmsUm * 1000.0, peakToPeakUm * 1000.0,
+				driftUmPerS * 1000.0, allanUm * 1000.0, bestTauS);
+	}
+}
@@ -0,0 +1,272 @@
+package com.myname.focuslock;
+
+import java.util.Arrays;
+
+/**
+ * Dense lookup table from beam position in pixels to focus offset in µm,
+ * built from a calibration sweep. The beam does not move linearly with Z
+ * towards the edges of the sensor, so one slope through the sweep
+ * mis-corrects large drifts; the table follows the measured curve instead.
+ *
+ * The sweep points are first made monotone (pool adjacent violators), then
+ * joined by a monotone cubic (Fritsch-Carlson) and sampled on an even grid,
+ * so a lookup is one multiply and one linear interpolation. Beyond the swept
+ * range the table continues along the least-squares line through the last
+ * few knots at either end.
+ *
+ * Offsets follow the sign convention of the calibration slope:
+ * {@code toUm(mean) - toUm(reference)} is the focus error, and for a linear
+ * sensor it equals {@code (mean - reference) * slope}.
+ */
+public class FocusLookupTable {
+	private static final int DEFAULT_SIZE = 1024;
+	// Knots at each end that set the slope beyond the swept range
+	private static final int END_KNOTS = 4;
+
+	private final double[] table;
+	private final double firstPx;
+	private final double lastPx;
+	private final double cellsPerPx;
+	private final double slopeBelow;
+	private final double slopeAbove;
+
+	private FocusLookupTable(double[] table, double firstPx, double lastPx, double slopeBelow, double slopeAbove) {
+		this.table = table;
+		this.firstPx = firstPx;
+		this.lastPx = lastPx;
+		this.cellsPerPx = (table.length - 1) / (lastPx - firstPx);
+		this.slopeBelow = slopeBelow;
+		this.slopeAbove = slopeAbove;
+	}
+
+	/**
+	 * Builds the table from a sweep: the beam was at {@code pixelMeans[i]}
+	 * with the stage at {@code positionsUm[i]}. Points with a NaN mean are
+	 * skipped. Returns null when fewer than three distinct beam positions
+	 * remain.
+	 */
+	public static FocusLookupTable fromSweep(double[] positionsUm, double[] pixelMeans) {
+		return fromSweep(positionsUm, pixelMeans, DEFAULT_SIZE);
+	}
+
+	public static FocusLookupTable fromSweep(double[] positionsUm, double[] pixelMeans, int size) {
+		int n = 0;
+		double[] z = new double[positionsUm.length];
+		double[] px = new double[positionsUm.length];
+		for (int i = 0; i < positionsUm.length; i++) {
+			if (!Double.isNaN(pixelMeans[i]) && !Double.isNaN(positionsUm[i])) {
+				z[n] = positionsUm[i];
+				px[n] = pixelMeans[i];
+				n++;
+			}
+		}
+		if (n < 3) {
+			return null;
+		}
+
+		// Order by stage position and make the beam position monotone in it
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		final double[] zs = z;
+		Arrays.sort(order, (a, b) -> Double.compare(zs[a], zs[b]));
+		double[] sortedZ = new double[n];
+		double[] sortedPx = new double[n];
+		for (int i = 0; i < n; i++) {
+			sortedZ[i] = z[order[i]];
+			sortedPx[i] = px[order[i]];
+		}
+		boolean increasing = sortedPx[n - 1] >= sortedPx[0];
+		double[] monotonePx = poolAdjacentViolators(sortedPx, increasing);
+
+		// Knots in increasing pixel order; points pooled to one pixel are averaged
+		double[] knotPx = new double[n];
+		double[] knotUm = new double[n];
+		int knots = 0;
+		int pooled = 0;
+		for (int j = 0; j < n; j++) {
+			int i = increasing ? j : n - 1 - j;
+			// The offset moves against the stage: error = -(Z(mean) - Z(reference))
+			double um = -sortedZ[i];
+			if (knots > 0 && monotonePx[i] - knotPx[knots - 1] < 1e-9) {
+				pooled++;
+				knotUm[knots - 1] += (um - knotUm[knots - 1]) / pooled;
+				continue;
+			}
+			knotPx[knots] = monotonePx[i];
+			knotUm[knots] = um;
+			knots++;
+			pooled = 1;
+		}
+		if (knots < 3) {
+			return null;
+		}
+		knotPx = Arrays.copyOf(knotPx, knots);
+		knotUm = Arrays.copyOf(knotUm, knots);
+
+		double[] tangents = monotoneTangents(knotPx, knotUm);
+		double[] table = new double[size];
+		double first = knotPx[0];
+		double last = knotPx[knots - 1];
+		int segment = 0;
+		for (int c = 0; c < size; c++) {
+			double x = first + (last - first) * c / (size - 1);
+			while (segment < knots - 2 && x > knotPx[segment + 1]) {
+				segment++;
+			}
+			table[c] = hermite(knotPx, knotUm, tangents, segment, x);
+		}
+		int end = Math.min(END_KNOTS, knots);
+		return new FocusLookupTable(table, first, last,
+				lineSlope(knotPx, knotUm, 0, end), lineSlope(knotPx, knotUm, knots - end, knots));
+	}
+
+	/**
+	 * Least-squares slope through knots {@code from} to {@code to}
+	 * (exclusive). A single end secant spans one sweep step and carries the
+	 * full noise of two fits; the line through several is steadier.
+	 */
+	private static double lineSlope(double[] x, double[] y, int from, int to) {
+		int n = to - from;
+		double meanX = 0;
+		double meanY = 0;
+		for (int i = from; i < to; i++) {
+			meanX += x[i];
+			meanY += y[i];
+		}
+		meanX /= n;
+		meanY /= n;
+		double sxx = 0;
+		double sxy = 0;
+		for (int i = from; i < to; i++) {
+			sxx += (x[i] - meanX) * (x[i] - meanX);
+			sxy += (x[i] - meanX) * (y[i] - meanY);
+		}
+		return sxy / sxx;
+	}
+
+	/**
+	 * Focus offset in µm of a beam at {@code px}.
+	 */
+	public double toUm(double px) {
+		double u = (px - firstPx) * cellsPerPx;
+		if (u < 0) {
+			return table[0] + (px - firstPx) * slopeBelow;
+		}
+		int last = table.length - 1;
+		if (u >= last) {
+			return table[last] + (px - lastPx) * slopeAbove;
+		}
+		int i = (int) u;
+		double f = u - i;
+		return table[i] + f * (table[i + 1] - table[i]);
+	}
+
+	/**
+	 * Local slope in µm per pixel at {@code px}, in the sign convention of
+	 * the calibration slope.
+	 */
+	public double slopeAt(double px) {
+		double u = (px - firstPx) * cellsPerPx;
+		if (u < 0) {
+			return slopeBelow;
+		}
+		int last = table.length - 1;
+		if (u >= last) {
+			return slopeAbove;
+		}
+		int i = (int) u;
+		return (table[i + 1] - table[i]) * cellsPerPx;
+	}
+
+	/**
+	 * Beam positions covered by the sweep; outside, the table extrapolates.
+	 */
+	public double getFirstPx() {
+		return firstPx;
+	}
+
+	public double getLastPx() {
+		return lastPx;
+	}
+
+	public int getSize() {
+		return table.length;
+	}
+
+	/**
+	 * Least-squares monotone fit: runs of points breaking the order are
+	 * replaced by their mean.
+	 */
+	private static double[] poolAdjacentViolators(double[] y, boolean increasing) {
+		int n = y.length;
+		double[] level = new double[n];
+		int[] weight = new int[n];
+		int blocks = 0;
+		for (int i = 0; i < n; i++) {
+			level[blocks] = increasing ? y[i] : -y[i];
+			weight[blocks] = 1;
+			blocks++;
+			while (blocks > 1 && level[blocks - 2] > level[blocks - 1]) {
+				int w = weight[blocks - 2] + weight[blocks - 1];
+				level[blocks - 2] = (level[blocks - 2] * weight[blocks - 2] + level[blocks - 1] * weight[blocks - 1]) / w;
+				weight[blocks - 2] = w;
+				blocks--;
+			}
+		}
+		double[] out = new double[n];
+		int i = 0;
+		for (int b = 0; b < blocks; b++) {
+			for (int k = 0; k < weight[b]; k++) {
+				out[i++] = increasing ? level[b] : -level[b];
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Fritsch-Carlson tangents, limited so the cubic never overshoots
+	 * between knots.
+	 */
+	private static double[] monotoneTangents(double[] x, double[] y) {
+		int n = x.length;
+		double[] secant = new double[n - 1];
+		for (int i = 0; i < n - 1; i++) {
+			secant[i] = (y[i + 1] - y[i]) / (x[i + 1] - x[i]);
+		}
+		double[] m = new double[n];
+		m[0] = secant[0];
+		m[n - 1] = secant[n - 2];
+		for (int i = 1; i < n - 1; i++) {
+			m[i] = secant[i - 1] * secant[i] <= 0 ? 0 : (secant[i - 1] + secant[i]) / 2;
+		}
+		for (int i = 0; i < n - 1; i++) {
+			if (secant[i] == 0) {
+				m[i] = 0;
+				m[i + 1] = 0;
+				continue;
+			}
+			double a = m[i] / secant[i];
+			double b = m[i + 1] / secant[i];
+			double h = a * a + b * b;
+			if (h > 9) {
+				double t = 3 / Math.sqrt(h);
+				m[i] = t * a * secant[i];
+				m[i + 1] = t * b * secant[i];
+			}
+		}
+		return m;
+	}
+
+	private static double hermite(double[] x, double[] y, double[] m, int i, double at) {
+		double h = x[i + 1] - x[i];
+		double t = (at - x[i]) / h;
+		double t2 = t * t;
+		double t3 = t2 * t;
+		return (2 * t3 - 3 * t2 + 1) * y[i]
+				+ (t3 - 2 * t2 + t) * h * m[i]
+				+ (-2 * t3 + 3 * t2) * y[i + 1]
+				+ (t3 - t2) * h * m[i + 1];
+	}
+}
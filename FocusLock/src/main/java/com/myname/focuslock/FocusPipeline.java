@@ -0,0 +1,479 @@
+package com.myname.focuslock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleUnaryOperator;
+
+import org.micromanager.Studio;
+import mmcorej.CMMCore;
+
+/**
+ * Three-stage variant of the focus loop, used by {@link FocusTask} when
+ * pipelining is enabled. Instead of snap, fit and move in series, each stage
+ * runs on its own thread and hands off through bounded queues:
+ *
+ * acquire - snaps frames at a fixed period (sensor I/O thread)
+ * fit - fits the newest frame and runs the PID (lock thread)
+ * actuate - sends the corrections to the stage (stage I/O thread)
+ *
+ * so frame N+1 exposes while frame N is fitted and the correction of frame
+ * N-1 travels. A frame therefore usually does not yet show the corrections
+ * sent while it was exposed; the fit stage subtracts those from the measured
+ * error before the PID sees it, so the lock does not correct twice. The
+ * acquire period follows the {@link LoopRate}.
+ *
+ * Frames and corrections are recycled through small pools and the fit stage
+ * reuses one fitter, so a frame costs no new frame, move or fitter.
+ */
+class FocusPipeline {
+	interface Listener {
+		/**
+		 * A frame measured {@code errorUm}; {@code appliedZ} is the motion
+		 * the pipeline had applied by the time it was taken.
+		 */
+		void measured(double mean, double errorUm, double appliedZ, long timeNanos);
+
+		void corrected();
+
+		/**
+		 * The stage moved by {@code deltaZ} µm between two frames whose means
+		 * differ by {@code deltaMean} pixels, each known to {@code meanError}.
+		 */
+		void observed(double deltaZ, double deltaMean, double meanError);
+
+		void held(String reason);
+
+		/**
+		 * The beam left the sensor; runs the search with the stage to itself
+		 * and returns true when the beam is back.
+		 */
+		boolean lost(BeamDetector.Verdict verdict);
+	}
+
+	private static final class Frame {
+		double[] data;
+		long timeNanos;
+		long appliedMoves;
+		// Sum of the moves applied before the exposure started
+		double appliedZ;
+		// No move landed during the exposure
+		boolean clean;
+		// Beam searches before the exposure; a search moves the stage under it
+		int searches;
+	}
+
+	private static final class Move {
+		long sequence;
+		double deltaZ;
+	}
+
+	private static final int frameQueueSize = 2;
+	private static final int moveQueueSize = 4;
+	// Corrections remembered for the delay compensation
+	private static final int moveHistory = 64;
+	// Frames in a row the detector must reject before the beam search
+	private static final int lostFramesToSearch = 2;
+
+	private final Studio studio;
+	private final CMMCore core;
+	private final String stage;
+	private final CameraPollingTask camera;
+	private final PidController pid;
+	private final StageOutput output;
+	private final BeamDetector detector;
+	private final Object stepLock;
+	private final BooleanSupplier paused;
+	// Beam search allowed when the beam is lost; otherwise the pipeline holds
+	private final BooleanSupplier recapture;
+	private final LoopTiming timing;
+	private final Listener listener;
+	private final LoopRate rate;
+	private volatile boolean preciseTiming = false;
+
+	private final ArrayBlockingQueue<Frame> frames = new ArrayBlockingQueue<>(frameQueueSize);
+	private final ArrayBlockingQueue<Move> moves = new ArrayBlockingQueue<>(moveQueueSize);
+	// Spare frames and moves; enough for full queues plus the ones in hand
+	private final ArrayBlockingQueue<Frame> freeFrames = new ArrayBlockingQueue<>(frameQueueSize + 2);
+	private final ArrayBlockingQueue<Move> freeMoves = new ArrayBlockingQueue<>(moveQueueSize + 2);
+	private final GaussianFitter fitter;
+	private final double[] issuedPx = new double[moveHistory];
+	private volatile long issued = 0;
+	private volatile long applied = 0;
+	private volatile double appliedZ = 0;
+	// Corrections up to this one were issued before a beam search and are not sent
+	private volatile long discarded = 0;
+	private volatile boolean searching = false;
+	private volatile int searches = 0;
+	// Set by the fit stage when the rate sped up, to cut the current wait short
+	private volatile boolean faster = false;
+	private volatile Thread acquireThread;
+
+	private volatile boolean running = false;
+	private final List<Future<?>> stages = new ArrayList<>();
+	// Focus error in pixels of a fitted mean
+	private DoubleUnaryOperator errorPx;
+	private volatile double calSlope;
+
+	FocusPipeline(Studio studio, CMMCore core, String stage, CameraPollingTask camera, PidController pid,
+			StageOutput output, BeamDetector detector, Object stepLock, BooleanSupplier paused, BooleanSupplier recapture,
+			LoopTiming timing, LoopRate rate, Listener listener) {
+		this.studio = studio;
+		this.core = core;
+		this.stage = stage;
+		this.camera = camera;
+		this.pid = pid;
+		this.output = output;
+		this.detector = detector;
+		this.stepLock = stepLock;
+		this.paused = paused;
+		this.recapture = recapture;
+		this.timing = timing;
+		this.rate = rate;
+		this.listener = listener;
+		this.fitter = new GaussianFitter(camera.getConfig().getPixels());
+	}
+
+	void setPreciseTiming(boolean precise) {
+		this.preciseTiming = precise;
+	}
+
+	/**
+	 * Replaces the slope used for the corrections sent from now on.
+	 */
+	void setSlope(double calSlope) {
+		this.calSlope = calSlope;
+	}
+
+	void start(DoubleUnaryOperator errorPx, double calSlope, ExecutorService lock, ExecutorService io) {
+		this.errorPx = errorPx;
+		this.calSlope = calSlope;
+		running = true;
+		try {
+			stages.add(io.submit(this::acquireLoop));
+			stages.add(lock.submit(this::fitLoop));
+			stages.add(io.submit(this::actuateLoop));
+		} catch (RejectedExecutionException e) {
+			stop();
+		}
+	}
+
+	/**
+	 * Stops all stages. A move already sent to the stage completes; callers
+	 * wait for it by taking the step lock.
+	 */
+	void stop() {
+		running = false;
+		for (Future<?> future : stages) {
+			future.cancel(true);
+		}
+		stages.clear();
+		frames.clear();
+		moves.clear();
+	}
+
+	private void acquireLoop() {
+		acquireThread = Thread.currentThread();
+		long deadline = System.nanoTime();
+		long periodNanos = TimeUnit.MILLISECONDS.toNanos(rate.getPeriodMs());
+		while (running) {
+			if (paused.getAsBoolean() || searching) {
+				timing.restart();
+				sleepUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100));
+				deadline = System.nanoTime();
+				continue;
+			}
+
+			long start = System.nanoTime();
+			timing.record(periodNanos, start - deadline + periodNanos, start);
+			long appliedBefore = applied;
+			double zBefore = appliedZ;
+			int searchesBefore = searches;
+			Frame frame = freeFrames.poll();
+			if (frame == null) {
+				frame = new Frame();
+			}
+			double[] data = camera.snapFiltered(frame.data);
+			if (data != null) {
+				frame.data = data;
+			}
+			if (data != null && camera.isConnected()) {
+				frame.timeNanos = start;
+				frame.appliedMoves = appliedBefore;
+				frame.appliedZ = zBefore;
+				frame.clean = applied == appliedBefore;
+				frame.searches = searchesBefore;
+				// Keep the newest frames: a stale frame is worth less than a fresh one
+				while (!frames.offer(frame)) {
+					recycle(frames.poll());
+				}
+			} else {
+				recycle(frame);
+				if (running) {
+					listener.held("light sensor " + camera.getConnection().getState().toString().toLowerCase());
+				}
+			}
+
+			periodNanos = TimeUnit.MILLISECONDS.toNanos(rate.getPeriodMs());
+			deadline += periodNanos;
+			if (deadline - System.nanoTime() < 0) {
+				deadline = System.nanoTime(); // overran, do not try to catch up
+			}
+			while (running && !sleepUntil(deadline)) {
+				// The rate sped up: the frame is due one new period after the last
+				long shorter = TimeUnit.MILLISECONDS.toNanos(rate.getPeriodMs());
+				if (shorter < periodNanos) {
+					deadline -= periodNanos - shorter;
+					periodNanos = shorter;
+				}
+			}
+		}
+	}
+
+	private void fitLoop() {
+		long previousTime = -1;
+		// Applied motion of the last frame taken with the stage at rest, for
+		// the slope estimate, and of the last frame; NaN when there is none
+		double previousCleanZ = Double.NaN;
+		double previousMean = Double.NaN;
+		double previousZ = Double.NaN;
+		int lostFrames = 0;
+		boolean searched = false;
+		while (running) {
+			Frame frame;
+			try {
+				frame = frames.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (frame == null) {
+				continue;
+			}
+			try {
+				if (frame.searches != searches) {
+					continue;
+				}
+				if (paused.getAsBoolean()) {
+					previousTime = -1;
+					previousCleanZ = Double.NaN;
+					previousZ = Double.NaN;
+					continue;
+				}
+
+				fitter.setData(frame.data);
+				double[] fit = fitter.fit();
+				double mean = fit[1];
+				BeamDetector.Verdict verdict = detector.check(frame.data, fit);
+				if (verdict == BeamDetector.Verdict.OK) {
+					lostFrames = 0;
+					searched = false;
+				} else {
+					lostFrames++;
+					hurry();
+					boolean found = false;
+					if (lostFrames >= lostFramesToSearch && recapture.getAsBoolean() && !searched) {
+						searched = true;
+						found = search(verdict);
+					}
+					boolean atEdge = verdict == BeamDetector.Verdict.EDGE_LOW || verdict == BeamDetector.Verdict.EDGE_HIGH;
+					if (found || !atEdge || Double.isNaN(mean) || searched) {
+						previousTime = -1;
+						previousCleanZ = Double.NaN;
+						previousZ = Double.NaN;
+						if (found) {
+							lostFrames = 0;
+							searched = false;
+						} else {
+							listener.held("beam lost (" + verdict.toString().toLowerCase() + ")");
+						}
+						continue;
+					}
+				}
+				if (Double.isNaN(mean)) {
+					previousTime = -1;
+					previousCleanZ = Double.NaN;
+					previousZ = Double.NaN;
+					listener.held("fit failed: " + fitter.getFailure());
+					continue;
+				}
+				double error = errorPx.applyAsDouble(mean);
+				listener.measured(mean, error * calSlope, frame.appliedZ, frame.timeNanos);
+				if (Double.isNaN(previousZ)) {
+					rate.restart();
+				}
+				long periodBefore = rate.getPeriodMs();
+				rate.update(error * calSlope, Double.isNaN(previousZ) ? 0 : frame.appliedZ - previousZ,
+						frame.timeNanos);
+				if (rate.getPeriodMs() < periodBefore) {
+					wakeAcquisition();
+				}
+				previousZ = frame.appliedZ;
+				if (frame.clean) {
+					if (!Double.isNaN(previousCleanZ)) {
+						listener.observed(frame.appliedZ - previousCleanZ, mean - previousMean,
+								fitter.getMeanError());
+					}
+					previousCleanZ = frame.appliedZ;
+					previousMean = mean;
+				}
+
+				// Corrections sent after this frame started exposing are not in it yet
+				double compensated = error;
+				long pending = Math.min(issued - frame.appliedMoves, moveHistory);
+				for (long k = issued - pending + 1; k <= issued; k++) {
+					compensated -= issuedPx[(int) (k % moveHistory)];
+				}
+
+				double deltaTime = previousTime < 0 ? rate.getPeriodMs() / 1e3 : (frame.timeNanos - previousTime) / 1e9;
+				previousTime = frame.timeNanos;
+				double correction = pid.update(compensated, deltaTime);
+
+				long sequence = issued + 1;
+				issuedPx[(int) (sequence % moveHistory)] = correction;
+				issued = sequence;
+				Move move = freeMoves.poll();
+				if (move == null) {
+					move = new Move();
+				}
+				move.sequence = sequence;
+				move.deltaZ = correction * calSlope;
+				try {
+					// Blocks when the stage falls behind, instead of dropping a relative move
+					boolean sent = false;
+					while (running && !sent) {
+						sent = moves.offer(move, 100, TimeUnit.MILLISECONDS);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			} finally {
+				recycle(frame);
+			}
+		}
+	}
+
+	private void recycle(Frame frame) {
+		if (frame != null) {
+			freeFrames.offer(frame);
+		}
+	}
+
+	/**
+	 * Fastest rate from the next frame on.
+	 */
+	private void hurry() {
+		long periodBefore = rate.getPeriodMs();
+		rate.hurry();
+		if (rate.getPeriodMs() < periodBefore) {
+			wakeAcquisition();
+		}
+	}
+
+	private void wakeAcquisition() {
+		Thread thread = acquireThread;
+		if (thread != null) {
+			faster = true;
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Stops acquisition and the stage output, drops the frames and
+	 * corrections of before, and lets the listener search for the beam.
+	 */
+	private boolean search(BeamDetector.Verdict verdict) {
+		searching = true;
+		try {
+			boolean found;
+			synchronized (stepLock) {
+				moves.clear();
+				discarded = issued;
+				applied = issued;
+				found = listener.lost(verdict);
+			}
+			frames.clear();
+			return found;
+		} finally {
+			searches++;
+			searching = false;
+		}
+	}
+
+	private void actuateLoop() {
+		List<Move> batch = new ArrayList<>();
+		while (running) {
+			Move move;
+			try {
+				move = moves.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (move == null) {
+				continue;
+			}
+			// Corrections that queued up meanwhile go out as one move
+			batch.clear();
+			batch.add(move);
+			moves.drainTo(batch);
+			double deltaZ = 0;
+			for (Move m : batch) {
+				deltaZ += m.deltaZ;
+			}
+			long last = batch.get(batch.size() - 1).sequence;
+			for (Move m : batch) {
+				freeMoves.offer(m);
+			}
+
+			synchronized (stepLock) {
+				if (!running) {
+					return;
+				}
+				if (last <= discarded) {
+					continue; // issued before a beam search
+				}
+				try {
+					double position = core.getPosition(stage);
+					double command = output.plan(position, deltaZ);
+					if (command != 0) {
+						core.setPosition(stage, position + command);
+						core.waitForDevice(stage);
+					}
+					appliedZ += output.getLastMotionUm();
+					listener.corrected();
+				} catch (Exception e) {
+					studio.logs().showError("Stage movement failed: " + e.getMessage());
+					listener.held("stage movement failed");
+				}
+			}
+			applied = last;
+		}
+	}
+
+	/**
+	 * Returns false when cut short because the rate sped up.
+	 */
+	private boolean sleepUntil(long deadlineNanos) {
+		long margin = preciseTiming ? 2_000_000 : 0;
+		long remaining;
+		while (running && (remaining = deadlineNanos - margin - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+			if (Thread.currentThread().isInterrupted()) {
+				return true;
+			}
+			if (faster) {
+				faster = false;
+				return false;
+			}
+		}
+		if (preciseTiming && running) {
+			SpinWait.until(deadlineNanos);
+		}
+		return true;
+	}
+}
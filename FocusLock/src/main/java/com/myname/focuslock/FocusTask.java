@@ -1,6 +1,11 @@
 package com.myname.focuslock;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.lang.Math;
 
@@ -12,137 +17,879 @@ public class FocusTask {
 	private CMMCore core;
 	private CameraPollingTask camera;
 	
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService io;
+    // The last correction, still travelling while the loop waits for the next cycle
+    private CompletableFuture<Void> pendingMove = CompletableFuture.completedFuture(null);
+    private final Object scheduleLock = new Object();
+    private ScheduledFuture<?> nextStep;
+    // Bumped by every start and stop; steps of an older run drop out
+    private volatile int run = 0;
+    private final LoopTiming timing = new LoopTiming();
+    private final LockStatistics statistics = new LockStatistics();
+    // Stage position (sequential) or applied motion (pipeline) at the last sample
+    private double statisticsZ = Double.NaN;
+    private volatile boolean preciseTiming = false;
+    private volatile boolean pipelined = false;
+    private volatile long pipelinePeriodMs = 100;
+    // Period of the sequential loop while the rate is not adapted
+    private static final long stepPeriodMs = 1000;
+    private final LoopRate rate = new LoopRate(100, 2000);
+    private FocusPipeline pipeline;
+    // In precise mode the timer wakes up this early and the rest is spun
+    private static final long spinMarginNanos = 2_000_000;
     
     private String stage;
-    private double calSlope = 0;
+    private volatile double calSlope = 0;
     private double refMean = 0;
+    private double[] reference;
+    private String referenceFailure;
+    // Nonlinear calibration; null uses the slope alone
+    private volatile FocusLookupTable lookupTable;
+    private FocusLookupTable activeTable;
+    private double tableReferenceUm = 0;
+    private double tableSlope = 0;
     private double mean = 0;
-    private boolean start = false;
+    // Reused by every step on the lock thread, so a cycle allocates no frame
+    private final GaussianFitter fitter;
+    private double[] lockFrame;
+    private volatile boolean start = false;
+    private volatile boolean paused = false;
+    private final Object stepLock = new Object();
+    // settle() gives up after this many frames in a row without a measurement
+    private static final int settleMaxFailures = 3;
+    private static final long settleRetryMs = 50;
     private Consumer<Double> onErrorUpdate;
+    private Consumer<Double> onSlopeUpdate;
+    
+    // Online refinement of the calibration slope from the corrections
+    private final SlopeEstimator slopeEstimator = new SlopeEstimator();
+    private volatile boolean onlineCalibration = true;
+    private boolean havePrevious = false;
+    private double previousMean = 0;
+    private double previousMove = 0;
 
-    // PID constants
-    private double Kp = 0;
-    private double Ki = 0;
-    private double Kd = 0;
-    
-    // PID state
-    private double integral = 0;
-    private double previousError = 0;
+    private final PidController pid = new PidController();
+    private final StageOutput stageOutput = new StageOutput();
+    
+    // Lost beam: frames in a row the detector must reject before the search
+    private static final int lostFramesToSearch = 2;
+    private final BeamDetector detector = new BeamDetector();
+    private final BeamSearch beamSearch;
+    private volatile boolean recapture = true;
+    private int lostFrames = 0;
+    // One search per loss; the next needs the beam seen in between
+    private boolean searched = false;
+    private volatile long recaptures = 0;
     private long previousTime = 0;
     
+    // Metrics
+    private volatile long cycles = 0;
+    private volatile long holds = 0;
+    private static final long HOLD_LOG_INTERVAL_MS = 30000;
+    private final Object holdLock = new Object();
+    private String holdReason;
+    private long holdLoggedMs;
+    private long holdRepeats;
+    private volatile double lastError = 0;
     
-    public FocusTask(Studio studio, CameraPollingTask camera) {
+    public FocusTask(Studio studio, CameraPollingTask camera, ScheduledExecutorService scheduler, ExecutorService io) {
     	this.studio = studio;
     	this.core = studio.core();
-    	this.camera = camera;    	
+    	this.camera = camera;
+    	this.scheduler = scheduler;
+    	this.io = io;
     	
     	try {
     		this.stage = core.getFocusDevice();
     	} catch(Exception e) {
     		studio.logs().showError("Could not find focus stage: " + e.toString());
     	}
+    	this.beamSearch = new BeamSearch(studio, core, stage, camera, io, detector);
+    	this.fitter = new GaussianFitter(camera.getConfig().getPixels());
     }
     
     public void setOnErrorUpdate(Consumer<Double> callback) {
         this.onErrorUpdate = callback;
     }
     
+    /**
+     * Called with the new slope in µm per pixel whenever the online estimate
+     * replaces the calibration.
+     */
+    public void setOnSlopeUpdate(Consumer<Double> callback) {
+        this.onSlopeUpdate = callback;
+    }
+    
     public void setProportionalGain(double Kp) {
-    	this.Kp = Kp;
+    	pid.setProportionalGain(Kp);
     }
     
     public void setIntegratoinGain(double Ki) {
-    	this.Ki = Ki;
+    	pid.setIntegralGain(Ki);
     }
     
     public void setDifferentialGain(double Kd) {
-    	this.Kd = Kd;
+    	pid.setDifferentialGain(Kd);
     }
     
-    public double[] startFocus(double slopeCal) {
+    /**
+     * Fits the current beam as reference and starts the loop. Returns false,
+     * without starting, when there is no beam to fit; {@link #getReferenceFailure()}
+     * then says why.
+     */
+    public boolean startFocus(double slopeCal) {
     	calSlope = slopeCal;
-    	double[] result = new double[3];
+    	// A pause belongs to the lock it was made in
+    	paused = false;
+    	havePrevious = false;
+    	stageOutput.reset();
+    	reference = null;
+    	referenceFailure = null;
+    	refMean = Double.NaN;
+    	double[] result;
     	try {
-    		short[] data = camera.snapOnce();
-            result = new GaussianFitter(data).fit();
+    		camera.resetLockFilter();
+    		double[] data = camera.snapFiltered();
+    		GaussianFitter fitter = new GaussianFitter(data);
+            result = fitter.fit();
+            if (Double.isNaN(result[1])) {
+            	referenceFailure = "fit failed: " + fitter.getFailure();
+            	return false;
+            }
             refMean = result[1];
     	} catch(Exception e) {
-    		studio.logs().showError("Image acquisition failed: " + e.toString());
+    		referenceFailure = "image acquisition failed: " + e.toString();
+    		return false;
+    	}
+    	reference = result;
+    	detector.setReference(result[0], result[2]);
+    	lostFrames = 0;
+    	searched = false;
+    	FocusLookupTable table = Double.isNaN(refMean) ? null : lookupTable;
+    	if (table != null && table.slopeAt(refMean) != 0) {
+    		// Errors are scaled to pixels at the reference, where the table and the slope agree
+    		tableReferenceUm = table.toUm(refMean);
+    		tableSlope = table.slopeAt(refMean);
+    		calSlope = tableSlope;
+    	} else {
+    		table = null;
+    	}
+    	activeTable = table;
+    	synchronized (holdLock) {
+    		holdReason = null;
+    	}
+    	slopeEstimator.reset(calSlope);
+    	statistics.reset();
+    	statisticsZ = Double.NaN;
+    	synchronized (scheduleLock) {
+    		start = true;
+    		++run;
+    		rate.reset(pipelined ? pipelinePeriodMs : stepPeriodMs);
+    		if (pipelined) {
+    			startPipeline();
+    		} else {
+    			schedule(run, 0);
+    		}
+    	}
+    	return true;
+    }
+    
+    /**
+     * Reference fit [amplitude, mean, sigma] of the running lock, null when
+     * the last {@link #startFocus(double)} failed.
+     */
+    public double[] getReference() {
+    	return reference;
+    }
+    
+    /**
+     * Why the last {@link #startFocus(double)} failed, or null.
+     */
+    public String getReferenceFailure() {
+    	return referenceFailure;
+    }
+    
+    private void startPipeline() {
+    	pipeline = new FocusPipeline(studio, core, stage, camera, pid, stageOutput, detector, stepLock, () -> paused, () -> recapture, timing,
+    			rate, new FocusPipeline.Listener() {
+    		@Override
+    		public void measured(double newMean, double errorUm, double appliedZ, long timeNanos) {
+    			mean = newMean;
+    			lastError = errorUm;
+    			onErrorUpdate.accept(lastError);
+    			statistics.add(errorUm, Double.isNaN(statisticsZ) ? 0 : appliedZ - statisticsZ, timeNanos);
+    			statisticsZ = appliedZ;
+    		}
+    		
+    		@Override
+    		public void corrected() {
+    			cycles++;
+    			holdEnded();
+    		}
+    		
+    		@Override
+    		public void observed(double deltaZ, double deltaMean, double meanError) {
+    			observeSlope(deltaZ, deltaMean, meanError);
+    		}
+    		
+    		@Override
+    		public boolean lost(BeamDetector.Verdict verdict) {
+    			double startZ;
+    			try {
+    				startZ = core.getPosition(stage);
+    			} catch (Exception e) {
+    				studio.logs().showError("Failed to get stage position: " + e.getMessage());
+    				return false;
+    			}
+    			return searchBeam(startZ, verdict);
+    		}
+    		
+    		@Override
+    		public void held(String reason) {
+    			reportHold(reason);
+    		}
+    	});
+    	pipeline.setPreciseTiming(preciseTiming);
+    	pipeline.start(this::errorPx, calSlope, scheduler, io);
+    }
+    
+    /**
+     * Schedules the next step of {@code stepRun}, unless the lock was stopped
+     * or restarted in the meantime.
+     */
+    private void schedule(int stepRun, long delayMs) {
+    	synchronized (scheduleLock) {
+    		if (stepRun != run || !start) {
+    			return;
+    		}
+    		long scheduledAt = System.nanoTime();
+    		long delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMs);
+    		long wakeNanos = (preciseTiming && delayNanos > spinMarginNanos) ? delayNanos - spinMarginNanos : delayNanos;
+    		try {
+    			nextStep = scheduler.schedule(() -> focussing(stepRun, scheduledAt, delayNanos),
+    					wakeNanos, TimeUnit.NANOSECONDS);
+    		} catch (RejectedExecutionException e) {
+    			start = false; // engine shut down
+    		}
+    	}
+    }
+    
+    private void focussing(int stepRun, long scheduledAt, long delayNanos) {
+    	if (stepRun != run) {
+    		return;
+    	}
+    	if (preciseTiming) {
+    		SpinWait.until(scheduledAt + delayNanos);
+    	}
+    	long startNanos = System.nanoTime();
+    	if (delayNanos > 0) {
+    		timing.record(delayNanos, startNanos - scheduledAt, startNanos);
+    	}
+    	
+    	if (paused) {
+    		// Acquisition in progress: leave the stage alone until resumed
+    		previousTime = 0;
+    		havePrevious = false;
+    		timing.restart();
+    		schedule(stepRun, 1000);
+    		return;
+    	}
+    	
+    	synchronized (stepLock) {
+    		try {
+    			focusStep(stepRun);
+    		} catch (RejectedExecutionException e) {
+    			// engine shut down mid-step
+    		}
     	}
-    	start = true;
-    	scheduler.execute(this::focussing);
-    	return result;
     }
     
-    private void focussing() {
+    private void focusStep(int stepRun) {
     	double startZ;
-    	double deltaZ;
     	
-    	if (!start) {
+    	if (stepRun != run) {
     		return;
     	}
     	
+    	// The previous correction must have arrived before the next exposure.
+    	// The stage is then read while the sensor exposes: separate cores, separate devices
+    	if (!awaitMove()) {
+    		havePrevious = false;
+    	}
+    	CompletableFuture<Double> position = readPosition();
+    	double[] data = camera.snapFiltered(lockFrame);
+    	if (data == null || !camera.isConnected()) {
+    		holdPosition(stepRun, "light sensor " + camera.getConnection().getState().toString().toLowerCase());
+    		return;
+    	}
+    	lockFrame = data;
+    	
+    	double meanError;
+    	double[] result;
+    	String fitFailure;
     	try {
-    		short[] data = camera.snapOnce();
-            double[] result = new GaussianFitter(data).fit();
+    		fitter.setData(data);
+            result = fitter.fit();
             mean = result[1];
+            meanError = fitter.getMeanError();
+            fitFailure = fitter.getFailure();
             
     	} catch(Exception e) {
     		studio.logs().showError("Image acquisition failed: " + e.toString());
+    		holdPosition(stepRun, "fit failed");
     		return;
     	}
     	
-    	double error = mean - refMean;
-    	onErrorUpdate.accept(error * calSlope);
-    	long currentTime = System.currentTimeMillis();
-    	double deltaTime = (previousTime == 0) ? 1.0 : (currentTime - previousTime) / 1000.0; // seconds
-    	previousTime = currentTime;
+    	BeamDetector.Verdict verdict = detector.check(data, result);
+    	if (verdict == BeamDetector.Verdict.OK) {
+    		lostFrames = 0;
+    		searched = false;
+    	} else {
+    		lostFrames++;
+    		rate.hurry();
+    		if (lostFrames >= lostFramesToSearch && recapture && !searched) {
+    			searched = true;
+    			if (recoverBeam(stepRun, position, verdict)) {
+    				return;
+    			}
+    		}
+    		// A beam at the edge with a sound fit is still corrected towards the centre
+    		boolean atEdge = verdict == BeamDetector.Verdict.EDGE_LOW || verdict == BeamDetector.Verdict.EDGE_HIGH;
+    		if (!atEdge || Double.isNaN(mean) || searched) {
+    			holdPosition(stepRun, "beam lost (" + verdict.toString().toLowerCase() + ")", rate.getMinPeriodMs());
+    			return;
+    		}
+    	}
     	
-    	// PID calculation
-    	integral += error * deltaTime;
-    	double derivative = (deltaTime > 0) ? (error - previousError) / deltaTime : 0;
-    	previousError = error;
+    	if (Double.isNaN(mean)) {
+    		holdPosition(stepRun, "fit failed: " + fitFailure);
+    		return;
+    	}
     	
+    	if (havePrevious) {
+    		observeSlope(previousMove, mean - previousMean, meanError);
+    	} else {
+    		rate.restart();
+    	}
     	
-    	deltaZ = (Kp * error) + (Ki * integral) + (Kd * derivative);
+    	double error = errorPx(mean);
+    	lastError = error * calSlope;
+    	onErrorUpdate.accept(lastError);
+    	long sampleNanos = System.nanoTime();
+    	long periodMs = rate.update(lastError, havePrevious ? previousMove : 0, sampleNanos);
+    	long currentTime = System.currentTimeMillis();
+    	double deltaTime = (previousTime == 0) ? rate.getPeriodMs() / 1000.0 : (currentTime - previousTime) / 1000.0; // seconds
+    	previousTime = currentTime;
     	
-		deltaZ = deltaZ * calSlope;
-		
     	try {
-    		startZ = core.getPosition(stage);
-    	} catch (Exception e) {
-    		studio.logs().showError("Failed to get stage position: " + e.getMessage());
+    		startZ = position.join();
+    	} catch (CompletionException e) {
+    		studio.logs().showError("Failed to get stage position: " + e.getCause().getMessage());
+    		holdPosition(stepRun, "stage position unavailable");
     		return;
     	}
     	
-    	double newZ = startZ + deltaZ;
+    	// The stage position catches every move, also those of settling and searching
+    	statistics.add(lastError, Double.isNaN(statisticsZ) ? 0 : startZ - statisticsZ, sampleNanos);
+    	statisticsZ = startZ;
     	
-    	try {
-    		core.setPosition(stage, newZ);
+    	double command = command(pid, stageOutput, error, deltaTime, calSlope, startZ);
+    	double newZ = startZ + command;
+    	
+    	// Sent without waiting: the stage travels during the delay before the next cycle
+    	if (command != 0) {
+    		pendingMove = move(newZ);
+    	}
+    	previousMean = mean;
+    	previousMove = stageOutput.getLastMotionUm();
+    	havePrevious = true;
 //    		studio.logs().logMessage(
 //			    String.format(
-//			        "PID Debug | error=%.6f, deltaTime=%.4fs, integral=%.6f, derivative=%.6f, " +
-//			        "OldZ=%.6f, deltaZ=%.6f, NewZ=%.6f",
-//			        error, deltaTime, integral, derivative,
-//			        startZ, deltaZ, newZ
+//			        "PID Debug | error=%.6f, deltaTime=%.4fs, OldZ=%.6f, command=%.6f, NewZ=%.6f",
+//			        error, deltaTime, startZ, command, newZ
 //			    )
 //			);
 
-//    		Thread.sleep(1000); // Give hardware a moment to settle
-    	} catch (Exception e) {
-    		studio.logs().showError("Stage movement failed: " + e.getMessage());
+    	cycles++;
+    	holdEnded();
+	    schedule(stepRun, periodMs);
+    }
+    
+    /**
+     * Stage move in µm for a focus error of {@code errorPx} pixels with the
+     * stage at {@code z}: the PID runs on the pixel error, its output is
+     * scaled to µm by the slope and then shaped by the stage output.
+     */
+    static double command(PidController pid, StageOutput output, double errorPx, double deltaTime, double calSlope,
+    		double z) {
+    	return output.plan(z, pid.update(errorPx, deltaTime) * calSlope);
+    }
+    
+    /**
+     * Counts a cycle without correction. The log gets the start of a hold;
+     * while it lasts, e.g. a beam that stays lost, the latest reason is
+     * repeated at most every {@code HOLD_LOG_INTERVAL_MS} with the number of
+     * cycles held since.
+     */
+    private void reportHold(String reason) {
+    	holds++;
+    	long now = System.currentTimeMillis();
+    	synchronized (holdLock) {
+    		if (holdReason == null) {
+    			studio.logs().logMessage("Focus lock holding position: " + reason);
+    			holdLoggedMs = now;
+    			holdRepeats = 0;
+    		} else if (now - holdLoggedMs >= HOLD_LOG_INTERVAL_MS) {
+    			studio.logs().logMessage("Focus lock still holding position: " + reason
+    					+ " (" + (holdRepeats + 1) + " cycles since the last message)");
+    			holdLoggedMs = now;
+    			holdRepeats = 0;
+    		} else {
+    			holdRepeats++;
+    		}
+    		holdReason = reason;
+    	}
+    }
+    
+    /**
+     * Logs the end of a hold once the lock corrects again.
+     */
+    private void holdEnded() {
+    	synchronized (holdLock) {
+    		if (holdReason != null) {
+    			studio.logs().logMessage("Focus lock correcting again after holding: " + holdReason);
+    			holdReason = null;
+    		}
+    	}
+    }
+    
+    private CompletableFuture<Double> readPosition() {
+    	return CompletableFuture.supplyAsync(() -> {
+    		try {
+    			return core.getPosition(stage);
+    		} catch (Exception e) {
+    			throw new CompletionException(e);
+    		}
+    	}, io);
+    }
+    
+    private CompletableFuture<Void> move(double z) {
+    	return CompletableFuture.runAsync(() -> {
+    		try {
+    			core.setPosition(stage, z);
+    			core.waitForDevice(stage);
+    		} catch (Exception e) {
+    			throw new CompletionException(e);
+    		}
+    	}, io);
+    }
+    
+    /**
+     * Feeds one correction and its effect to the slope estimate, and adopts
+     * the estimate once it has converged. The estimate is only adopted within
+     * a factor of two of the calibration, so a bad stretch of data cannot
+     * turn the lock unstable. {@code meanError} is the standard error of one
+     * fitted mean; their difference has twice the variance.
+     *
+     * Filtered frames show only part of a move by the next frame (1/N of it
+     * for a depth-N mean), which would inflate the slope and with it the
+     * loop gain, so no estimate is made while a lock filter is set.
+     */
+    private void observeSlope(double deltaZ, double deltaMean, double meanError) {
+    	if (camera.hasLockFilter()) {
+    		return;
+    	}
+    	if (!slopeEstimator.update(deltaZ, deltaMean, Math.sqrt(2) * meanError)
+    			|| !onlineCalibration || !slopeEstimator.isConverged()) {
+    		return;
+    	}
+    	double calibrated = slopeEstimator.getCalibratedSlope();
+    	double estimate = slopeEstimator.getSlope();
+    	double ratio = estimate / calibrated;
+    	if (!(ratio >= 0.5 && ratio <= 2)) {
     		return;
     	}
-	    scheduler.schedule(this::focussing, 1000, java.util.concurrent.TimeUnit.MILLISECONDS); // 1.0s between steps
+    	calSlope = estimate;
+    	synchronized (scheduleLock) {
+    		if (pipeline != null) {
+    			pipeline.setSlope(estimate);
+    		}
+    	}
+    	if (onSlopeUpdate != null) {
+    		onSlopeUpdate.accept(estimate);
+    	}
+    }
+    
+    /**
+     * Waits until the last correction has reached the stage. Returns false
+     * when it failed.
+     */
+    private boolean awaitMove() {
+    	boolean arrived = true;
+    	try {
+    		pendingMove.join();
+    	} catch (CompletionException e) {
+    		studio.logs().showError("Stage movement failed: " + e.getCause().getMessage());
+    		holds++;
+    		arrived = false;
+    	}
+    	pendingMove = CompletableFuture.completedFuture(null);
+    	return arrived;
+    }
+    
+    /**
+     * Runs the beam search from the current stage position. Returns true
+     * when the beam is back and the next step is scheduled.
+     */
+    private boolean recoverBeam(int stepRun, CompletableFuture<Double> position, BeamDetector.Verdict verdict) {
+    	double startZ;
+    	try {
+    		startZ = position.join();
+    	} catch (CompletionException e) {
+    		studio.logs().showError("Failed to get stage position: " + e.getCause().getMessage());
+    		return false;
+    	}
+    	if (!searchBeam(startZ, verdict)) {
+    		return false;
+    	}
+    	schedule(stepRun, rate.getMinPeriodMs());
+    	return true;
+    }
+    
+    /**
+     * Searches for the beam and restarts the loop state that the jump in Z
+     * invalidates. Returns true when the beam was found.
+     */
+    private boolean searchBeam(double startZ, BeamDetector.Verdict verdict) {
+    	studio.logs().logMessage("Focus lock lost the beam (" + verdict.toString().toLowerCase() + "), searching");
+    	boolean found = beamSearch.search(startZ, calSlope, verdict);
+    	stageOutput.reset();
+    	camera.resetLockFilter();
+    	havePrevious = false;
+    	previousTime = 0;
+    	rate.restart();
+    	rate.hurry();
+    	if (found) {
+    		recaptures++;
+    		lostFrames = 0;
+    		searched = false;
+    	}
+    	return found;
+    }
+    
+    /**
+     * Leaves the stage where it is and retries on the next cycle. The PID
+     * timing restarts so the gap does not show up as a derivative kick.
+     */
+    private void holdPosition(int stepRun, String reason) {
+    	holdPosition(stepRun, reason, 1000);
+    }
+    
+    private void holdPosition(int stepRun, String reason, long retryMs) {
+    	reportHold(reason);
+    	previousTime = 0;
+    	havePrevious = false;
+    	schedule(stepRun, retryMs);
+    }
+    
+    /**
+     * Pauses or resumes the periodic correction. While paused the reference
+     * and PID state are kept, so resuming continues the same lock.
+     */
+    public void setPaused(boolean paused) {
+    	this.paused = paused;
+    }
+    
+    public boolean isPaused() {
+    	return paused;
+    }
+    
+    /**
+     * Moves the stage directly by the calibrated error until the focus is
+     * within {@code toleranceUm} of the reference plus {@code offsetUm}, or
+     * until {@code timeoutMs} has passed. Runs on the calling thread and
+     * bypasses the PID gains and the frame filter, so it converges in a few
+     * frames. Returns true when settled.
+     */
+    public boolean settle(double toleranceUm, long timeoutMs, double offsetUm) {
+    	if (!start) {
+    		return false;
+    	}
+    	long deadline = System.currentTimeMillis() + timeoutMs;
+    	
+    	synchronized (stepLock) {
+    		awaitMove();
+    		// The settling moves are not corrections of the loop
+    		havePrevious = false;
+    		int failures = 0;
+    		while (start && System.currentTimeMillis() < deadline) {
+    			double error = measureError();
+    			if (Double.isNaN(error)) {
+    				// No sensor or no beam: give up soon instead of spinning until the timeout
+    				if (++failures >= settleMaxFailures) {
+    					return false;
+    				}
+    				try {
+    					Thread.sleep(settleRetryMs);
+    				} catch (InterruptedException e) {
+    					Thread.currentThread().interrupt();
+    					return false;
+    				}
+    				continue;
+    			}
+    			failures = 0;
+    			lastError = error;
+    			onErrorUpdate.accept(lastError);
+    			
+    			double residual = error + offsetUm;
+    			if (Math.abs(residual) < toleranceUm) {
+    				return true;
+    			}
+    			
+    			try {
+    				double position = core.getPosition(stage);
+    				double command = stageOutput.plan(position, residual);
+    				if (command == 0) {
+    					return true; // closer than the stage can resolve
+    				}
+    				core.setPosition(stage, position + command);
+    				core.waitForDevice(stage);
+    			} catch (Exception e) {
+    				studio.logs().showError("Stage movement failed: " + e.getMessage());
+    				return false;
+    			}
+    		}
+    	}
+    	return false;
+    }
+    
+    /**
+     * Snaps an unfiltered frame and returns the focus error in µm, or NaN when
+     * no valid measurement could be made.
+     */
+    private double measureError() {
+    	short[] data = camera.snapOnce();
+    	if (data == null) {
+    		return Double.NaN;
+    	}
+    	double[] result = new GaussianFitter(data).fit();
+    	mean = result[1];
+    	return errorPx(mean) * calSlope;
+    }
+    
+    /**
+     * Focus error of a beam at {@code beamMean} in pixels. With a lookup
+     * table the error is read from the table and expressed in pixels at the
+     * reference slope, so the PID gains mean the same either way while large
+     * excursions are corrected by their true distance.
+     */
+    private double errorPx(double beamMean) {
+    	return errorPx(beamMean, refMean, activeTable, tableReferenceUm, tableSlope);
+    }
+    
+    /**
+     * As {@link #errorPx(double)} for a lock on {@code refMean}; with a
+     * {@code table}, {@code tableReferenceUm} and {@code tableSlope} are its
+     * position and slope at the reference.
+     */
+    static double errorPx(double beamMean, double refMean, FocusLookupTable table, double tableReferenceUm,
+    		double tableSlope) {
+    	if (table == null) {
+    		return beamMean - refMean;
+    	}
+    	return (table.toUm(beamMean) - tableReferenceUm) / tableSlope;
+    }
+    
+    /**
+     * Uses {@code table} instead of the slope alone from the next start;
+     * null goes back to the slope.
+     */
+    public void setLookupTable(FocusLookupTable table) {
+    	this.lookupTable = table;
+    }
+    
+    public FocusLookupTable getLookupTable() {
+    	return lookupTable;
     }
     
+    /**
+     * Stops the loop. A step already scheduled is cancelled, and one that is
+     * running finishes without scheduling another, so a quick unlock and
+     * relock never leaves two loops running. Waits for a step in progress
+     * and for the last correction to reach the stage.
+     */
     public void stopFocus() {
-    	start = false;
-        refMean = 0;
-        integral = 0;
-        previousError = 0;
-        previousTime = 0;
+    	synchronized (scheduleLock) {
+    		start = false;
+    		run++;
+    		if (nextStep != null) {
+    			nextStep.cancel(false);
+    			nextStep = null;
+    		}
+    		if (pipeline != null) {
+    			pipeline.stop();
+    			pipeline = null;
+    		}
+    	}
+    	// Wait for a step in progress, so it cannot act on the cleared state
+    	synchronized (stepLock) {
+    		awaitMove();
+    		paused = false;
+    		timing.restart();
+    		refMean = 0;
+    		pid.reset();
+    		previousTime = 0;
+    		lastError = 0;
+    	}
         onErrorUpdate.accept(0.0);
     }
+    
+    public boolean isRunning() {
+    	return start;
+    }
+    
+    /**
+     * Wakes each step slightly early and spins for the rest of the delay, for
+     * sub-millisecond step timing at the cost of a busy core for ~2 ms per cycle.
+     */
+    public void setPreciseTiming(boolean precise) {
+    	this.preciseTiming = precise;
+    	synchronized (scheduleLock) {
+    		if (pipeline != null) {
+    			pipeline.setPreciseTiming(precise);
+    		}
+    	}
+    }
+    
+    /**
+     * Switches between the sequential loop (one snap, fit and move per
+     * cycle, nominally one second) and the three-stage {@link FocusPipeline},
+     * which corrects every {@code periodMs}. The {@link LoopRate} varies both
+     * periods unless adaptation is off. Takes effect at the next start. The PID runs once per
+     * period either way, so gains tuned for one do not carry over to the
+     * other; {@link ReplayEngine} can retune them.
+     */
+    public void setPipelined(boolean pipelined, long periodMs) {
+    	this.pipelined = pipelined;
+    	this.pipelinePeriodMs = periodMs;
+    }
+    
+    /**
+     * Adapts the loop period to the focus, see {@link LoopRate}. Starts
+     * each lock at 1 s, or at the pipeline period when pipelined.
+     */
+    public LoopRate getLoopRate() {
+    	return rate;
+    }
+    
+    public boolean isPipelined() {
+    	return pipelined;
+    }
+    
+    /**
+     * Refines the calibration slope from the lock's own corrections while it
+     * runs (on by default). When off, the estimate is still tracked but not
+     * used.
+     */
+    public void setOnlineCalibration(boolean enabled) {
+    	this.onlineCalibration = enabled;
+    }
+    
+    public boolean isOnlineCalibration() {
+    	return onlineCalibration;
+    }
+    
+    public SlopeEstimator getSlopeEstimator() {
+    	return slopeEstimator;
+    }
+    
+    /**
+     * Slope in µm per pixel the corrections currently use.
+     */
+    public double getSlope() {
+    	return calSlope;
+    }
+    
+    public boolean isPreciseTiming() {
+    	return preciseTiming;
+    }
+    
+    /**
+     * RMS, peak-to-peak, drift and Allan deviation of the focus error since
+     * the lock started.
+     */
+    public LockStatistics getStatistics() {
+    	return statistics;
+    }
+    
+    /**
+     * Jitter of the step start times against the requested delays.
+     */
+    public LoopTiming getTiming() {
+    	return timing;
+    }
+    
+    /**
+     * Searches for the beam when it leaves the sensor, up to
+     * {@code maxRangeUm} each way and for at most {@code timeoutMs}. On by
+     * default, 10 µm and 1 s.
+     */
+    public void setBeamRecapture(boolean enabled, double maxRangeUm, long timeoutMs) {
+    	this.recapture = enabled;
+    	beamSearch.setMaxRange(maxRangeUm);
+    	beamSearch.setTimeout(timeoutMs);
+    }
+    
+    public boolean isBeamRecapture() {
+    	return recapture;
+    }
+    
+    public BeamDetector getBeamDetector() {
+    	return detector;
+    }
+    
+    /**
+     * Number of times the beam was found again after it was lost.
+     */
+    public long getRecaptureCount() {
+    	return recaptures;
+    }
+    
+    /**
+     * Dead-band, step size and backlash of the stage commands.
+     */
+    public StageOutput getStageOutput() {
+    	return stageOutput;
+    }
+    
+    /**
+     * Label of the Z stage this lock corrects.
+     */
+    public String getStage() {
+    	return stage;
+    }
+
+    public double getReferenceMean() {
+    	return refMean;
+    }
+    
+    public double getMean() {
+    	return mean;
+    }
+    
+    /**
+     * Last focus error in µm.
+     */
+    public double getLastError() {
+    	return lastError;
+    }
+    
+    public long getCycleCount() {
+    	return cycles;
+    }
+    
+    public long getHoldCount() {
+    	return holds;
+    }
 }
@@ -0,0 +1,49 @@
+package com.myname.focuslock;
+
+/**
+ * Streaming temporal filter over light sensor frames. Each call to
+ * {@link #apply(double[])} pushes one frame into the filter and overwrites it
+ * in place with the filtered result, without allocating once the filter has
+ * seen the first frame.
+ */
+public interface FrameFilter {
+
+	enum Type {
+		NONE("None"),
+		MEAN("Mean"),
+		EMA("EMA"),
+		MEDIAN("Median");
+
+		private final String label;
+
+		Type(String label) {
+			this.label = label;
+		}
+
+		/**
+		 * Creates a filter of this type spanning {@code depth} frames. For the
+		 * EMA the depth sets the smoothing factor to 2 / (depth + 1).
+		 */
+		public FrameFilter create(int depth) {
+			switch (this) {
+			case MEAN:
+				return new RunningMeanFilter(depth);
+			case EMA:
+				return new EmaFilter(2.0 / (Math.max(depth, 1) + 1.0));
+			case MEDIAN:
+				return new MedianFilter(depth);
+			default:
+				return null;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return label;
+		}
+	}
+
+	void apply(double[] frame);
+
+	void reset();
+}
@@ -1,13 +1,75 @@
 package com.myname.focuslock;
 
+import java.util.Arrays;
+
 import org.apache.commons.math3.fitting.leastsquares.*;
 import org.apache.commons.math3.linear.DiagonalMatrix;
 import org.apache.commons.math3.util.Pair;
 
+/**
+ * Least-squares fit of a Gaussian A exp(-(x - mu)^2 / (2 sigma^2)), optionally
+ * on a constant background, to a sensor frame.
+ *
+ * The fit runs a Levenberg-Marquardt solver specialised for these 3 or 4
+ * parameters instead of the generic commons-math optimizer:
+ *
+ * - One pass over the pixels per iteration evaluates the residuals and
+ *   accumulates J^T J and J^T r directly, without materialising the Jacobian.
+ * - On evenly spaced pixels the Gaussian is built by a multiplicative
+ *   recurrence from the pixel nearest the mean, so a pass costs 4 exp()
+ *   calls instead of one per pixel.
+ * - The damped normal equations are solved in closed form (cofactors for
+ *   3x3, unrolled Cholesky for 4x4) after scaling to unit diagonal.
+ * - Sigma is fitted as log(sigma), so it can never reach zero or turn
+ *   negative, and the start point comes from the half-maximum width of the
+ *   frame rather than a fixed guess.
+ *
+ * A fitter made for a frame size can be reused with {@link #setData(double[])}:
+ * the lock fits every frame with the same one, which then allocates nothing.
+ * The arrays returned by {@link #fit()} and {@link #fitWithBackground()} are
+ * reused by the next fit, so copy them before fitting again.
+ *
+ * {@link #fitGeneric()} keeps the commons-math path for comparison.
+ */
 public class GaussianFitter {
 
+    private static final int MAX_ITERATIONS = 100;
+    private static final double INITIAL_LAMBDA = 1e-3;
+    private static final double MAX_LAMBDA = 1e12;
+    // Below this the rest of a Gaussian tail is set to zero instead of going subnormal
+    private static final double TINY = 1e-250;
+
     private double[] xData;
     private double[] yData;
+    private double[] gauss;
+    // Work arrays of solve(), kept for the next fit
+    private final double[] jtj = new double[10];
+    private final double[] jtr = new double[4];
+    private final double[] trialJtj = new double[10];
+    private final double[] trialJtr = new double[4];
+    private final double[] params = new double[4];
+    private final double[] trialParams = new double[4];
+    private final double[] step = new double[4];
+    private final double[] unit = new double[4];
+    private final double[] result3 = new double[3];
+    private final double[] result4 = new double[4];
+    // Pixel pitch when the pixels are evenly spaced, NaN otherwise; set per fit
+    private double uniformStep = Double.NaN;
+    private int iterations;
+    private double meanError = Double.NaN;
+    private String failure;
+
+    /**
+     * A fitter for frames of {@code pixels} pixels, x being the index; set
+     * each frame with {@link #setData(double[])} before fitting it.
+     */
+    public GaussianFitter(int pixels) {
+        this.yData = new double[pixels];
+        this.xData = new double[pixels];
+        for (int i = 0; i < pixels; i++) {
+            this.xData[i] = i;
+        }
+    }
 
     // Constructor assumes yData only, xData is indices converted to double
     public GaussianFitter(short[] yData) {
@@ -19,6 +81,15 @@ public class GaussianFitter {
         }
     }
 
+    // Constructor for filtered frames, which keep sub-count precision
+    public GaussianFitter(double[] yData) {
+        this.yData = yData.clone();
+        this.xData = new double[yData.length];
+        for (int i = 0; i < yData.length; i++) {
+            this.xData[i] = i;  // Use index as x-value
+        }
+    }
+
     // Constructor with explicit xData and yData
     public GaussianFitter(short[] xData, short[] yData) {
         if (xData.length != yData.length) {
@@ -32,8 +103,435 @@ public class GaussianFitter {
         }
     }
 
+    /**
+     * Copies the next frame in. A frame of another size than the last one
+     * switches the fitter to index x values of the new size.
+     */
+    public void setData(double[] frame) {
+        if (frame.length != yData.length) {
+            resize(frame.length);
+        }
+        System.arraycopy(frame, 0, yData, 0, frame.length);
+    }
+
+    public void setData(short[] frame) {
+        if (frame.length != yData.length) {
+            resize(frame.length);
+        }
+        for (int i = 0; i < frame.length; i++) {
+            yData[i] = frame[i];
+        }
+    }
+
+    private void resize(int pixels) {
+        yData = new double[pixels];
+        xData = new double[pixels];
+        for (int i = 0; i < pixels; i++) {
+            xData[i] = i;
+        }
+        gauss = null;
+    }
+
+    /**
+     * Fits A, mu and sigma. Returns [Amplitude, Mean, Sigma], or NaNs when
+     * the fit does not converge.
+     */
     public double[] fit() {
+        return solve(false);
+    }
+
+    /**
+     * Fits A, mu, sigma and a constant background. Returns
+     * [Amplitude, Mean, Sigma, Background], or NaNs when the fit does not
+     * converge.
+     */
+    public double[] fitWithBackground() {
+        return solve(true);
+    }
+
+    /**
+     * Standard error of the fitted mean in pixels, from the residuals of the
+     * last fit; NaN when it failed.
+     */
+    public double getMeanError() {
+        return meanError;
+    }
+
+    /**
+     * Why the last fit returned NaNs, or null when it succeeded.
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    /**
+     * Levenberg-Marquardt iterations of the last fit.
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    private double[] solve(boolean background) {
+        int n = yData.length;
+        int np = background ? 4 : 3;
+        iterations = 0;
+        meanError = Double.NaN;
+        failure = null;
+        double[] p = params;
+        if (!initialGuess(background, p)) {
+            return failed(np, n < 4 ? "fewer than 4 pixels" : "flat frame");
+        }
+        if (gauss == null || gauss.length != n) {
+            gauss = new double[n];
+        }
+        double h = (xData[n - 1] - xData[0]) / (n - 1);
+        uniformStep = isUniform(h) ? h : Double.NaN;
+
+        double span = Math.max(xData[n - 1] - xData[0], 1);
+        double minLogSigma = Math.log(span / n * 0.05);
+        double maxLogSigma = Math.log(span * 10);
+
+        double[] jtj = this.jtj;
+        double[] jtr = this.jtr;
+        double[] trialJtj = this.trialJtj;
+        double[] trialJtr = this.trialJtr;
+        double[] trial = trialParams;
+        double[] step = this.step;
+
+        double cost = evaluate(p, background, jtj, jtr);
+        if (!isFinite(cost)) {
+            return failed(np, "non-finite residuals at the start point");
+        }
+        double lambda = INITIAL_LAMBDA;
+        boolean converged = false;
+
+        while (iterations < MAX_ITERATIONS) {
+            iterations++;
+            if (!solveDamped(jtj, jtr, lambda, background, step)) {
+                return failed(np, "singular normal equations");
+            }
+            for (int k = 0; k < 4; k++) {
+                trial[k] = p[k] + step[k];
+            }
+
+            double trialCost = trial[2] < minLogSigma || trial[2] > maxLogSigma
+                    ? Double.POSITIVE_INFINITY
+                    : evaluate(trial, background, trialJtj, trialJtr);
+            if (trialCost < cost) {
+                double decrease = cost - trialCost;
+                double[] swap = p; p = trial; trial = swap;
+                swap = jtj; jtj = trialJtj; trialJtj = swap;
+                swap = jtr; jtr = trialJtr; trialJtr = swap;
+                cost = trialCost;
+                lambda = Math.max(lambda / 10, 1e-9);
+                if (decrease <= 1e-12 * cost || smallStep(step, p)) {
+                    converged = true;
+                    break;
+                }
+            } else {
+                lambda *= 10;
+                if (lambda > MAX_LAMBDA) {
+                    // No step lowers the cost any more: at the minimum to machine precision
+                    converged = true;
+                    break;
+                }
+            }
+        }
+
+        if (!converged) {
+            return failed(np, "no convergence in " + MAX_ITERATIONS + " iterations");
+        }
+        double[] result = background ? result4 : result3;
+        result[0] = p[0];
+        result[1] = p[1];
+        result[2] = Math.exp(p[2]);
+        if (background) {
+            result[3] = p[3];
+        }
+        for (double v : result) {
+            if (!isFinite(v)) {
+                return failed(np, "non-finite parameters");
+            }
+        }
+
+        // Var(mu) = s^2 (J^T J)^-1 [1][1]: solve J^T J x = e1 undamped
+        double[] unit = this.unit;
+        Arrays.fill(unit, 0);
+        unit[1] = 1;
+        if (n > np && solveDamped(jtj, unit, 0, background, step)) {
+            meanError = Math.sqrt(Math.max(step[1], 0) * cost / (n - np));
+        }
+        return result;
+    }
+
+    /**
+     * Start point [A, mu, log(sigma), background] from the pixels above half
+     * maximum: their centroid for mu and their extent for the FWHM. Returns
+     * false when there is nothing to fit.
+     */
+    private boolean initialGuess(boolean background, double[] p) {
+        int n = yData.length;
+        if (n < 4) {
+            return false;
+        }
+        double max = Double.NEGATIVE_INFINITY;
+        double min = Double.POSITIVE_INFINITY;
+        for (double v : yData) {
+            if (v > max) max = v;
+            if (v < min) min = v;
+        }
+        double base = background ? min : 0;
+        double amplitude = max - base;
+        if (!(amplitude > 0)) {
+            return false;
+        }
+
+        double half = base + amplitude / 2;
+        double sum = 0;
+        double sumX = 0;
+        double lo = Double.POSITIVE_INFINITY;
+        double hi = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            if (yData[i] >= half) {
+                double w = yData[i] - half;
+                sum += w;
+                sumX += w * xData[i];
+                lo = Math.min(lo, xData[i]);
+                hi = Math.max(hi, xData[i]);
+            }
+        }
+        double pitch = Math.max(xData[n - 1] - xData[0], 1) / (n - 1);
+        double mean = sum > 0 ? sumX / sum : (lo + hi) / 2;
+        double fwhm = hi - lo + pitch;
+        double sigma = Math.max(fwhm / 2.3548, pitch / 2);
+        p[0] = amplitude;
+        p[1] = mean;
+        p[2] = Math.log(sigma);
+        p[3] = base;
+        return true;
+    }
+
+    /**
+     * One fused pass over the pixels: returns the sum of squared residuals at
+     * {@code p} and fills the packed upper triangle of J^T J
+     * (00 01 02 03 11 12 13 22 23 33) and J^T r.
+     */
+    private double evaluate(double[] p, boolean background, double[] jtj, double[] jtr) {
+        final double[] x = xData;
+        final double[] y = yData;
+        final double[] g = gauss;
+        final int n = y.length;
+        final double a = p[0];
+        final double mu = p[1];
+        final double c = background ? p[3] : 0;
+        final double sigma = Math.exp(p[2]);
+        final double inv = 1.0 / (sigma * sigma);
+        gaussian(mu, inv);
+
+        double cost = 0;
+        double s00 = 0, s01 = 0, s02 = 0, s03 = 0;
+        double s11 = 0, s12 = 0, s13 = 0;
+        double s22 = 0, s23 = 0;
+        double b0 = 0, b1 = 0, b2 = 0, b3 = 0;
+        for (int i = 0; i < n; i++) {
+            double e = g[i];
+            double dx = x[i] - mu;
+            double ae = a * e;
+            double r = y[i] - ae - c;
+            // df/dA = e, df/dmu = A e dx / sigma^2, df/dlog(sigma) = A e dx^2 / sigma^2
+            double jm = ae * dx * inv;
+            double js = jm * dx;
+            cost += r * r;
+            s00 += e * e;
+            s01 += e * jm;
+            s02 += e * js;
+            s03 += e;
+            s11 += jm * jm;
+            s12 += jm * js;
+            s13 += jm;
+            s22 += js * js;
+            s23 += js;
+            b0 += e * r;
+            b1 += jm * r;
+            b2 += js * r;
+            b3 += r;
+        }
+
+        jtj[0] = s00; jtj[1] = s01; jtj[2] = s02; jtj[3] = s03;
+        jtj[4] = s11; jtj[5] = s12; jtj[6] = s13;
+        jtj[7] = s22; jtj[8] = s23;
+        jtj[9] = n;
+        jtr[0] = b0; jtr[1] = b1; jtr[2] = b2; jtr[3] = b3;
+        return cost;
+    }
+
+    /**
+     * Fills {@link #gauss} with exp(-(x - mu)^2 inv / 2). Evenly spaced pixels
+     * use the recurrence g[i+1] = g[i] r, r *= q outward from the pixel nearest
+     * mu, where both factors only shrink, so the tails underflow cleanly to 0.
+     */
+    private void gaussian(double mu, double inv) {
+        final double[] x = xData;
+        final double[] g = gauss;
+        final int n = x.length;
+        final double h = uniformStep;
+        if (Double.isNaN(h)) {
+            for (int i = 0; i < n; i++) {
+                double dx = x[i] - mu;
+                g[i] = Math.exp(-0.5 * dx * dx * inv);
+            }
+            return;
+        }
+
+        int k = (int) Math.round((mu - x[0]) / h);
+        k = Math.max(0, Math.min(n - 1, k));
+        double dx = x[k] - mu;
+        // With s = exp(-h^2 inv / 2) and t = exp(-h dx inv): q = s^2 and the
+        // first ratios are t s outward and s / t inward. |dx| <= h / 2 and the
+        // sigma bounds of the fit keep t and 1 / t finite.
+        double s = Math.exp(-0.5 * h * h * inv);
+        double t = Math.exp(-h * dx * inv);
+        double q = s * s;
+        g[k] = Math.exp(-0.5 * dx * dx * inv);
+
+        double r = t * s;
+        for (int i = k + 1; i < n; i++) {
+            double v = g[i - 1] * r;
+            if (v < TINY) {
+                Arrays.fill(g, i, n, 0);
+                break;
+            }
+            g[i] = v;
+            r *= q;
+        }
+        r = s / t;
+        for (int i = k - 1; i >= 0; i--) {
+            double v = g[i + 1] * r;
+            if (v < TINY) {
+                Arrays.fill(g, 0, i + 1, 0);
+                break;
+            }
+            g[i] = v;
+            r *= q;
+        }
+    }
+
+    private boolean isUniform(double h) {
+        if (!(h > 0)) {
+            return false;
+        }
+        double x0 = xData[0];
+        for (int i = 1; i < xData.length; i++) {
+            if (Math.abs(xData[i] - (x0 + i * h)) > 1e-9 * h) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Solves (J^T J + lambda diag(J^T J)) step = J^T r, scaled to unit
+     * diagonal first so A (counts) and mu (pixels) do not ruin the
+     * conditioning. Returns false when the system is singular.
+     */
+    private static boolean solveDamped(double[] jtj, double[] jtr, double lambda, boolean background,
+            double[] step) {
+        double d0 = Math.sqrt(jtj[0]);
+        double d1 = Math.sqrt(jtj[4]);
+        double d2 = Math.sqrt(jtj[7]);
+        double d3 = Math.sqrt(jtj[9]);
+        if (!(d0 > 0 && d1 > 0 && d2 > 0)) {
+            return false;
+        }
+        double diag = 1 + lambda;
+        double a01 = jtj[1] / (d0 * d1);
+        double a02 = jtj[2] / (d0 * d2);
+        double a12 = jtj[5] / (d1 * d2);
+        double c0 = jtr[0] / d0;
+        double c1 = jtr[1] / d1;
+        double c2 = jtr[2] / d2;
+
+        if (!background) {
+            // Cofactors of the symmetric 3x3 system
+            double m00 = diag * diag - a12 * a12;
+            double m01 = a02 * a12 - a01 * diag;
+            double m02 = a01 * a12 - a02 * diag;
+            double m11 = diag * diag - a02 * a02;
+            double m12 = a01 * a02 - diag * a12;
+            double m22 = diag * diag - a01 * a01;
+            double det = diag * m00 + a01 * m01 + a02 * m02;
+            if (!(det > 1e-300)) {
+                return false;
+            }
+            step[0] = (m00 * c0 + m01 * c1 + m02 * c2) / det / d0;
+            step[1] = (m01 * c0 + m11 * c1 + m12 * c2) / det / d1;
+            step[2] = (m02 * c0 + m12 * c1 + m22 * c2) / det / d2;
+            step[3] = 0;
+            return true;
+        }
+
+        double a03 = jtj[3] / (d0 * d3);
+        double a13 = jtj[6] / (d1 * d3);
+        double a23 = jtj[8] / (d2 * d3);
+        double c3 = jtr[3] / d3;
+
+        // Unrolled Cholesky factorisation L L^T of the 4x4 system
+        double l00 = Math.sqrt(diag);
+        double l10 = a01 / l00;
+        double l20 = a02 / l00;
+        double l30 = a03 / l00;
+        double t11 = diag - l10 * l10;
+        if (!(t11 > 0)) return false;
+        double l11 = Math.sqrt(t11);
+        double l21 = (a12 - l20 * l10) / l11;
+        double l31 = (a13 - l30 * l10) / l11;
+        double t22 = diag - l20 * l20 - l21 * l21;
+        if (!(t22 > 0)) return false;
+        double l22 = Math.sqrt(t22);
+        double l32 = (a23 - l30 * l20 - l31 * l21) / l22;
+        double t33 = diag - l30 * l30 - l31 * l31 - l32 * l32;
+        if (!(t33 > 0)) return false;
+        double l33 = Math.sqrt(t33);
+
+        double y0 = c0 / l00;
+        double y1 = (c1 - l10 * y0) / l11;
+        double y2 = (c2 - l20 * y0 - l21 * y1) / l22;
+        double y3 = (c3 - l30 * y0 - l31 * y1 - l32 * y2) / l33;
+        double x3 = y3 / l33;
+        double x2 = (y2 - l32 * x3) / l22;
+        double x1 = (y1 - l21 * x2 - l31 * x3) / l11;
+        double x0 = (y0 - l10 * x1 - l20 * x2 - l30 * x3) / l00;
+        step[0] = x0 / d0;
+        step[1] = x1 / d1;
+        step[2] = x2 / d2;
+        step[3] = x3 / d3;
+        return true;
+    }
+
+    private static boolean smallStep(double[] step, double[] p) {
+        return Math.abs(step[1]) < 1e-7
+                && Math.abs(step[2]) < 1e-9
+                && Math.abs(step[0]) <= 1e-9 * Math.abs(p[0]);
+    }
+
+    private static boolean isFinite(double v) {
+        return !Double.isNaN(v) && !Double.isInfinite(v);
+    }
+
+    private double[] failed(int parameters, String reason) {
+        failure = reason;
+        double[] nan = parameters == 4 ? result4 : result3;
+        Arrays.fill(nan, Double.NaN);
+        return nan;
+    }
+
+    /**
+     * The original fit through the generic commons-math optimizer, kept as a
+     * reference for {@link #fit()}.
+     */
+    public double[] fitGeneric() {
         int n = yData.length;
+        failure = null;
 
         // Initial guess: amplitude, mean, sigma
         double[] initialGuess = {
@@ -91,12 +589,13 @@ public class GaussianFitter {
 	                .maxEvaluations(1000)
 	                .maxIterations(1000)
 	                .build();
-	
+
 	        LeastSquaresOptimizer optimizer = new LevenbergMarquardtOptimizer();
 	        LeastSquaresOptimizer.Optimum optimum = optimizer.optimize(problem);
-	
+
 	        return optimum.getPoint().toArray(); // [Amplitude, Mean, Sigma]
         } catch (Exception e) {
+        	failure = e.toString();
         	return new double[] {Double.NaN, Double.NaN, Double.NaN};
         }
     }
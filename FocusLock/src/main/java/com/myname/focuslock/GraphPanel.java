@@ -26,6 +26,10 @@ public class GraphPanel extends ConfigurablePanel {
     private TextTitle footer;
     private double fittedMu = 0.0;      // from your Gaussian fit
     private double referenceMu = 0.0; // reference Gaussian mean
+    private NumberAxis yAxis;
+    private int pixels = SensorConfig.DEFAULT_PIXELS;
+    private double[] referenceParams;
+
     public GraphPanel(int[] intensityValues, double[] referenceValues) {
         super("GraphPanel");
 
@@ -66,8 +70,8 @@ public class GraphPanel extends ConfigurablePanel {
         
         // Axis styling
         NumberAxis xAxis = (NumberAxis) plot.getDomainAxis();
-        NumberAxis yAxis = (NumberAxis) plot.getRangeAxis();
-        yAxis.setRange(0.0, 4095.0);
+        yAxis = (NumberAxis) plot.getRangeAxis();
+        yAxis.setRange(0.0, (1 << SensorConfig.DEFAULT_BIT_DEPTH) - 1);
         xAxis.setLabelPaint(Color.GRAY);
         yAxis.setLabelPaint(Color.GRAY);
         xAxis.setTickLabelPaint(Color.GRAY);
@@ -103,6 +107,22 @@ public class GraphPanel extends ConfigurablePanel {
         updateReferenceGraph(referenceValues);
     }
 
+    /**
+     * Sizes the pixel axis and the intensity range for a sensor with
+     * {@code pixels} pixels of {@code bitDepth} bits.
+     */
+    public void setSensorFormat(int pixels, int bitDepth) {
+        this.pixels = pixels;
+        yAxis.setRange(0.0, (1 << bitDepth) - 1);
+        if (referenceParams != null) {
+            updateReferenceGraph(referenceParams);
+        }
+    }
+
+    public void setSensorFormat(SensorConfig sensor) {
+        setSensorFormat(sensor.getPixels(), sensor.getBitDepth());
+    }
+
     /**
      * Update the chart with new intensity data and Gaussian fit.
      */
@@ -136,7 +156,7 @@ public class GraphPanel extends ConfigurablePanel {
             e.printStackTrace();
         }
 
-        for (int x = 1; x <= 128; x++) {
+        for (int x = 1; x <= intensityValues.length; x++) {
             double y = a * Math.exp(-Math.pow(x - mu, 2) / (2 * sigma * sigma));
             fittedSeries.add(x, y);
         }
@@ -145,6 +165,7 @@ public class GraphPanel extends ConfigurablePanel {
     
     public void updateReferenceGraph(double [] params) {
         referenceSeries.clear();
+        referenceParams = params;
 
         double a = params[0];
         double mu = params[1];
@@ -153,7 +174,7 @@ public class GraphPanel extends ConfigurablePanel {
         referenceMu = mu;
         
 
-        for (int x = 1; x <= 128; x++) {
+        for (int x = 1; x <= pixels; x++) {
             double y = a * Math.exp(-Math.pow(x - mu, 2) / (2 * sigma * sigma));
             referenceSeries.add(x, y);
         }
@@ -171,7 +192,7 @@ public class GraphPanel extends ConfigurablePanel {
     // EMU-required overrides
     @Override protected void addComponentListeners() {}
     @Override public String getDescription() {
-        return "Displays a graph of 12-bit intensity values and a fitted Gaussian.";
+        return "Displays a graph of the light sensor intensity values and a fitted Gaussian.";
     }
     @Override protected void initializeInternalProperties() {}
     @Override protected void initializeParameters() {}
@@ -0,0 +1,205 @@
+package com.myname.focuslock;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Blocking client for {@link LockControlServer}. Used by scripts running
+ * outside Micro-Manager, and from the command line as a stand-in for remote
+ * automation:
+ *
+ * java -cp FocusLock.jar com.myname.focuslock.LockControlClient [port] lock|unlock|calibrate|metrics|stream
+ */
+public class LockControlClient implements AutoCloseable {
+	private static final long COMMAND_TIMEOUT_MS = 10000;
+	private static final long CALIBRATION_TIMEOUT_MS = 60000;
+
+	private final Socket socket;
+	private final OutputStream out;
+	private final DataInputStream in;
+	private final Thread reader;
+	private final BlockingQueue<ByteBuffer> responses = new LinkedBlockingQueue<>();
+	// Replies still due for requests that timed out, by request type
+	private final int[] abandoned = new int[256];
+	private volatile Consumer<LockControlProtocol.Sample> onSample;
+	private volatile IOException readFailure;
+
+	public LockControlClient() throws IOException {
+		this(LockControlServer.DEFAULT_PORT);
+	}
+
+	public LockControlClient(int port) throws IOException {
+		socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.setTcpNoDelay(true);
+		out = socket.getOutputStream();
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		reader = new Thread(this::readLoop, "fgFocus control client");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public void lock() throws IOException {
+		command(LockControlProtocol.CMD_LOCK, COMMAND_TIMEOUT_MS);
+	}
+
+	public void unlock() throws IOException {
+		command(LockControlProtocol.CMD_UNLOCK, COMMAND_TIMEOUT_MS);
+	}
+
+	public void calibrate() throws IOException {
+		command(LockControlProtocol.CMD_CALIBRATE, CALIBRATION_TIMEOUT_MS);
+	}
+
+	public FocusLockMetrics metrics() throws IOException {
+		ByteBuffer response = command(LockControlProtocol.CMD_METRICS, COMMAND_TIMEOUT_MS);
+		return LockControlProtocol.readMetrics(response);
+	}
+
+	/**
+	 * Streams every lock cycle to {@code listener}, called on the reader thread.
+	 */
+	public void subscribe(Consumer<LockControlProtocol.Sample> listener) throws IOException {
+		onSample = listener;
+		command(LockControlProtocol.CMD_SUBSCRIBE, COMMAND_TIMEOUT_MS);
+	}
+
+	public void unsubscribe() throws IOException {
+		command(LockControlProtocol.CMD_UNSUBSCRIBE, COMMAND_TIMEOUT_MS);
+		onSample = null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * Sends a request and waits for its response. Returns the response
+	 * payload positioned after the type byte.
+	 *
+	 * Responses are matched to the request by the type they echo (METRICS
+	 * answers only CMD_METRICS). A reply that arrives after its request
+	 * timed out is dropped rather than handed to the next caller.
+	 */
+	private synchronized ByteBuffer command(byte type, long timeoutMs) throws IOException {
+		out.write(LockControlProtocol.request(type).array());
+		out.flush();
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		while (true) {
+			ByteBuffer response;
+			try {
+				response = responses.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				abandoned[type & 0xFF]++;
+				throw new IOException("Interrupted waiting for the focus lock");
+			}
+			if (response == null) {
+				abandoned[type & 0xFF]++;
+				throw new IOException(readFailure != null ? readFailure.getMessage() : "No response from the focus lock");
+			}
+
+			byte responseType = response.get();
+			byte request = responseType == LockControlProtocol.RESP_METRICS
+					? LockControlProtocol.CMD_METRICS
+					: response.get();
+			if (abandoned[request & 0xFF] > 0) {
+				// Late reply to a request that timed out; replies to one type come in order
+				abandoned[request & 0xFF]--;
+				continue;
+			}
+			if (request != type) {
+				continue;
+			}
+			if (responseType == LockControlProtocol.RESP_ERROR) {
+				byte[] text = new byte[response.remaining()];
+				response.get(text);
+				throw new IOException(new String(text, StandardCharsets.UTF_8));
+			}
+			return response;
+		}
+	}
+
+	private void readLoop() {
+		try {
+			while (true) {
+				int length = in.readInt();
+				if (length < 1 || length > LockControlProtocol.MAX_FRAME_BYTES) {
+					throw new IOException("Invalid frame length " + length);
+				}
+				byte[] frame = new byte[length];
+				in.readFully(frame);
+				ByteBuffer buffer = ByteBuffer.wrap(frame);
+				if (frame[0] == LockControlProtocol.TELEMETRY) {
+					dispatchTelemetry(buffer);
+				} else {
+					responses.add(buffer);
+				}
+			}
+		} catch (EOFException e) {
+			readFailure = new IOException("Focus lock closed the connection");
+		} catch (IOException e) {
+			readFailure = e;
+		}
+	}
+
+	private void dispatchTelemetry(ByteBuffer buffer) {
+		Consumer<LockControlProtocol.Sample> listener = onSample;
+		buffer.get();
+		int count = buffer.getShort() & 0xFFFF;
+		for (int i = 0; i < count; i++) {
+			LockControlProtocol.Sample sample = new LockControlProtocol.Sample(
+					buffer.getLong(), buffer.getDouble(), buffer.getDouble());
+			if (listener != null) {
+				listener.accept(sample);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = LockControlServer.DEFAULT_PORT;
+		int arg = 0;
+		if (args.length > 1) {
+			port = Integer.parseInt(args[arg++]);
+		}
+		String command = args.length > arg ? args[arg] : "metrics";
+
+		try (LockControlClient client = new LockControlClient(port)) {
+			switch (command) {
+			case "lock":
+				client.lock();
+				System.out.println("Locked");
+				break;
+			case "unlock":
+				client.unlock();
+				System.out.println("Unlocked");
+				break;
+			case "calibrate":
+				client.calibrate();
+				System.out.println("Calibrated, slope " + client.metrics().getSlope() + " um/px");
+				break;
+			case "metrics":
+				System.out.println(client.metrics());
+				break;
+			case "stream":
+				client.subscribe(s -> System.out.println(s.timeNanos + "\t" + s.mean + "\t" + s.error));
+				Thread.sleep(Long.MAX_VALUE);
+				break;
+			default:
+				System.err.println("Usage: LockControlClient [port] lock|unlock|calibrate|metrics|stream");
+			}
+		}
+	}
+}
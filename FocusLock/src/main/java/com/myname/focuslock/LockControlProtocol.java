@@ -0,0 +1,134 @@
+package com.myname.focuslock;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary framing shared by {@link LockControlServer} and
+ * {@link LockControlClient}. All values are big-endian.
+ *
+ * Every frame is [int32 length][uint8 type][payload], where length counts
+ * the type byte and the payload.
+ *
+ * Requests carry no payload. Responses:
+ * OK - [uint8 request type]
+ * ERROR - [uint8 request type][UTF-8 message]
+ * METRICS - [uint8 state][uint8 sensor state][float64 slope][float64 reference]
+ *           [float64 mean][float64 error um][int64 cycles][int64 holds][int64 frame age ms]
+ *           [float64 period ms][float64 jitter rms ms][float64 jitter max ms]
+ *           [int64 moves sent][int64 moves avoided]
+ *           [float64 rms um][float64 peak-to-peak um][float64 drift um/s]
+ *           [float64 min Allan deviation um][float64 best tau s]
+ * TELEMETRY - [uint16 count] then count x [int64 nanoTime][float64 mean px][float64 error um],
+ *             pushed in batches to subscribed clients.
+ */
+public final class LockControlProtocol {
+	public static final byte CMD_LOCK = 0x01;
+	public static final byte CMD_UNLOCK = 0x02;
+	public static final byte CMD_CALIBRATE = 0x03;
+	public static final byte CMD_SUBSCRIBE = 0x04;
+	public static final byte CMD_UNSUBSCRIBE = 0x05;
+	public static final byte CMD_METRICS = 0x06;
+
+	public static final byte RESP_OK = 0x40;
+	public static final byte RESP_ERROR = 0x41;
+	public static final byte RESP_METRICS = 0x42;
+	public static final byte TELEMETRY = 0x50;
+
+	public static final int HEADER_BYTES = 5;
+	public static final int SAMPLE_BYTES = 24;
+	public static final int MAX_FRAME_BYTES = 1 << 16;
+
+	/**
+	 * One lock cycle as pushed to subscribers.
+	 */
+	public static final class Sample {
+		public final long timeNanos;
+		public final double mean;
+		public final double error;
+
+		public Sample(long timeNanos, double mean, double error) {
+			this.timeNanos = timeNanos;
+			this.mean = mean;
+			this.error = error;
+		}
+	}
+
+	private LockControlProtocol() {
+	}
+
+	public static ByteBuffer request(byte type) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES);
+		frame.putInt(1).put(type);
+		frame.flip();
+		return frame;
+	}
+
+	public static ByteBuffer ok(byte request) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES + 1);
+		frame.putInt(2).put(RESP_OK).put(request);
+		frame.flip();
+		return frame;
+	}
+
+	public static ByteBuffer error(byte request, String message) {
+		byte[] text = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES + 1 + text.length);
+		frame.putInt(2 + text.length).put(RESP_ERROR).put(request).put(text);
+		frame.flip();
+		return frame;
+	}
+
+	public static ByteBuffer metrics(FocusLockMetrics m) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES + 2 + 4 * 8 + 3 * 8 + 3 * 8 + 2 * 8 + 5 * 8);
+		frame.putInt(frame.capacity() - 4).put(RESP_METRICS);
+		frame.put((byte) m.getState().ordinal());
+		frame.put((byte) m.getSensorState().ordinal());
+		frame.putDouble(m.getSlope());
+		frame.putDouble(m.getReferenceMean());
+		frame.putDouble(m.getMean());
+		frame.putDouble(m.getError());
+		frame.putLong(m.getCycles());
+		frame.putLong(m.getHolds());
+		frame.putLong(m.getFrameAgeMs());
+		frame.putDouble(m.getPeriodMs());
+		frame.putDouble(m.getJitterRmsMs());
+		frame.putDouble(m.getJitterMaxMs());
+		frame.putLong(m.getMovesSent());
+		frame.putLong(m.getMovesAvoided());
+		frame.putDouble(m.getRmsUm());
+		frame.putDouble(m.getPeakToPeakUm());
+		frame.putDouble(m.getDriftUmPerS());
+		frame.putDouble(m.getAllanDeviationUm());
+		frame.putDouble(m.getBestTauS());
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Decodes a METRICS payload, positioned after the type byte.
+	 */
+	public static FocusLockMetrics readMetrics(ByteBuffer payload) {
+		FocusLockEngine.State state = FocusLockEngine.State.values()[payload.get()];
+		SensorConnection.State sensorState = SensorConnection.State.values()[payload.get()];
+		double slope = payload.getDouble();
+		double reference = payload.getDouble();
+		double mean = payload.getDouble();
+		double error = payload.getDouble();
+		long cycles = payload.getLong();
+		long holds = payload.getLong();
+		long frameAge = payload.getLong();
+		double period = payload.getDouble();
+		double jitterRms = payload.getDouble();
+		double jitterMax = payload.getDouble();
+		long movesSent = payload.getLong();
+		long movesAvoided = payload.getLong();
+		double rms = payload.getDouble();
+		double peakToPeak = payload.getDouble();
+		double drift = payload.getDouble();
+		double allan = payload.getDouble();
+		double bestTau = payload.getDouble();
+		return new FocusLockMetrics(state, sensorState, slope, reference, mean, error, cycles, holds, frameAge,
+				period, jitterRms, jitterMax, movesSent, movesAvoided, rms, peakToPeak, drift, allan, bestTau);
+	}
+}
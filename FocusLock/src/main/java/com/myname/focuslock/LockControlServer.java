@@ -0,0 +1,380 @@
+package com.myname.focuslock;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+import org.micromanager.Studio;
+
+/**
+ * Localhost control and telemetry server for the focus lock, so scripts and
+ * lab automation can command the lock and stream its error without polling
+ * the GUI. See {@link LockControlProtocol} for the framing.
+ *
+ * Everything runs on one selector thread. The lock loop only appends its
+ * samples to a fixed ring; the selector thread pushes them to subscribers in
+ * batches, and drops batches for clients that do not keep up rather than
+ * ever blocking the loop.
+ */
+public class LockControlServer {
+	public static final int DEFAULT_PORT = 52573;
+
+	private static final int RING_CAPACITY = 1024;
+	private static final int BATCH_SIZE = 64;
+	private static final long FLUSH_INTERVAL_MS = 50;
+	private static final int MAX_QUEUED_BYTES = 256 * 1024;
+
+	private final Studio studio;
+	private final FocusLockEngine engine;
+	private final int port;
+
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private Thread thread;
+	private volatile boolean running = false;
+
+	private final List<Connection> connections = new ArrayList<>();
+	private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+	private final Consumer<Double> errorListener = this::onError;
+	private volatile int subscribers = 0;
+
+	// Telemetry ring, filled by the lock thread and drained by the selector thread
+	private final Object ringLock = new Object();
+	private final long[] ringTimes = new long[RING_CAPACITY];
+	private final double[] ringMeans = new double[RING_CAPACITY];
+	private final double[] ringErrors = new double[RING_CAPACITY];
+	private int ringHead = 0;
+	private int ringCount = 0;
+
+	private static final class Connection {
+		final SocketChannel channel;
+		final SelectionKey key;
+		final ByteBuffer in = ByteBuffer.allocate(4096);
+		final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+		int queuedBytes = 0;
+		boolean subscribed = false;
+		boolean closed = false;
+
+		Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+	}
+
+	public LockControlServer(Studio studio, FocusLockEngine engine, int port) {
+		this.studio = studio;
+		this.engine = engine;
+		this.port = port;
+	}
+
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		engine.addErrorListener(errorListener);
+		running = true;
+		thread = new Thread(this::run, "fgFocus control server");
+		thread.setDaemon(true);
+		thread.start();
+		studio.logs().logMessage("Focus lock control server listening on localhost:" + port);
+	}
+
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		engine.removeListener(errorListener);
+		selector.wakeup();
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	private void run() {
+		long nextFlush = System.currentTimeMillis() + FLUSH_INTERVAL_MS;
+		try {
+			while (running) {
+				selector.select(FLUSH_INTERVAL_MS);
+
+				Runnable task;
+				while ((task = pending.poll()) != null) {
+					task.run();
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						Connection connection = (Connection) key.attachment();
+						if (key.isReadable()) {
+							read(connection);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(connection);
+						}
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				if (now >= nextFlush || pendingSamples() >= BATCH_SIZE) {
+					flushTelemetry();
+					nextFlush = now + FLUSH_INTERVAL_MS;
+				}
+			}
+		} catch (IOException e) {
+			studio.logs().logMessage("Focus lock control server stopped: " + e.getMessage());
+		} finally {
+			for (Connection connection : new ArrayList<>(connections)) {
+				close(connection);
+			}
+			try {
+				serverChannel.close();
+				selector.close();
+			} catch (IOException e) {
+				// already closing
+			}
+			running = false;
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		Connection connection = new Connection(channel, key);
+		key.attach(connection);
+		connections.add(connection);
+	}
+
+	private void read(Connection connection) {
+		try {
+			if (connection.channel.read(connection.in) < 0) {
+				close(connection);
+				return;
+			}
+		} catch (IOException e) {
+			close(connection);
+			return;
+		}
+
+		ByteBuffer in = connection.in;
+		in.flip();
+		while (in.remaining() >= 4) {
+			int length = in.getInt(in.position());
+			if (length < 1 || length > in.capacity() - 4) {
+				close(connection);
+				return;
+			}
+			if (in.remaining() < 4 + length) {
+				break;
+			}
+			in.getInt();
+			byte type = in.get();
+			in.position(in.position() + length - 1); // requests carry no payload
+			handle(connection, type);
+		}
+		in.compact();
+	}
+
+	private void handle(Connection connection, byte type) {
+		switch (type) {
+		case LockControlProtocol.CMD_LOCK:
+			reply(connection, type, engine.lock());
+			break;
+		case LockControlProtocol.CMD_UNLOCK:
+			reply(connection, type, engine.unlock());
+			break;
+		case LockControlProtocol.CMD_CALIBRATE:
+			engine.calibrate().whenComplete((slope, ex) -> {
+				if (ex == null && Double.isNaN(slope)) {
+					post(connection, LockControlProtocol.error(type, "Calibration failed"));
+				} else {
+					post(connection, response(type, ex));
+				}
+			});
+			break;
+		case LockControlProtocol.CMD_SUBSCRIBE:
+			if (!connection.subscribed) {
+				connection.subscribed = true;
+				subscribers++;
+			}
+			send(connection, LockControlProtocol.ok(type));
+			break;
+		case LockControlProtocol.CMD_UNSUBSCRIBE:
+			if (connection.subscribed) {
+				connection.subscribed = false;
+				subscribers--;
+			}
+			send(connection, LockControlProtocol.ok(type));
+			break;
+		case LockControlProtocol.CMD_METRICS:
+			send(connection, LockControlProtocol.metrics(engine.getMetrics()));
+			break;
+		default:
+			send(connection, LockControlProtocol.error(type, "Unknown command"));
+		}
+	}
+
+	private void reply(Connection connection, byte type, CompletableFuture<?> future) {
+		future.whenComplete((result, ex) -> post(connection, response(type, ex)));
+	}
+
+	private static ByteBuffer response(byte type, Throwable ex) {
+		if (ex == null) {
+			return LockControlProtocol.ok(type);
+		}
+		Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+		return LockControlProtocol.error(type, cause.getMessage());
+	}
+
+	/**
+	 * Queues a frame from another thread; it is sent on the selector thread.
+	 */
+	private void post(Connection connection, ByteBuffer frame) {
+		pending.add(() -> send(connection, frame));
+		selector.wakeup();
+	}
+
+	private void send(Connection connection, ByteBuffer frame) {
+		if (connection.closed) {
+			return;
+		}
+		connection.out.add(frame);
+		connection.queuedBytes += frame.remaining();
+		write(connection);
+	}
+
+	private void write(Connection connection) {
+		try {
+			while (!connection.out.isEmpty()) {
+				ByteBuffer head = connection.out.peek();
+				int before = head.remaining();
+				connection.channel.write(head);
+				connection.queuedBytes -= before - head.remaining();
+				if (head.hasRemaining()) {
+					break;
+				}
+				connection.out.poll();
+			}
+			connection.key.interestOps(connection.out.isEmpty()
+					? SelectionKey.OP_READ
+					: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			close(connection);
+		}
+	}
+
+	private void close(Connection connection) {
+		if (connection.closed) {
+			return;
+		}
+		connection.closed = true;
+		if (connection.subscribed) {
+			subscribers--;
+		}
+		connections.remove(connection);
+		connection.key.cancel();
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+			// nothing left to do
+		}
+	}
+
+	/**
+	 * Called on the lock thread after every cycle. Only touches the ring.
+	 */
+	private void onError(Double error) {
+		if (subscribers == 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		double mean = engine.getFocusTask().getMean();
+		int count;
+		synchronized (ringLock) {
+			int index = (ringHead + ringCount) % RING_CAPACITY;
+			ringTimes[index] = now;
+			ringMeans[index] = mean;
+			ringErrors[index] = error;
+			if (ringCount < RING_CAPACITY) {
+				ringCount++;
+			} else {
+				ringHead = (ringHead + 1) % RING_CAPACITY; // overwrite the oldest
+			}
+			count = ringCount;
+		}
+		if (count >= BATCH_SIZE) {
+			selector.wakeup();
+		}
+	}
+
+	private int pendingSamples() {
+		synchronized (ringLock) {
+			return ringCount;
+		}
+	}
+
+	private void flushTelemetry() {
+		ByteBuffer batch;
+		synchronized (ringLock) {
+			if (ringCount == 0) {
+				return;
+			}
+			int count = Math.min(ringCount, (LockControlProtocol.MAX_FRAME_BYTES - 3) / LockControlProtocol.SAMPLE_BYTES);
+			batch = ByteBuffer.allocate(LockControlProtocol.HEADER_BYTES + 2 + count * LockControlProtocol.SAMPLE_BYTES);
+			batch.putInt(batch.capacity() - 4).put(LockControlProtocol.TELEMETRY).putShort((short) count);
+			for (int i = 0; i < count; i++) {
+				int index = (ringHead + i) % RING_CAPACITY;
+				batch.putLong(ringTimes[index]).putDouble(ringMeans[index]).putDouble(ringErrors[index]);
+			}
+			ringHead = (ringHead + count) % RING_CAPACITY;
+			ringCount -= count;
+		}
+		batch.flip();
+
+		for (Connection connection : new ArrayList<>(connections)) {
+			if (connection.subscribed && connection.queuedBytes < MAX_QUEUED_BYTES) {
+				send(connection, batch.duplicate());
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package com.myname.focuslock;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads of one {@link FocusLockEngine}. Every task of the plugin runs
+ * on one of these executors; they are created once with the engine and
+ * torn down by {@link #shutdown()}, so the thread count of the Micro-Manager
+ * JVM stays flat however often the lock is calibrated, locked or restarted.
+ *
+ * All threads are named "fgFocus ..." (plus the sensor name for all but the
+ * first sensor) and are daemons, so a missed shutdown can never keep
+ * Micro-Manager from exiting.
+ *
+ * Blocking stage calls go to a separate I/O executor, so they can overlap
+ * with the sensor exposure while the fits stay on the lock thread. On a JVM
+ * with virtual threads (Java 21+) the I/O executor uses them; otherwise it
+ * is a cached pool of platform threads.
+ */
+public class LockExecutors {
+	public enum IoThreads {
+		/** Virtual threads when the JVM has them, platform threads otherwise. */
+		AUTO,
+		PLATFORM
+	}
+
+	private static final long SHUTDOWN_TIMEOUT_MS = 2000;
+
+	private final ScheduledThreadPoolExecutor lock;
+	private final ScheduledThreadPoolExecutor sensor;
+	private final ExecutorService commands;
+	private final ExecutorService io;
+	private final boolean virtualIo;
+
+	public LockExecutors() {
+		this(IoThreads.AUTO);
+	}
+
+	public LockExecutors(IoThreads ioThreads) {
+		this("fgFocus", ioThreads);
+	}
+
+	/**
+	 * Executors whose threads are called "{@code prefix} lock" etc.
+	 */
+	public LockExecutors(String prefix, IoThreads ioThreads) {
+		// Focus loop and calibration steps; they never run at the same time.
+		// Highest priority so display and acquisition threads do not delay a correction
+		lock = new ScheduledThreadPoolExecutor(1, named(prefix + " lock", Thread.MAX_PRIORITY));
+		// Polling, the frame age watchdog and dark/flat captures
+		sensor = new ScheduledThreadPoolExecutor(2, named(prefix + " sensor"));
+		commands = Executors.newSingleThreadExecutor(named(prefix + " commands"));
+		ExecutorService virtual = ioThreads == IoThreads.AUTO ? newVirtualThreadExecutor() : null;
+		virtualIo = virtual != null;
+		io = virtualIo ? virtual : Executors.newCachedThreadPool(named(prefix + " io"));
+
+		// Cancelled loop steps are dropped right away instead of piling up in the queue
+		lock.setRemoveOnCancelPolicy(true);
+		sensor.setRemoveOnCancelPolicy(true);
+	}
+
+	public ScheduledExecutorService lock() {
+		return lock;
+	}
+
+	public ScheduledExecutorService sensor() {
+		return sensor;
+	}
+
+	public ExecutorService commands() {
+		return commands;
+	}
+
+	/**
+	 * Executor for blocking hardware calls.
+	 */
+	public ExecutorService io() {
+		return io;
+	}
+
+	public boolean usesVirtualThreads() {
+		return virtualIo;
+	}
+
+	/**
+	 * Interrupts whatever is running and waits briefly for the threads to exit.
+	 */
+	public void shutdown() {
+		lock.shutdownNow();
+		sensor.shutdownNow();
+		commands.shutdownNow();
+		io.shutdownNow();
+		try {
+			long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MS;
+			lock.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			sensor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			commands.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			io.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public boolean isShutdown() {
+		return lock.isShutdown();
+	}
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor() when the running JVM has
+	 * it, looked up reflectively since the plugin is built for Java 8.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Daemon threads called {@code name}, numbered when there are several.
+	 */
+	public static ThreadFactory named(String name) {
+		return named(name, Thread.NORM_PRIORITY);
+	}
+
+	public static ThreadFactory named(String name, int priority) {
+		AtomicInteger count = new AtomicInteger();
+		return r -> {
+			int n = count.incrementAndGet();
+			Thread t = new Thread(r, n == 1 ? name : name + " " + n);
+			t.setDaemon(true);
+			t.setPriority(priority);
+			return t;
+		};
+	}
+}
@@ -0,0 +1,114 @@
+package com.myname.focuslock;
+
+/**
+ * Streaming lock-in for frames taken alternately with the IR laser on and
+ * off. Light that does not come from the laser (room light, the microscope
+ * lamp or LEDs, the sensor dark level) is in both frames and cancels in the
+ * difference, leaving only the reflected beam.
+ *
+ * Every new frame is paired with the most recent frame of the other phase,
+ * so once running each exposure yields a demodulated frame. When the laser
+ * is on between two off frames, the background is interpolated to the time
+ * of the on frame, which also cancels background that drifts linearly.
+ * Frames older than the maximum age are not paired, so a lamp switched on
+ * or off cannot leak into the result through a stale background.
+ */
+public class LockInDemodulator {
+	private final double[] on;
+	private final double[] off;
+	private final double[] previousOff;
+	private long onNanos = Long.MIN_VALUE;
+	private long offNanos = Long.MIN_VALUE;
+	private long previousOffNanos = Long.MIN_VALUE;
+	private boolean hasOn = false;
+	private boolean hasOff = false;
+	private boolean hasPreviousOff = false;
+	private long maxAgeNanos;
+
+	public LockInDemodulator(int pixels, long maxAgeMs) {
+		on = new double[pixels];
+		off = new double[pixels];
+		previousOff = new double[pixels];
+		setMaxAge(maxAgeMs);
+	}
+
+	/**
+	 * How old the frame of the other phase may be to still be paired.
+	 */
+	public synchronized void setMaxAge(long maxAgeMs) {
+		maxAgeNanos = maxAgeMs * 1_000_000L;
+	}
+
+	public synchronized void reset() {
+		hasOn = false;
+		hasOff = false;
+		hasPreviousOff = false;
+	}
+
+	/**
+	 * Adds a frame taken with the laser on ({@code laserOn}) or off at
+	 * {@code timeNanos} ({@link System#nanoTime()}).
+	 */
+	public synchronized void add(short[] frame, boolean laserOn, long timeNanos) {
+		if (frame.length != on.length) {
+			throw new IllegalArgumentException("Expected " + on.length + " pixels, got " + frame.length);
+		}
+		if (laserOn) {
+			copy(frame, on);
+			onNanos = timeNanos;
+			hasOn = true;
+		} else {
+			if (hasOff) {
+				System.arraycopy(off, 0, previousOff, 0, off.length);
+				previousOffNanos = offNanos;
+				hasPreviousOff = true;
+			}
+			copy(frame, off);
+			offNanos = timeNanos;
+			hasOff = true;
+		}
+	}
+
+	/**
+	 * True when a frame of the other phase than {@code laserOn}, recent
+	 * enough to pair with a frame taken at {@code timeNanos}, is available.
+	 */
+	public synchronized boolean canPair(boolean laserOn, long timeNanos) {
+		return laserOn
+				? hasOff && timeNanos - offNanos <= maxAgeNanos
+				: hasOn && timeNanos - onNanos <= maxAgeNanos;
+	}
+
+	/**
+	 * Writes the laser-only signal into {@code out} and returns true, or
+	 * returns false while no fresh on/off pair is available.
+	 */
+	public synchronized boolean demodulate(double[] out) {
+		if (!hasOn || !hasOff || Math.abs(onNanos - offNanos) > maxAgeNanos) {
+			return false;
+		}
+		if (hasPreviousOff && previousOffNanos < onNanos && onNanos < offNanos
+				&& offNanos - previousOffNanos <= 2 * maxAgeNanos) {
+			// On frame between two off frames: background at the time of the on frame
+			double w = (double) (onNanos - previousOffNanos) / (offNanos - previousOffNanos);
+			for (int i = 0; i < out.length; i++) {
+				out[i] = on[i] - (previousOff[i] + w * (off[i] - previousOff[i]));
+			}
+		} else {
+			for (int i = 0; i < out.length; i++) {
+				out[i] = on[i] - off[i];
+			}
+		}
+		return true;
+	}
+
+	public int getPixels() {
+		return on.length;
+	}
+
+	private static void copy(short[] frame, double[] to) {
+		for (int i = 0; i < frame.length; i++) {
+			to[i] = frame[i] & 0xFFFF;
+		}
+	}
+}
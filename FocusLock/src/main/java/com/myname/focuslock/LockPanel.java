@@ -11,7 +11,6 @@ import de.embl.rieslab.emu.ui.uiproperties.UIProperty;
 import de.embl.rieslab.emu.ui.uiproperties.flag.NoFlag;
 import de.embl.rieslab.emu.utils.EmuUtils;
 import de.embl.rieslab.emu.utils.exceptions.IncorrectUIPropertyTypeException;
-import mmcorej.CMMCore;
 
 import javax.swing.JTextField;
 import javax.swing.JLabel;
@@ -23,8 +22,12 @@ import java.awt.Font;
 import javax.swing.JTextPane;
 import javax.swing.JToggleButton;
 import javax.swing.JSpinner;
+import javax.swing.JComboBox;
 import javax.swing.SpinnerNumberModel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Consumer; // Add this at the top
+import javax.swing.SwingUtilities;
 import org.micromanager.Studio;
 
 public class LockPanel extends ConfigurablePanel {
@@ -37,15 +40,22 @@ public class LockPanel extends ConfigurablePanel {
 	private JSpinner spinner_kp;
 	private JSpinner spinner_ki;
 	private JSpinner spinner_kd;
+	private JSpinner spinner_depth;
+	private JComboBox<FrameFilter.Type> comboFilter;
 	private JTextPane txtpnNm;
 	private JToggleButton btnEnable;
 	private JToggleButton btnLock;
 	private JButton btnCalibration_1;
+	private JButton btnDark;
+	private JButton btnFlat;
 	private JLabel lblStatus;
-	private CameraPollingTask cameraPollingTask;
+	private JLabel lblStability;
+	private JLabel lblAllan;
+	private FocusLockEngine engine;
+	// Listeners this panel put on the engine, which outlives it
+	private final List<Object> engineListeners = new ArrayList<>();
 	private Consumer<short[]> pixelDataListener;
 	private Consumer<double[]> referanceDataListener;
-	private FocusTask focusTask;
 	// properties
 	public final String FOCUS_AVERAGE = "average";
 	public final String FOCUS_EXPOSURE = "exposure";
@@ -53,12 +63,17 @@ public class LockPanel extends ConfigurablePanel {
 	// settings
 	private double exposure;
 	private int average;
-	private double slopeCal;
 	private SystemController systemController_;
 	private Studio studio;
-	private CMMCore privateCore;
 
 	public LockPanel(String label, SystemController systemController) {
+		this(label, systemController, SensorConfig.defaults());
+	}
+
+	/**
+	 * Panel controlling the light sensor described by {@code sensor}.
+	 */
+	public LockPanel(String label, SystemController systemController, SensorConfig sensor) {
 		super(label);
 		setLayout(null);
 		
@@ -157,9 +172,55 @@ public class LockPanel extends ConfigurablePanel {
 		lblKd.setBounds(22, 328, 45, 13);
 		add(lblKd);
 		
-		privateCore = new CMMCore();
-        cameraPollingTask = new CameraPollingTask(systemController_.getStudio(), privateCore); // studio must be set externally
-		focusTask = new FocusTask(systemController_.getStudio(), cameraPollingTask);
+		btnDark = new JButton("Dark");
+		btnDark.setFont(new Font("Tahoma", Font.PLAIN, 12));
+		btnDark.setToolTipText("Record the dark profile with the laser off or blocked");
+		btnDark.setBounds(17, 352, 93, 30);
+		add(btnDark);
+		
+		btnFlat = new JButton("Flat");
+		btnFlat.setFont(new Font("Tahoma", Font.PLAIN, 12));
+		btnFlat.setToolTipText("Record the flat profile under uniform illumination");
+		btnFlat.setBounds(117, 352, 93, 30);
+		add(btnFlat);
+		
+		JLabel lblSmoothing = new JLabel("Smoothing");
+		lblSmoothing.setFont(new Font("Tahoma", Font.PLAIN, 12));
+		lblSmoothing.setBounds(22, 396, 60, 13);
+		add(lblSmoothing);
+		
+		comboFilter = new JComboBox<>(FrameFilter.Type.values());
+		comboFilter.setFont(new Font("Tahoma", Font.PLAIN, 12));
+		comboFilter.setToolTipText("Software filter applied to the frames used by the focus lock");
+		comboFilter.setBounds(85, 390, 70, 24);
+		add(comboFilter);
+		
+		spinner_depth = new JSpinner();
+		spinner_depth.setModel(new SpinnerNumberModel(5, 1, 100, 1));
+		spinner_depth.setFont(new Font("Tahoma", Font.PLAIN, 12));
+		spinner_depth.setToolTipText("Number of frames the smoothing filter spans");
+		spinner_depth.setBounds(160, 390, 50, 24);
+		add(spinner_depth);
+		
+		lblStability = new JLabel("RMS -  p-p -");
+		lblStability.setFont(new Font("Tahoma", Font.PLAIN, 12));
+		lblStability.setToolTipText("RMS and peak-to-peak focus error over the last 100 cycles, and the sample drift the lock corrects");
+		lblStability.setBounds(22, 422, 190, 15);
+		add(lblStability);
+		
+		lblAllan = new JLabel("Allan -");
+		lblAllan.setFont(new Font("Tahoma", Font.PLAIN, 12));
+		lblAllan.setToolTipText("Lowest Allan deviation of the uncorrected focus and its averaging time: the slowest useful loop period");
+		lblAllan.setBounds(22, 440, 190, 15);
+		add(lblAllan);
+		
+		// Reuses the engine of a previous panel; the sensor opens in the background
+		engine = FocusLockEngine.obtain(systemController_.getStudio(), sensor); // studio must be set externally
+		try {
+			engine.startRemoteServer(sensor.getControlPort());
+		} catch (Exception e) {
+			systemController_.getStudio().logs().logMessage("Focus lock control server not started: " + e.getMessage());
+		}
 
 		// TODO Auto-generated constructor stub
 	}
@@ -171,32 +232,69 @@ public class LockPanel extends ConfigurablePanel {
 
 	    SwingUIListeners.addChangeListenerOnNumericalValue(this, propertyExposure, spinner);
 	    SwingUIListeners.addChangeListenerOnNumericalValue(this, propertyAverage, spinner_1);
-	    // Disable Lock Focus button by default
-	    btnLock.setEnabled(false);
+	    // Lock Focus needs a calibration, which a reused engine may already have
+	    btnLock.setEnabled(engine.isCalibrated());
+	    btnEnable.setSelected(engine.isMonitoring());
+	    btnLock.setSelected(engine.isLocked());
+
+	    engine.addStartupListener(keep(startup -> SwingUtilities.invokeLater(() -> {
+	        if (startup == FocusLockEngine.Startup.STARTING) {
+	            lblStatus.setText("Sensor starting...");
+	        } else if (startup == FocusLockEngine.Startup.READY) {
+	            lblStatus.setText("Sensor ready");
+	        } else if (startup == FocusLockEngine.Startup.FAILED) {
+	            lblStatus.setText("Sensor failed to start");
+	            btnEnable.setSelected(false);
+	        }
+	    })));
 
 	    // Button calibrate
 	    btnCalibration_1.addActionListener(e -> {
-	        // If Focus Lock is on, turn it off before calibrating
+	        // If Focus Lock is on, the engine turns it off before calibrating
 	        if (btnLock.isSelected()) {
 	            btnLock.setSelected(false);          // uncheck the toggle
-	            focusLocking(false);                 // disable focus lock logic
+	            referanceDataListener.accept(new double[3]);
 	            lblStatus.setText("Focuslock disabled for calibration.");
 	        }
+	        btnLock.setEnabled(false);
+	        engine.calibrate();
+	    });
 
-	        CalibrateTask calibrateTask = new CalibrateTask(systemController_.getStudio(), cameraPollingTask);
+	    engine.addCalibrationListener(keep(slope -> SwingUtilities.invokeLater(() -> {
+	        lblStatus.setText(String.format("Calibrated: %.4f µm/pixel", slope));
+	        // Enable Focus Lock button after calibration
+	        btnLock.setEnabled(engine.isCalibrated());
+	    })));
 
-	        calibrateTask.setOnCalibrationFinished((slope, intercept) -> {
-	            lblStatus.setText(String.format("Calibrated: %.4f µm/pixel", slope));
-	            if (!Double.isNaN(slope)) {
-		            slopeCal = slope;
-		            // Enable Focus Lock button after calibration
-		            btnLock.setEnabled(true);
-	            }
-	        });
+	    engine.addStateListener(keep(state -> SwingUtilities.invokeLater(() -> {
+	        if (state == FocusLockEngine.State.PAUSED) {
+	            lblStatus.setText("Focuslock paused for acquisition");
+	        } else if (state == FocusLockEngine.State.LOCKED) {
+	            lblStatus.setText("Focuslock active");
+	        }
+	    })));
+
+	    engine.addSensorStateListener(keep(state -> SwingUtilities.invokeLater(() -> {
+	        lblStatus.setText("Sensor " + state.toString().toLowerCase());
+	    })));
 
-	        calibrateTask.startCalibration();
+	    // Dark and flat profiles for the sensor correction
+	    engine.addCorrectionListener(keep(message -> SwingUtilities.invokeLater(() -> lblStatus.setText(message))));
+	    btnDark.addActionListener(e -> {
+	        lblStatus.setText("Recording dark profile...");
+	        engine.captureDark();
+	    });
+	    btnFlat.addActionListener(e -> {
+	        lblStatus.setText("Recording flat profile...");
+	        engine.captureFlat();
 	    });
 
+	    engine.addFrameListener(keep(data -> {
+	        if (pixelDataListener != null) {
+	            pixelDataListener.accept(data);
+	        }
+	    }));
+
 	    // Monitor position
 	    SwingUIListeners.addActionListenerToBooleanAction(b -> monitorPosition(b), btnEnable);
 
@@ -206,34 +304,38 @@ public class LockPanel extends ConfigurablePanel {
 	    spinner_1.addChangeListener(e -> {
 	    	average = (int) spinner_1.getValue();
 //	    	studio.logs().logMessage("Updated average to: " + average);
-        	cameraPollingTask.setAverage(average);
+        	engine.setAverage(average);
             
 	    });
 	    
 	    spinner.addChangeListener(e -> {
 	    	exposure = (double) spinner.getValue();
 //	    	studio.logs().logMessage("Updated exposure to: " + exposure);
-        	cameraPollingTask.setExposure(exposure);
+        	engine.setExposure(exposure);
 	    });
 	    
+	    comboFilter.addActionListener(e -> updateLockFilter());
+	    spinner_depth.addChangeListener(e -> updateLockFilter());
+	    
 	    spinner_kp.addChangeListener(e -> {
 	    	double kp = (double) spinner_kp.getValue();
-	    	focusTask.setProportionalGain(kp);
+	    	engine.setProportionalGain(kp);
 	    });
 	    
 	    spinner_ki.addChangeListener(e -> {
 	    	double ki = (double) spinner_ki.getValue();
-	    	focusTask.setIntegratoinGain(ki);
+	    	engine.setIntegralGain(ki);
 	    });
 	    
 	    spinner_kd.addChangeListener(e -> {
 	    	double kd = (double) spinner_kd.getValue();
-	    	focusTask.setDifferentialGain(kd);
+	    	engine.setDifferentialGain(kd);
 	    });
 	    
-	    focusTask.setOnErrorUpdate((error) -> {
+	    engine.addErrorListener(keep((error) -> SwingUtilities.invokeLater(() -> {
 	    	txtpnNm.setText(String.format("%.2f", error*1000.0) + " nm");
-	    });
+	    	updateStatistics();
+	    })));
 	}
 
 
@@ -300,36 +402,77 @@ public class LockPanel extends ConfigurablePanel {
 	}
 
 
+	/**
+	 * Remembers a listener put on the engine, to take it off in shutDown().
+	 */
+	private <T> Consumer<T> keep(Consumer<T> listener) {
+		engineListeners.add(listener);
+		return listener;
+	}
+
 	@Override
 	public void shutDown() {
-		// TODO Auto-generated method stub
+		// The engine keeps the sensor open for the next panel
+		for (Object listener : engineListeners) {
+			engine.removeListener(listener);
+		}
+		engineListeners.clear();
+		engine.release();
 	}
 	
 	protected void monitorPosition(boolean enabled) {
 	    if (enabled) {
-	        cameraPollingTask.start();
+	        engine.startMonitoring();
 	        lblStatus.setText("Camera Polling...");
-            if (pixelDataListener != null) {
-                cameraPollingTask.setOnImageUpdate(pixelDataListener);
-            }
 	    } else {
-            cameraPollingTask.stop();
+	        engine.stopMonitoring();
 	        lblStatus.setText("Camera Stopped");
 	    }
 	}
 	
 	protected void focusLocking(boolean enabled) {
 		if (enabled) {
-			double[] result = focusTask.startFocus(slopeCal);
 	        lblStatus.setText("Start Focuslock");
-	        if (referanceDataListener != null) {
-	        	referanceDataListener.accept(result);
-	        }
+			engine.lock().whenComplete((result, ex) -> SwingUtilities.invokeLater(() -> {
+				if (ex != null) {
+					btnLock.setSelected(false);
+					Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+					lblStatus.setText("Lock failed: " + cause.getMessage());
+				} else if (referanceDataListener != null) {
+					referanceDataListener.accept(result);
+				}
+			}));
 		} else {
-			focusTask.stopFocus();
+			engine.unlock();
 	        lblStatus.setText("Stop Focuslock");
-	        referanceDataListener.accept(new double[3]);
+	        if (referanceDataListener != null) {
+	        	referanceDataListener.accept(new double[3]);
+	        }
+		}
+	}
+	
+	protected void updateStatistics() {
+		LockStatistics statistics = engine.getStatistics();
+		if (statistics.getCount() == 0) {
+			lblStability.setText("RMS -  p-p -");
+			lblAllan.setText("Allan -");
+			return;
 		}
+		lblStability.setText(String.format("RMS %.1f  p-p %.1f nm  %+.1f nm/s", statistics.getRmsUm() * 1000.0,
+				statistics.getPeakToPeakUm() * 1000.0, statistics.getDriftUmPerS() * 1000.0));
+		double tau = statistics.getBestTauS();
+		lblAllan.setText(Double.isNaN(tau) ? "Allan -"
+				: String.format("Allan %.1f nm at %.2f s", statistics.getMinAllanDeviationUm() * 1000.0, tau));
+	}
+	
+	public FocusLockEngine getEngine() {
+		return engine;
+	}
+	
+	protected void updateLockFilter() {
+		FrameFilter.Type type = (FrameFilter.Type) comboFilter.getSelectedItem();
+		int depth = (int) spinner_depth.getValue();
+		engine.setLockFilter(type.create(depth));
 	}
 	
 	public void setPixelDataListener(Consumer<short[]> listener) {
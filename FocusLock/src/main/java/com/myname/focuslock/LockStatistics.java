@@ -0,0 +1,331 @@
+package com.myname.focuslock;
+
+import java.util.Arrays;
+
+/**
+ * Stability statistics of a running lock, updated with every error sample
+ * of the loop in constant memory:
+ *
+ * - RMS and peak-to-peak of the residual error over the last
+ *   {@code window} samples;
+ * - drift rate over the same window, by a least-squares line through time,
+ *   of the residual error and of the open-loop position, i.e. the error the
+ *   sensor would see had the lock not moved the stage (error plus all
+ *   corrections since the lock started);
+ * - overlapping Allan deviation of the open-loop position at averaging
+ *   times of 1, 2, 4, ... samples since the lock started. Where it is
+ *   lowest, sensor noise and drift balance: that averaging time is the
+ *   slowest useful loop period, and sensor averaging beyond it only adds lag.
+ *
+ * The window sums are updated incrementally and rebuilt from the ring once
+ * per window, so rounding cannot pile up; the sliding minimum and maximum
+ * use monotone queues. Every sample costs O(octaves) amortised.
+ *
+ * Allan deviation assumes equally spaced samples; the times reported for it
+ * use the mean sample period, so with the adaptive loop rate they are
+ * approximate. Fix the rate to measure them.
+ */
+public class LockStatistics {
+	private final int window;
+	private final int octaves;
+
+	// Last samples, indexed by sequence number modulo the window
+	private final double[] errors;
+	private final double[] open;
+	private final double[] times;
+	private long count = 0;
+	private int sinceRebuild = 0;
+
+	private double sumE, sumE2, sumT, sumT2, sumTE, sumO, sumTO;
+
+	// Sequence numbers of the sliding minimum and maximum candidates
+	private final long[] minQueue;
+	private final long[] maxQueue;
+	private int minHead, minSize, maxHead, maxSize;
+
+	// Running sums of the open-loop position; x[n] is the sum of the first n
+	private final double[] phase;
+	private double cumulative = 0;
+	private final double[] allanSum;
+	private final long[] allanCount;
+
+	private double appliedUm = 0;
+	private long startNanos = -1;
+	private double lastTime = 0;
+
+	public LockStatistics() {
+		this(100, 10);
+	}
+
+	/**
+	 * {@code window} samples for RMS, peak-to-peak and drift; Allan deviation
+	 * up to 2^({@code octaves}-1) samples.
+	 */
+	public LockStatistics(int window, int octaves) {
+		if (window < 2 || octaves < 1 || octaves > 20) {
+			throw new IllegalArgumentException("Need window >= 2 and 1 <= octaves <= 20");
+		}
+		this.window = window;
+		this.octaves = octaves;
+		errors = new double[window];
+		open = new double[window];
+		times = new double[window];
+		minQueue = new long[window];
+		maxQueue = new long[window];
+		phase = new double[2 * (1 << (octaves - 1)) + 1];
+		allanSum = new double[octaves];
+		allanCount = new long[octaves];
+	}
+
+	/**
+	 * Adds the error of a loop cycle in µm, the stage motion since the
+	 * previous cycle in µm and the time of the frame.
+	 */
+	public synchronized void add(double errorUm, double movedUm, long timeNanos) {
+		if (Double.isNaN(errorUm)) {
+			return;
+		}
+		if (startNanos < 0) {
+			startNanos = timeNanos;
+		}
+		// A move of dz changes the error by -dz, so adding the moves back
+		// gives what the sensor would have seen without the lock
+		appliedUm += movedUm;
+		double openUm = errorUm + appliedUm;
+		double t = (timeNanos - startNanos) / 1e9;
+		lastTime = t;
+
+		long seq = count;
+		int slot = (int) (seq % window);
+		if (count >= window) {
+			double e = errors[slot];
+			double o = open[slot];
+			double s = times[slot];
+			sumE -= e;
+			sumE2 -= e * e;
+			sumT -= s;
+			sumT2 -= s * s;
+			sumTE -= s * e;
+			sumO -= o;
+			sumTO -= s * o;
+		}
+		errors[slot] = errorUm;
+		open[slot] = openUm;
+		times[slot] = t;
+		sumE += errorUm;
+		sumE2 += errorUm * errorUm;
+		sumT += t;
+		sumT2 += t * t;
+		sumTE += t * errorUm;
+		sumO += openUm;
+		sumTO += t * openUm;
+		count++;
+		if (++sinceRebuild >= window) {
+			rebuild();
+		}
+
+		pushExtremes(seq, errorUm);
+		addAllan(seq, openUm);
+	}
+
+	/**
+	 * Starts over, e.g. for a new lock.
+	 */
+	public synchronized void reset() {
+		count = 0;
+		sinceRebuild = 0;
+		sumE = sumE2 = sumT = sumT2 = sumTE = sumO = sumTO = 0;
+		minHead = minSize = maxHead = maxSize = 0;
+		cumulative = 0;
+		phase[0] = 0;
+		Arrays.fill(allanSum, 0);
+		Arrays.fill(allanCount, 0);
+		appliedUm = 0;
+		startNanos = -1;
+		lastTime = 0;
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Samples in the window, at most {@code window}.
+	 */
+	private int filled() {
+		return (int) Math.min(count, window);
+	}
+
+	/**
+	 * RMS of the residual error over the window in µm.
+	 */
+	public synchronized double getRmsUm() {
+		int n = filled();
+		return n == 0 ? Double.NaN : Math.sqrt(Math.max(sumE2, 0) / n);
+	}
+
+	/**
+	 * Largest minus smallest residual error over the window in µm.
+	 */
+	public synchronized double getPeakToPeakUm() {
+		if (count == 0) {
+			return Double.NaN;
+		}
+		return errors[(int) (maxQueue[maxHead] % window)] - errors[(int) (minQueue[minHead] % window)];
+	}
+
+	/**
+	 * Drift of the residual error over the window in µm/s; near 0 while the
+	 * lock keeps up.
+	 */
+	public synchronized double getResidualDriftUmPerS() {
+		return slope(sumE, sumTE);
+	}
+
+	/**
+	 * Drift of the sample over the window in µm/s, as the lock corrected it.
+	 */
+	public synchronized double getDriftUmPerS() {
+		return slope(sumO, sumTO);
+	}
+
+	/**
+	 * Mean time between samples in s, NaN before the second sample.
+	 */
+	public synchronized double getSamplePeriodS() {
+		return count < 2 ? Double.NaN : lastTime / (count - 1);
+	}
+
+	/**
+	 * Averaging times in s of {@link #getAllanDeviationUm()}, 1, 2, 4, ...
+	 * sample periods.
+	 */
+	public synchronized double[] getTauS() {
+		double period = getSamplePeriodS();
+		double[] tau = new double[octaves];
+		for (int k = 0; k < octaves; k++) {
+			tau[k] = (1 << k) * period;
+		}
+		return tau;
+	}
+
+	/**
+	 * Overlapping Allan deviation of the open-loop position in µm per
+	 * octave; NaN for averaging times the lock has not run long enough for.
+	 */
+	public synchronized double[] getAllanDeviationUm() {
+		double[] adev = new double[octaves];
+		for (int k = 0; k < octaves; k++) {
+			adev[k] = allanCount[k] == 0 ? Double.NaN : Math.sqrt(allanSum[k] / (2.0 * allanCount[k]));
+		}
+		return adev;
+	}
+
+	/**
+	 * Averaging time in s at which the Allan deviation is lowest, NaN
+	 * before the first estimate.
+	 */
+	public synchronized double getBestTauS() {
+		int best = bestOctave();
+		return best < 0 ? Double.NaN : (1 << best) * getSamplePeriodS();
+	}
+
+	/**
+	 * Lowest Allan deviation in µm, NaN before the first estimate.
+	 */
+	public synchronized double getMinAllanDeviationUm() {
+		int best = bestOctave();
+		return best < 0 ? Double.NaN : Math.sqrt(allanSum[best] / (2.0 * allanCount[best]));
+	}
+
+	private int bestOctave() {
+		int best = -1;
+		double lowest = Double.POSITIVE_INFINITY;
+		for (int k = 0; k < octaves; k++) {
+			if (allanCount[k] > 0) {
+				double avar = allanSum[k] / allanCount[k];
+				if (avar < lowest) {
+					lowest = avar;
+					best = k;
+				}
+			}
+		}
+		return best;
+	}
+
+	private double slope(double sumY, double sumTY) {
+		int n = filled();
+		if (n < 2) {
+			return Double.NaN;
+		}
+		double varT = sumT2 - sumT * sumT / n;
+		return varT > 0 ? (sumTY - sumT * sumY / n) / varT : Double.NaN;
+	}
+
+	/**
+	 * Recomputes the window sums from the ring.
+	 */
+	private void rebuild() {
+		sumE = sumE2 = sumT = sumT2 = sumTE = sumO = sumTO = 0;
+		int n = filled();
+		for (int i = 0; i < n; i++) {
+			double e = errors[i];
+			double o = open[i];
+			double s = times[i];
+			sumE += e;
+			sumE2 += e * e;
+			sumT += s;
+			sumT2 += s * s;
+			sumTE += s * e;
+			sumO += o;
+			sumTO += s * o;
+		}
+		sinceRebuild = 0;
+	}
+
+	/**
+	 * Keeps the minimum and maximum of the window at the heads of their
+	 * queues; every sample enters and leaves each queue once.
+	 */
+	private void pushExtremes(long seq, double value) {
+		long oldest = seq - window + 1;
+		if (minSize > 0 && minQueue[minHead] < oldest) {
+			minHead = (minHead + 1) % window;
+			minSize--;
+		}
+		while (minSize > 0 && errors[(int) (minQueue[(minHead + minSize - 1) % window] % window)] >= value) {
+			minSize--;
+		}
+		minQueue[(minHead + minSize++) % window] = seq;
+
+		if (maxSize > 0 && maxQueue[maxHead] < oldest) {
+			maxHead = (maxHead + 1) % window;
+			maxSize--;
+		}
+		while (maxSize > 0 && errors[(int) (maxQueue[(maxHead + maxSize - 1) % window] % window)] <= value) {
+			maxSize--;
+		}
+		maxQueue[(maxHead + maxSize++) % window] = seq;
+	}
+
+	/**
+	 * With x the running sum, the difference of two adjacent averages over m
+	 * samples is (x[n] - 2 x[n-m] + x[n-2m]) / m; every sample completes one
+	 * such pair per octave.
+	 */
+	private void addAllan(long seq, double value) {
+		int size = phase.length;
+		cumulative += value;
+		long n = seq + 1;
+		phase[(int) (n % size)] = cumulative;
+		for (int k = 0; k < octaves; k++) {
+			int m = 1 << k;
+			if (n < 2L * m) {
+				break;
+			}
+			double d = (cumulative - 2 * phase[(int) ((n - m) % size)] + phase[(int) ((n - 2 * m) % size)]) / m;
+			allanSum[k] += d * d;
+			allanCount[k]++;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package com.myname.focuslock;
+
+/**
+ * Picks the period of the focus loop from how the focus behaves. While the
+ * error and the drift stay small the loop slows down step by step, leaving
+ * the USB bus and the CPU to the main camera; a bump or a fast drift brings
+ * it straight back to the fastest rate.
+ *
+ * The drift is the change of the error between two frames minus the stage
+ * moves made in between, so the lock's own corrections do not count as a
+ * disturbance. Two thresholds and a number of quiet cycles give hysteresis:
+ *
+ * - error or drift per period above {@code disturbedUm}: fastest rate at once;
+ * - both below {@code quietUm} for {@code quietCycles} cycles in a row:
+ *   period doubled, up to the slowest rate;
+ * - in between: rate kept.
+ */
+public class LoopRate {
+	private volatile boolean adaptive = true;
+	private volatile long minPeriodMs;
+	private volatile long maxPeriodMs;
+	private volatile double quietUm = 0.01;
+	private volatile double disturbedUm = 0.05;
+	private volatile int quietCycles = 5;
+
+	private volatile long periodMs;
+	private long nominalPeriodMs;
+	private double previousErrorUm = Double.NaN;
+	private long previousNanos;
+	private int quiet = 0;
+
+	public LoopRate(long minPeriodMs, long maxPeriodMs) {
+		setLimits(minPeriodMs, maxPeriodMs);
+		reset(minPeriodMs);
+	}
+
+	/**
+	 * Starts over at {@code periodMs}, which is also the fixed period while
+	 * adaptation is off.
+	 */
+	public synchronized void reset(long periodMs) {
+		nominalPeriodMs = periodMs;
+		this.periodMs = adaptive ? clamp(periodMs) : periodMs;
+		previousErrorUm = Double.NaN;
+		quiet = 0;
+	}
+
+	/**
+	 * Forgets the last error, e.g. after a gap in the measurements, so the
+	 * next one does not count as drift.
+	 */
+	public synchronized void restart() {
+		previousErrorUm = Double.NaN;
+	}
+
+	/**
+	 * Goes to the fastest rate at once, e.g. while the beam is lost.
+	 */
+	public synchronized void hurry() {
+		if (adaptive) {
+			periodMs = minPeriodMs;
+			quiet = 0;
+		}
+	}
+
+	/**
+	 * Feeds the focus error of a frame and the stage motion since the
+	 * previous frame, both in µm. Returns the period to wait before the next
+	 * frame in ms.
+	 */
+	public synchronized long update(double errorUm, double movedUm, long timeNanos) {
+		if (!adaptive) {
+			return periodMs;
+		}
+		double driftUm = 0;
+		if (!Double.isNaN(previousErrorUm)) {
+			// A move of dz changes the error by -dz; what is left is the sample
+			double dt = (timeNanos - previousNanos) / 1e9;
+			double change = errorUm - previousErrorUm + movedUm;
+			driftUm = dt > 0 ? Math.abs(change) / dt * periodMs / 1000.0 : 0;
+		}
+		previousErrorUm = errorUm;
+		previousNanos = timeNanos;
+
+		double magnitude = Math.max(Math.abs(errorUm), driftUm);
+		if (magnitude > disturbedUm) {
+			periodMs = minPeriodMs;
+			quiet = 0;
+		} else if (magnitude < quietUm) {
+			if (++quiet >= quietCycles) {
+				periodMs = Math.min(periodMs * 2, maxPeriodMs);
+				quiet = 0;
+			}
+		} else {
+			quiet = 0;
+		}
+		return periodMs;
+	}
+
+	public long getPeriodMs() {
+		return periodMs;
+	}
+
+	/**
+	 * Fastest and slowest loop period in ms.
+	 */
+	public synchronized void setLimits(long minPeriodMs, long maxPeriodMs) {
+		if (minPeriodMs <= 0 || maxPeriodMs < minPeriodMs) {
+			throw new IllegalArgumentException("Need 0 < min <= max, got " + minPeriodMs + " and " + maxPeriodMs);
+		}
+		this.minPeriodMs = minPeriodMs;
+		this.maxPeriodMs = maxPeriodMs;
+		periodMs = clamp(periodMs);
+	}
+
+	public long getMinPeriodMs() {
+		return minPeriodMs;
+	}
+
+	public long getMaxPeriodMs() {
+		return maxPeriodMs;
+	}
+
+	/**
+	 * Error or drift per period in µm below which the focus counts as quiet
+	 * for {@code cycles} cycles before the loop slows down, and above which
+	 * it returns to the fastest rate.
+	 */
+	public void setThresholds(double quietUm, double disturbedUm, int cycles) {
+		this.quietUm = quietUm;
+		this.disturbedUm = disturbedUm;
+		this.quietCycles = cycles;
+	}
+
+	/**
+	 * Off keeps the period given to {@link #reset(long)}.
+	 */
+	public synchronized void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+		periodMs = adaptive ? clamp(nominalPeriodMs) : nominalPeriodMs;
+	}
+
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	private long clamp(long ms) {
+		return Math.max(minPeriodMs, Math.min(maxPeriodMs, ms));
+	}
+}
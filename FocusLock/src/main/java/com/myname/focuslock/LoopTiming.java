@@ -0,0 +1,83 @@
+package com.myname.focuslock;
+
+/**
+ * Timing statistics of the focus loop. Every step records how long after
+ * scheduling it actually started compared to the requested delay; the
+ * difference is the jitter of the loop. Constant time and memory, so it can
+ * run for weeks.
+ */
+public class LoopTiming {
+	private long count = 0;
+	private double sumJitter = 0;
+	private double sumJitterSq = 0;
+	private double maxJitter = 0;
+	private long lastStartNanos = -1;
+	private double sumPeriod = 0;
+	private long periods = 0;
+
+	/**
+	 * Records a step that was scheduled {@code requestedNanos} ahead and
+	 * started {@code actualNanos} after being scheduled.
+	 */
+	public synchronized void record(long requestedNanos, long actualNanos, long startNanos) {
+		double jitterMs = (actualNanos - requestedNanos) / 1e6;
+		count++;
+		sumJitter += jitterMs;
+		sumJitterSq += jitterMs * jitterMs;
+		maxJitter = Math.max(maxJitter, Math.abs(jitterMs));
+
+		if (lastStartNanos >= 0) {
+			sumPeriod += (startNanos - lastStartNanos) / 1e6;
+			periods++;
+		}
+		lastStartNanos = startNanos;
+	}
+
+	/**
+	 * Marks a break in the loop, e.g. a stop or pause, so the gap is not
+	 * counted as a period.
+	 */
+	public synchronized void restart() {
+		lastStartNanos = -1;
+	}
+
+	public synchronized void reset() {
+		count = 0;
+		sumJitter = 0;
+		sumJitterSq = 0;
+		maxJitter = 0;
+		lastStartNanos = -1;
+		sumPeriod = 0;
+		periods = 0;
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Mean lateness of a step in ms; positive when steps start late.
+	 */
+	public synchronized double getMeanJitterMs() {
+		return count == 0 ? Double.NaN : sumJitter / count;
+	}
+
+	/**
+	 * RMS deviation from the requested delay in ms.
+	 */
+	public synchronized double getRmsJitterMs() {
+		return count == 0 ? Double.NaN : Math.sqrt(sumJitterSq / count);
+	}
+
+	public synchronized double getMaxJitterMs() {
+		return count == 0 ? Double.NaN : maxJitter;
+	}
+
+	/**
+	 * Mean time between the starts of consecutive steps in ms, including
+	 * the time the steps themselves take.
+	 */
+	public synchronized double getMeanPeriodMs() {
+		return periods == 0 ? Double.NaN : sumPeriod / periods;
+	}
+}
@@ -0,0 +1,57 @@
+package com.myname.focuslock;
+
+/**
+ * Per-pixel median over the last {@code depth} frames. Rejects single-frame
+ * outliers (USB glitches, stray reflections) that a mean would smear out.
+ */
+public class MedianFilter implements FrameFilter {
+	private final int depth;
+	private double[][] ring;
+	private final double[] scratch;
+	private int head = 0;
+	private int count = 0;
+
+	public MedianFilter(int depth) {
+		if (depth < 1) {
+			throw new IllegalArgumentException("Depth must be at least 1");
+		}
+		this.depth = depth;
+		this.scratch = new double[depth];
+	}
+
+	@Override
+	public void apply(double[] frame) {
+		int n = frame.length;
+		if (ring == null || ring[0].length != n) {
+			ring = new double[depth][n];
+			head = 0;
+			count = 0;
+		}
+
+		System.arraycopy(frame, 0, ring[head], 0, n);
+		head = (head + 1) % depth;
+		if (count < depth) {
+			count++;
+		}
+
+		for (int i = 0; i < n; i++) {
+			// Insertion sort, depth is small
+			for (int k = 0; k < count; k++) {
+				double v = ring[k][i];
+				int j = k - 1;
+				while (j >= 0 && scratch[j] > v) {
+					scratch[j + 1] = scratch[j];
+					j--;
+				}
+				scratch[j + 1] = v;
+			}
+			int mid = count / 2;
+			frame[i] = (count % 2 == 1) ? scratch[mid] : 0.5 * (scratch[mid - 1] + scratch[mid]);
+		}
+	}
+
+	@Override
+	public void reset() {
+		ring = null;
+	}
+}
@@ -1,7 +1,12 @@
 package com.myname.focuslock;
 
 import java.awt.EventQueue;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
 import java.util.TreeMap;
 
@@ -12,6 +17,7 @@ import de.embl.rieslab.emu.ui.ConfigurableMainFrame;
 import de.embl.rieslab.emu.utils.settings.Setting;
 import java.awt.BorderLayout;
 import javax.swing.JPanel;
+import javax.swing.JTabbedPane;
 
 import java.awt.GridLayout;
 
@@ -64,24 +70,57 @@ public class MyFrame extends ConfigurableMainFrame {
 		setBounds(100, 100, 733, 618);
 		getContentPane().setLayout(null);
 		
+		List<SensorConfig> sensors;
+		try {
+			sensors = SensorConfig.loadAll();
+		} catch (Exception e) {
+			getController().getStudio().logs().logError(e,
+					"Failed to read " + SensorConfig.defaultPath() + ", using the default sensor");
+			sensors = Collections.singletonList(SensorConfig.defaults());
+		}
+
 		JPanel panel = new JPanel();
-		panel.setBounds(10, 10, 616, 421);
+		panel.setBounds(10, 10, 616, 520);
 		getContentPane().add(panel);
 		panel.setLayout(new GridLayout(1, 0, 0, 0));
-		
-		LockPanel lockPanel = new LockPanel("settings", this.getController());
-		panel.add(lockPanel);
-		
-        int length = 128;
-        double amplitude = 1000;
-        double mean = 64;    // center of the array
-        double sigma = 15;
-		
-//        int[] gaussianData = generateGaussianData(length, amplitude, mean, sigma);
-        int[] gaussianData = new int[128];
+
+		// One tab per sensor; a single sensor keeps the plain layout
+		JTabbedPane tabs = sensors.size() > 1 ? new JTabbedPane() : null;
+		if (tabs != null) {
+			panel.add(tabs);
+		}
+		List<LockPanel> lockPanels = new ArrayList<>();
+		for (SensorConfig sensor : sensors) {
+			String label = sensor.getIndex() == 0 ? "settings" : "settings " + sensor.getName();
+			LockPanel lockPanel = new LockPanel(label, this.getController(), sensor);
+			lockPanels.add(lockPanel);
+			if (tabs != null) {
+				tabs.addTab(sensor.getName(), lockPanel);
+			} else {
+				panel.add(lockPanel);
+			}
+			addGraph(lockPanel, sensor);
+		}
+
+		// Closing the window ends the plugin: free the threads, hooks and
+		// sensors. A UI reload only disposes the frame and keeps the engines.
+		addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e) {
+				for (LockPanel lockPanel : lockPanels) {
+					lockPanel.getEngine().shutdown();
+				}
+			}
+		});
+	}
+
+	private void addGraph(LockPanel lockPanel, SensorConfig sensor) {
+//        int[] gaussianData = generateGaussianData(sensor.getPixels(), 1000, sensor.getPixels() / 2, 15);
+        int[] gaussianData = new int[sensor.getPixels()];
         double[] referenceData = new double[3];
 		
 		GraphPanel graphPanel = new GraphPanel(gaussianData, referenceData);
+		graphPanel.setSensorFormat(sensor);
 		graphPanel.setBounds(220, 10, 396, 411);
 		lockPanel.add(graphPanel);
 		
@@ -0,0 +1,82 @@
+package com.myname.focuslock;
+
+/**
+ * Unpacks frames sent in the sensor's packed 12-bit format: each pair of
+ * pixels p0, p1 travels as three bytes holding the little-endian 24-bit value
+ * {@code p0 | p1 << 12}. An odd last pixel takes two bytes.
+ *
+ * The loop handles four pixels per pass and allocates nothing, so it can run
+ * on every frame of the polling thread.
+ */
+public final class PackedPixels {
+	private PackedPixels() {
+	}
+
+	/**
+	 * Bytes a packed frame of {@code pixels} pixels takes.
+	 */
+	public static int packedLength(int pixels) {
+		return (3 * pixels + 1) / 2;
+	}
+
+	/**
+	 * Pixels in a packed frame of {@code bytes} bytes.
+	 */
+	public static int pixels(int bytes) {
+		return 2 * bytes / 3;
+	}
+
+	/**
+	 * Unpacks {@code raw} into the first {@code pixels(raw.length)} entries
+	 * of {@code out}.
+	 */
+	public static void unpack12(byte[] raw, short[] out) {
+		int n = pixels(raw.length);
+		if (out.length < n) {
+			throw new IllegalArgumentException("Need " + n + " pixels, got " + out.length);
+		}
+		int i = 0;
+		int j = 0;
+		for (; i + 4 <= n; i += 4, j += 6) {
+			int b0 = raw[j] & 0xFF;
+			int b1 = raw[j + 1] & 0xFF;
+			int b2 = raw[j + 2] & 0xFF;
+			int b3 = raw[j + 3] & 0xFF;
+			int b4 = raw[j + 4] & 0xFF;
+			int b5 = raw[j + 5] & 0xFF;
+			out[i] = (short) (b0 | (b1 & 0x0F) << 8);
+			out[i + 1] = (short) (b1 >>> 4 | b2 << 4);
+			out[i + 2] = (short) (b3 | (b4 & 0x0F) << 8);
+			out[i + 3] = (short) (b4 >>> 4 | b5 << 4);
+		}
+		for (; i + 2 <= n; i += 2, j += 3) {
+			int b1 = raw[j + 1] & 0xFF;
+			out[i] = (short) ((raw[j] & 0xFF) | (b1 & 0x0F) << 8);
+			out[i + 1] = (short) (b1 >>> 4 | (raw[j + 2] & 0xFF) << 4);
+		}
+		if (i < n) {
+			out[i] = (short) ((raw[j] & 0xFF) | (raw[j + 1] & 0x0F) << 8);
+		}
+	}
+
+	/**
+	 * Packs {@code pixels} into {@code out}, the inverse of
+	 * {@link #unpack12(byte[], short[])}. Values are cut to 12 bits.
+	 */
+	public static void pack12(short[] pixels, byte[] out) {
+		int n = pixels.length;
+		int j = 0;
+		for (int i = 0; i + 2 <= n; i += 2, j += 3) {
+			int p0 = pixels[i] & 0x0FFF;
+			int p1 = pixels[i + 1] & 0x0FFF;
+			out[j] = (byte) p0;
+			out[j + 1] = (byte) (p0 >>> 8 | p1 << 4);
+			out[j + 2] = (byte) (p1 >>> 4);
+		}
+		if ((n & 1) != 0) {
+			int p0 = pixels[n - 1] & 0x0FFF;
+			out[j] = (byte) p0;
+			out[j + 1] = (byte) (p0 >>> 8);
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package com.myname.focuslock;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Searches PID gains, frame filter settings and the stage dead-band for the
+ * lock by replaying a recording with {@link ReplayEngine} for every
+ * candidate.
+ *
+ * A coarse grid over all axes runs first. Each refinement round then
+ * re-grids the neighbourhood of the best candidates at half the previous
+ * spacing. All runs of a round are spread over the replay threads, which
+ * reuse their buffers from candidate to candidate.
+ */
+public class ParameterSweep {
+	public enum Rank {
+		RMS,
+		SETTLING,
+		TRAVEL
+	}
+
+	private final ReplayEngine replay;
+	private final double slope;
+
+	private double[] kpValues = {0.1, 0.3, 0.5, 0.8, 1.0};
+	private double[] kiValues = {0, 0.02, 0.05, 0.1};
+	private double[] kdValues = {0, 0.1};
+	private FrameFilter.Type[] filterTypes = {FrameFilter.Type.NONE};
+	private int[] filterDepths = {5};
+	private double[] deadBands = {0.001, 0.005, 0.01};
+	private long periodMs = 1000;
+	private int refinements = 2;
+	private int refineBest = 3;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private Rank rank = Rank.RMS;
+
+	/**
+	 * @param slope calibration slope in µm per pixel of the recorded session
+	 */
+	public ParameterSweep(SensorRecording recording, double slope) {
+		this.replay = new ReplayEngine(recording);
+		this.slope = slope;
+	}
+
+	public void setProportionalGains(double... values) {
+		kpValues = values;
+	}
+
+	public void setIntegralGains(double... values) {
+		kiValues = values;
+	}
+
+	public void setDifferentialGains(double... values) {
+		kdValues = values;
+	}
+
+	/**
+	 * Frame filters to try, each with every depth.
+	 */
+	public void setFilters(FrameFilter.Type[] types, int... depths) {
+		filterTypes = types;
+		filterDepths = depths;
+	}
+
+	/**
+	 * Stage dead-bands to try, in µm; see {@link StageOutput#setDeadBand(double)}.
+	 */
+	public void setDeadBands(double... valuesUm) {
+		deadBands = valuesUm;
+	}
+
+	public void setPeriodMs(long periodMs) {
+		this.periodMs = periodMs;
+	}
+
+	/**
+	 * Number of refinement rounds, and how many of the best candidates each
+	 * round refines around. Zero rounds runs the plain grid.
+	 */
+	public void setRefinements(int rounds, int best) {
+		refinements = rounds;
+		refineBest = best;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public void setRank(Rank rank) {
+		this.rank = rank;
+	}
+
+	/**
+	 * Runs the sweep and returns every evaluated candidate, best first.
+	 */
+	public List<ReplayEngine.Result> run() throws InterruptedException {
+		Set<String> seen = new HashSet<>();
+		List<ReplayEngine.Config> grid = new ArrayList<>();
+		for (double kp : kpValues) {
+			for (double ki : kiValues) {
+				for (double kd : kdValues) {
+					for (FrameFilter.Type type : filterTypes) {
+						for (int depth : type == FrameFilter.Type.NONE ? new int[] {filterDepths[0]} : filterDepths) {
+							for (double deadBand : deadBands) {
+								addCandidate(grid, seen, kp, ki, kd, type, depth, deadBand);
+							}
+						}
+					}
+				}
+			}
+		}
+
+		List<ReplayEngine.Result> results = new ArrayList<>(replay.runAll(grid, threads, false));
+		results.sort(comparator());
+
+		double kpStep = spacing(kpValues);
+		double kiStep = spacing(kiValues);
+		double kdStep = spacing(kdValues);
+		for (int round = 0; round < refinements; round++) {
+			kpStep /= 2;
+			kiStep /= 2;
+			kdStep /= 2;
+
+			List<ReplayEngine.Config> candidates = new ArrayList<>();
+			for (int b = 0; b < Math.min(refineBest, results.size()); b++) {
+				ReplayEngine.Config best = results.get(b).getConfig();
+				for (int i = -1; i <= 1; i++) {
+					for (int j = -1; j <= 1; j++) {
+						for (int k = -1; k <= 1; k++) {
+							addCandidate(candidates, seen,
+									best.getProportionalGain() + i * kpStep,
+									best.getIntegralGain() + j * kiStep,
+									best.getDifferentialGain() + k * kdStep,
+									best.getFilterType(), best.getFilterDepth(), best.getDeadBand());
+						}
+					}
+				}
+			}
+			if (candidates.isEmpty()) {
+				break;
+			}
+			results.addAll(replay.runAll(candidates, threads, false));
+			results.sort(comparator());
+		}
+		return results;
+	}
+
+	private void addCandidate(List<ReplayEngine.Config> candidates, Set<String> seen,
+			double kp, double ki, double kd, FrameFilter.Type type, int depth, double deadBand) {
+		if (kp < 0 || ki < 0 || kd < 0) {
+			return;
+		}
+		String key = String.format("%.6g %.6g %.6g %s %d %.6g", kp, ki, kd, type, depth, deadBand);
+		if (!seen.add(key)) {
+			return;
+		}
+		ReplayEngine.Config config = new ReplayEngine.Config(kp, ki, kd, slope);
+		config.setPeriodMs(periodMs);
+		config.setFilter(type, depth);
+		config.setDeadBand(deadBand);
+		candidates.add(config);
+	}
+
+	private static double spacing(double[] values) {
+		if (values.length < 2) {
+			return 0;
+		}
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (double v : values) {
+			min = Math.min(min, v);
+			max = Math.max(max, v);
+		}
+		return (max - min) / (values.length - 1);
+	}
+
+	private Comparator<ReplayEngine.Result> comparator() {
+		// NaN (never settled, no cycles) sorts last
+		Comparator<ReplayEngine.Result> byRms = Comparator.comparingDouble(r -> nanLast(r.getRmsError()));
+		Comparator<ReplayEngine.Result> bySettling = Comparator.comparingDouble(r -> nanLast(r.getSettlingTime()));
+		Comparator<ReplayEngine.Result> byTravel = Comparator.comparingDouble(ReplayEngine.Result::getStageTravel);
+		switch (rank) {
+		case SETTLING:
+			return bySettling.thenComparing(byRms);
+		case TRAVEL:
+			return byTravel.thenComparing(byRms);
+		default:
+			return byRms.thenComparing(bySettling).thenComparing(byTravel);
+		}
+	}
+
+	private static double nanLast(double value) {
+		return Double.isNaN(value) ? Double.POSITIVE_INFINITY : value;
+	}
+
+	/**
+	 * Formats the first {@code rows} results as a table.
+	 */
+	public static String table(List<ReplayEngine.Result> results, int rows) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%4s %9s %9s %9s %-8s %9s %9s %9s %10s %11s%n",
+				"#", "Kp", "Ki", "Kd", "Filter", "Dead [nm]", "RMS [nm]", "Max [nm]", "Settle [s]", "Travel [um]"));
+		for (int i = 0; i < Math.min(rows, results.size()); i++) {
+			ReplayEngine.Result r = results.get(i);
+			ReplayEngine.Config c = r.getConfig();
+			String filter = c.getFilterType() == FrameFilter.Type.NONE
+					? c.getFilterType().toString()
+					: c.getFilterType() + "/" + c.getFilterDepth();
+			sb.append(String.format("%4d %9.4g %9.4g %9.4g %-8s %9.1f %9.1f %9.1f %10.0f %11.3f%n",
+					i + 1, c.getProportionalGain(), c.getIntegralGain(), c.getDifferentialGain(), filter,
+					c.getDeadBand() * 1000, r.getRmsError() * 1000, r.getMaxAbsError() * 1000, r.getSettlingTime(), r.getStageTravel()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Usage: ParameterSweep recording slope [threads]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: ParameterSweep <recording> <slope um/px> [threads]");
+			return;
+		}
+		ParameterSweep sweep = new ParameterSweep(SensorRecording.load(args[0]), Double.parseDouble(args[1]));
+		if (args.length > 2) {
+			sweep.setThreads(Integer.parseInt(args[2]));
+		}
+		sweep.setFilters(FrameFilter.Type.values(), 3, 5, 10);
+
+		long start = System.currentTimeMillis();
+		List<ReplayEngine.Result> results = sweep.run();
+		System.out.println(results.size() + " candidates in " + (System.currentTimeMillis() - start) + " ms");
+		System.out.print(table(results, 20));
+	}
+}
@@ -0,0 +1,67 @@
+package com.myname.focuslock;
+
+/**
+ * The focus lock PID, shared by {@link FocusTask} on the microscope and
+ * {@link ReplayEngine} offline so both run exactly the same control law.
+ *
+ * Works on the beam position error in pixels; the caller converts the
+ * returned correction to µm with the calibration slope.
+ */
+public class PidController {
+	private volatile double kp = 0;
+	private volatile double ki = 0;
+	private volatile double kd = 0;
+
+	private double integral = 0;
+	private double previousError = 0;
+
+	public PidController() {
+	}
+
+	public PidController(double kp, double ki, double kd) {
+		this.kp = kp;
+		this.ki = ki;
+		this.kd = kd;
+	}
+
+	public void setProportionalGain(double kp) {
+		this.kp = kp;
+	}
+
+	public void setIntegralGain(double ki) {
+		this.ki = ki;
+	}
+
+	public void setDifferentialGain(double kd) {
+		this.kd = kd;
+	}
+
+	public double getProportionalGain() {
+		return kp;
+	}
+
+	public double getIntegralGain() {
+		return ki;
+	}
+
+	public double getDifferentialGain() {
+		return kd;
+	}
+
+	/**
+	 * Advances the controller by {@code deltaTime} seconds and returns the
+	 * correction for the measured {@code error}.
+	 */
+	public double update(double error, double deltaTime) {
+		integral += error * deltaTime;
+		double derivative = (deltaTime > 0) ? (error - previousError) / deltaTime : 0;
+		previousError = error;
+
+		return (kp * error) + (ki * integral) + (kd * derivative);
+	}
+
+	public void reset() {
+		integral = 0;
+		previousError = 0;
+	}
+}
@@ -0,0 +1,552 @@
+package com.myname.focuslock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the focus lock offline over a {@link SensorRecording}: every control
+ * cycle fits the frame with {@link GaussianFitter}, checks it with a
+ * {@link BeamDetector} and computes the correction with the control code of
+ * {@link FocusTask}: the same error mapping, optionally through a
+ * {@link FocusLookupTable}, the same PID step, a {@link StageOutput} with
+ * dead-band and step size, and a {@link LoopRate}. The corrections drive a
+ * simulated stage; a lost beam is held, as there is nothing to search.
+ *
+ * The simulated stage shifts each recorded frame by -z / slope pixels, where
+ * z is the stage position relative to where the recording was taken, so the
+ * recorded drift is what the lock has to fight. Time comes from the recording
+ * timestamps, so a replay runs as fast as the fits allow, and independent
+ * runs can be spread over several threads with {@link #runAll}.
+ */
+public class ReplayEngine {
+
+	/**
+	 * Controller and simulation settings for one replay.
+	 */
+	public static class Config {
+		private final double kp;
+		private final double ki;
+		private final double kd;
+		private final double slope;
+		private double sensorSlope = Double.NaN;
+		private long periodMs = 1000;
+		private long stageDelayMs = 0;
+		private FrameFilter.Type filterType = FrameFilter.Type.NONE;
+		private int filterDepth = 5;
+		private double settleToleranceUm = 0.05;
+		private double deadBandUm = 0.001;
+		private double stepUm = 0;
+		private FocusLookupTable lookupTable;
+		private boolean adaptiveRate = false;
+		private long minPeriodMs = 100;
+		private long maxPeriodMs = 2000;
+
+		/**
+		 * @param slope calibration slope in µm per pixel, as reported by the calibration
+		 */
+		public Config(double kp, double ki, double kd, double slope) {
+			this.kp = kp;
+			this.ki = ki;
+			this.kd = kd;
+			this.slope = slope;
+		}
+
+		/**
+		 * The true slope of the simulated optics, to study a miscalibrated
+		 * lock. Defaults to the calibration slope.
+		 */
+		public void setSensorSlope(double sensorSlope) {
+			this.sensorSlope = sensorSlope;
+		}
+
+		/**
+		 * Time between control cycles, or the starting period with an
+		 * adaptive rate. The sequential lock on the microscope uses 1 s.
+		 */
+		public void setPeriodMs(long periodMs) {
+			this.periodMs = periodMs;
+		}
+
+		/**
+		 * Time after a move command before the stage reaches the new position.
+		 */
+		public void setStageDelayMs(long stageDelayMs) {
+			this.stageDelayMs = stageDelayMs;
+		}
+
+		public void setFilter(FrameFilter.Type type, int depth) {
+			this.filterType = type;
+			this.filterDepth = depth;
+		}
+
+		/**
+		 * Error below which the lock counts as settled, 50 nm by default as
+		 * for acquisitions.
+		 */
+		public void setSettleTolerance(double toleranceUm) {
+			this.settleToleranceUm = toleranceUm;
+		}
+
+		/**
+		 * Corrections below {@code deadBandUm} are not sent, see
+		 * {@link StageOutput#setDeadBand(double)}. Defaults to 1 nm as on
+		 * the microscope.
+		 */
+		public void setDeadBand(double deadBandUm) {
+			this.deadBandUm = deadBandUm;
+		}
+
+		/**
+		 * Resolution of the simulated drive; 0 moves it unrounded.
+		 */
+		public void setStepSize(double stepUm) {
+			this.stepUm = stepUm;
+		}
+
+		/**
+		 * Locks through {@code table} as {@link FocusTask#setLookupTable}
+		 * does; null uses the slope alone.
+		 */
+		public void setLookupTable(FocusLookupTable table) {
+			this.lookupTable = table;
+		}
+
+		/**
+		 * Adapts the period between {@code minPeriodMs} and
+		 * {@code maxPeriodMs} like the lock, see {@link LoopRate}. Off by
+		 * default, so candidates are compared at one fixed period.
+		 */
+		public void setAdaptiveRate(boolean adaptive, long minPeriodMs, long maxPeriodMs) {
+			this.adaptiveRate = adaptive;
+			this.minPeriodMs = minPeriodMs;
+			this.maxPeriodMs = maxPeriodMs;
+		}
+
+		public double getProportionalGain() {
+			return kp;
+		}
+
+		public double getIntegralGain() {
+			return ki;
+		}
+
+		public double getDifferentialGain() {
+			return kd;
+		}
+
+		public double getSlope() {
+			return slope;
+		}
+
+		public double getSensorSlope() {
+			return Double.isNaN(sensorSlope) ? slope : sensorSlope;
+		}
+
+		public long getPeriodMs() {
+			return periodMs;
+		}
+
+		public long getStageDelayMs() {
+			return stageDelayMs;
+		}
+
+		public FrameFilter.Type getFilterType() {
+			return filterType;
+		}
+
+		public int getFilterDepth() {
+			return filterDepth;
+		}
+
+		public double getSettleTolerance() {
+			return settleToleranceUm;
+		}
+
+		public double getDeadBand() {
+			return deadBandUm;
+		}
+
+		public double getStepSize() {
+			return stepUm;
+		}
+
+		public FocusLookupTable getLookupTable() {
+			return lookupTable;
+		}
+
+		public boolean isAdaptiveRate() {
+			return adaptiveRate;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Kp=%.4g Ki=%.4g Kd=%.4g slope=%.4g period=%d ms filter=%s/%d dead-band=%.1f nm",
+					kp, ki, kd, slope, periodMs, filterType, filterDepth, deadBandUm * 1000);
+		}
+	}
+
+	/**
+	 * Residual focus error statistics of one replay, all in µm.
+	 */
+	public static class Result {
+		private final Config config;
+		private final double[] timesS;
+		private final double[] errorsUm;
+		private final int cycles;
+		private final long holds;
+		private final double travelUm;
+		private final long wallTimeMs;
+		private final double meanError;
+		private final double rmsError;
+		private final double stdError;
+		private final double maxAbsError;
+		private final double settlingTime;
+
+		/**
+		 * Computes the statistics over the first {@code cycles} entries. The
+		 * arrays are kept only when {@code keepTrace} is set.
+		 */
+		Result(Config config, double[] timesS, double[] errorsUm, int cycles, long holds, double travelUm,
+				long wallTimeMs, boolean keepTrace) {
+			this.config = config;
+			this.timesS = keepTrace ? Arrays.copyOf(timesS, cycles) : null;
+			this.errorsUm = keepTrace ? Arrays.copyOf(errorsUm, cycles) : null;
+			this.cycles = cycles;
+			this.holds = holds;
+			this.travelUm = travelUm;
+			this.wallTimeMs = wallTimeMs;
+
+			double sum = 0;
+			double sumSq = 0;
+			double max = 0;
+			int lastOutside = -1;
+			for (int i = 0; i < cycles; i++) {
+				double e = errorsUm[i];
+				sum += e;
+				sumSq += e * e;
+				max = Math.max(max, Math.abs(e));
+				if (Math.abs(e) > config.getSettleTolerance()) {
+					lastOutside = i;
+				}
+			}
+			meanError = cycles == 0 ? Double.NaN : sum / cycles;
+			rmsError = cycles == 0 ? Double.NaN : Math.sqrt(sumSq / cycles);
+			stdError = cycles < 2 ? Double.NaN : Math.sqrt(Math.max(sumSq - cycles * meanError * meanError, 0) / (cycles - 1));
+			maxAbsError = max;
+			if (lastOutside < 0) {
+				settlingTime = 0;
+			} else if (lastOutside == cycles - 1) {
+				settlingTime = Double.NaN;
+			} else {
+				settlingTime = timesS[lastOutside + 1];
+			}
+		}
+
+		public Config getConfig() {
+			return config;
+		}
+
+		/**
+		 * Virtual time of every control cycle, in seconds since the lock
+		 * engaged. Null when the trace was not kept.
+		 */
+		public double[] getTimes() {
+			return timesS;
+		}
+
+		/**
+		 * Focus error seen by the lock at every control cycle. Null when the
+		 * trace was not kept.
+		 */
+		public double[] getErrors() {
+			return errorsUm;
+		}
+
+		public int getCycles() {
+			return cycles;
+		}
+
+		public long getHolds() {
+			return holds;
+		}
+
+		public double getMeanError() {
+			return meanError;
+		}
+
+		public double getRmsError() {
+			return rmsError;
+		}
+
+		public double getStdError() {
+			return stdError;
+		}
+
+		public double getMaxAbsError() {
+			return maxAbsError;
+		}
+
+		/**
+		 * Seconds until the error stayed within the settle tolerance for the
+		 * rest of the replay, NaN when it never did.
+		 */
+		public double getSettlingTime() {
+			return settlingTime;
+		}
+
+		/**
+		 * Total distance the stage was commanded to move.
+		 */
+		public double getStageTravel() {
+			return travelUm;
+		}
+
+		public long getWallTimeMs() {
+			return wallTimeMs;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: cycles=%d, holds=%d, rms=%.1f nm, mean=%.1f nm, max=%.1f nm, settled=%.0f s, travel=%.3f um (%d ms)",
+					config, cycles, holds, rmsError * 1000, meanError * 1000,
+					maxAbsError * 1000, settlingTime, travelUm, wallTimeMs);
+		}
+	}
+
+	/**
+	 * Buffers of one replay thread, reused by every run on that thread so a
+	 * sweep does not allocate per candidate.
+	 */
+	private static final class Workspace {
+		double[] frame = new double[0];
+		double[] timesS = new double[0];
+		double[] errors = new double[0];
+		GaussianFitter fitter = new GaussianFitter(0);
+
+		void ensure(int pixels, int cycles) {
+			if (frame.length != pixels) {
+				frame = new double[pixels];
+				fitter = new GaussianFitter(pixels);
+			}
+			if (errors.length < cycles) {
+				timesS = new double[cycles];
+				errors = new double[cycles];
+			}
+		}
+	}
+
+	private final SensorRecording recording;
+	private final ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(Workspace::new);
+
+	public ReplayEngine(SensorRecording recording) {
+		this.recording = recording;
+	}
+
+	/**
+	 * Replays the whole recording with one set of parameters. Only reads the
+	 * recording, so several runs may execute concurrently.
+	 */
+	public Result run(Config config) {
+		return run(config, true);
+	}
+
+	/**
+	 * As {@link #run(Config)}; without {@code keepTrace} only the statistics
+	 * are kept, which is what sweeps over many candidates need.
+	 */
+	public Result run(Config config, boolean keepTrace) {
+		long wallStart = System.currentTimeMillis();
+		int n = recording.size();
+		if (n == 0) {
+			return new Result(config, new double[0], new double[0], 0, 0, 0, 0, keepTrace);
+		}
+
+		PidController pid = new PidController(config.getProportionalGain(),
+				config.getIntegralGain(), config.getDifferentialGain());
+		FrameFilter filter = config.getFilterType().create(config.getFilterDepth());
+		StageOutput output = new StageOutput();
+		output.setDeadBand(config.getDeadBand());
+		output.setStepSize(config.getStepSize());
+		BeamDetector detector = new BeamDetector();
+		LoopRate rate = new LoopRate(config.minPeriodMs, config.maxPeriodMs);
+		rate.setAdaptive(config.isAdaptiveRate());
+		rate.reset(config.getPeriodMs());
+		double slope = config.getSlope();
+		double sensorSlope = config.getSensorSlope();
+		Workspace workspace = workspaces.get();
+		workspace.ensure(recording.getFrame(0).length, n);
+		double[] frame = workspace.frame;
+		double[] timesS = workspace.timesS;
+		double[] errors = workspace.errors;
+		GaussianFitter fitter = workspace.fitter;
+		int cycles = 0;
+		long holds = 0;
+		double travel = 0;
+
+		// Stage relative to the recording, and a move still in flight
+		double stageZ = 0;
+		double targetZ = 0;
+		long arrivalMs = Long.MIN_VALUE;
+
+		double refMean = Double.NaN;
+		FocusLookupTable table = null;
+		double tableReferenceUm = 0;
+		double tableSlope = 0;
+		double previousMove = 0;
+		long startMs = recording.getTimeMs(0);
+		long nextCycleMs = startMs;
+		long previousTime = -1;
+
+		for (int f = 0; f < n; f++) {
+			long now = recording.getTimeMs(f);
+			if (now >= arrivalMs) {
+				stageZ = targetZ;
+			}
+
+			if (now < nextCycleMs) {
+				continue;
+			}
+			// Only the frames the lock takes pass its filter, as on the microscope
+			shift(recording.getFrame(f), -stageZ / sensorSlope, frame);
+			if (filter != null) {
+				filter.apply(frame);
+			}
+			nextCycleMs = now + rate.getPeriodMs();
+
+			fitter.setData(frame);
+			double[] fit = fitter.fit();
+			double mean = fit[1];
+			if (Double.isNaN(refMean)) {
+				// Engage the lock on the first frame, as FocusTask.startFocus does
+				refMean = mean;
+				if (!Double.isNaN(mean)) {
+					detector.setReference(fit[0], fit[2]);
+					FocusLookupTable lookup = config.getLookupTable();
+					if (lookup != null && lookup.slopeAt(refMean) != 0) {
+						table = lookup;
+						tableReferenceUm = lookup.toUm(refMean);
+						tableSlope = lookup.slopeAt(refMean);
+						slope = tableSlope;
+					}
+				}
+				continue;
+			}
+			BeamDetector.Verdict verdict = detector.check(frame, fit);
+			boolean atEdge = verdict == BeamDetector.Verdict.EDGE_LOW || verdict == BeamDetector.Verdict.EDGE_HIGH;
+			if (verdict != BeamDetector.Verdict.OK) {
+				rate.hurry();
+			}
+			if (Double.isNaN(mean) || (verdict != BeamDetector.Verdict.OK && !atEdge)) {
+				holds++;
+				previousTime = -1;
+				previousMove = 0;
+				rate.restart();
+				continue;
+			}
+
+			double error = FocusTask.errorPx(mean, refMean, table, tableReferenceUm, tableSlope);
+			double deltaTime = (previousTime < 0) ? 1.0 : (now - previousTime) / 1000.0;
+			previousTime = now;
+
+			errors[cycles] = error * slope;
+			timesS[cycles] = (now - startMs) / 1000.0;
+			cycles++;
+			nextCycleMs = now + rate.update(error * slope, previousMove, now * 1_000_000L);
+
+			double command = FocusTask.command(pid, output, error, deltaTime, slope, targetZ);
+			previousMove = output.getLastMotionUm();
+			targetZ = targetZ + command;
+			arrivalMs = now + config.getStageDelayMs();
+			if (config.getStageDelayMs() == 0) {
+				stageZ = targetZ;
+			}
+			travel += Math.abs(command);
+		}
+
+		return new Result(config, timesS, errors, cycles, holds, travel,
+				System.currentTimeMillis() - wallStart, keepTrace);
+	}
+
+	/**
+	 * Replays every configuration, spread over {@code threads} threads.
+	 * Results are returned in the order of {@code configs}.
+	 */
+	public List<Result> runAll(List<Config> configs, int threads) throws InterruptedException {
+		return runAll(configs, threads, true);
+	}
+
+	/**
+	 * As {@link #runAll(List, int)}, optionally keeping only the statistics.
+	 */
+	public List<Result> runAll(List<Config> configs, int threads, boolean keepTrace) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), LockExecutors.named("fgFocus replay"));
+		try {
+			List<Callable<Result>> runs = new ArrayList<>();
+			for (Config config : configs) {
+				runs.add(() -> run(config, keepTrace));
+			}
+			List<Result> results = new ArrayList<>();
+			for (Future<Result> future : pool.invokeAll(runs)) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("Replay failed", e.getCause());
+				}
+			}
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	public List<Result> runAll(List<Config> configs) throws InterruptedException {
+		return runAll(configs, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Shifts {@code in} by {@code shift} pixels with linear interpolation,
+	 * holding the edge values.
+	 */
+	static void shift(short[] in, double shift, double[] out) {
+		int n = in.length;
+		for (int i = 0; i < n; i++) {
+			double x = i - shift;
+			if (x <= 0) {
+				out[i] = in[0] & 0xFFFF;
+			} else if (x >= n - 1) {
+				out[i] = in[n - 1] & 0xFFFF;
+			} else {
+				int i0 = (int) x;
+				double w = x - i0;
+				out[i] = (1 - w) * (in[i0] & 0xFFFF) + w * (in[i0 + 1] & 0xFFFF);
+			}
+		}
+	}
+
+	/**
+	 * Usage: ReplayEngine recording slope kp ki kd [kp ki kd ...]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 5 || (args.length - 2) % 3 != 0) {
+			System.err.println("Usage: ReplayEngine <recording> <slope um/px> <Kp> <Ki> <Kd> [<Kp> <Ki> <Kd> ...]");
+			return;
+		}
+		SensorRecording recording = SensorRecording.load(args[0]);
+		double slope = Double.parseDouble(args[1]);
+		List<Config> configs = new ArrayList<>();
+		for (int i = 2; i < args.length; i += 3) {
+			configs.add(new Config(Double.parseDouble(args[i]), Double.parseDouble(args[i + 1]),
+					Double.parseDouble(args[i + 2]), slope));
+		}
+		System.out.println("Replaying " + recording.size() + " frames (" + recording.getDurationMs() / 1000 + " s)");
+		for (Result result : new ReplayEngine(recording).runAll(configs)) {
+			System.out.println(result);
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.myname.focuslock;
+
+/**
+ * Per-pixel running mean over the last {@code depth} frames, kept in a ring
+ * with a running sum so each frame costs one add and one subtract per pixel.
+ */
+public class RunningMeanFilter implements FrameFilter {
+	private final int depth;
+	private double[][] ring;
+	private double[] sum;
+	private int head = 0;
+	private int count = 0;
+
+	public RunningMeanFilter(int depth) {
+		if (depth < 1) {
+			throw new IllegalArgumentException("Depth must be at least 1");
+		}
+		this.depth = depth;
+	}
+
+	@Override
+	public void apply(double[] frame) {
+		int n = frame.length;
+		if (sum == null || sum.length != n) {
+			ring = new double[depth][n];
+			sum = new double[n];
+			head = 0;
+			count = 0;
+		}
+
+		double[] slot = ring[head];
+		boolean full = count == depth;
+		for (int i = 0; i < n; i++) {
+			double v = frame[i];
+			sum[i] += full ? v - slot[i] : v;
+			slot[i] = v;
+		}
+		if (!full) {
+			count++;
+		}
+		head = (head + 1) % depth;
+
+		double scale = 1.0 / count;
+		for (int i = 0; i < n; i++) {
+			frame[i] = sum[i] * scale;
+		}
+	}
+
+	@Override
+	public void reset() {
+		sum = null;
+		ring = null;
+	}
+}
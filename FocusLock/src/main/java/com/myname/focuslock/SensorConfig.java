@@ -0,0 +1,188 @@
+package com.myname.focuslock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Describes one fgFocus light sensor: its Micro-Manager device, the
+ * configuration file that loads it into a private core, and its pixel format.
+ *
+ * The sensors of a scope are listed in fgFocusSensors.properties next to the
+ * sensor configuration, e.g. for two sensors:
+ *
+ * sensors = left, right
+ * sensor.left.config = C:/Program Files/Micro-Manager-2.0/fgFocus/left.cfg
+ * sensor.right.config = C:/Program Files/Micro-Manager-2.0/fgFocus/right.cfg
+ * sensor.right.pixels = 256
+ *
+ * Missing keys fall back to the defaults of a single 128 pixel, 12 bit
+ * sensor. Without the file, that single default sensor is used. The file
+ * location can be overridden with the system property fgfocus.sensors.
+ */
+public class SensorConfig {
+	public static final String DEFAULT_DIRECTORY = "C:/Program Files/Micro-Manager-2.0/fgFocus";
+	public static final String DEFAULT_DEVICE = "fgFocus Light Sensor";
+	public static final int DEFAULT_PIXELS = 128;
+	public static final int DEFAULT_BIT_DEPTH = 12;
+
+	private final String name;
+	private final int index;
+	private final String device;
+	private final String configPath;
+	private final String correctionPath;
+	private final int pixels;
+	private final int bitDepth;
+	private final int controlPort;
+
+	public SensorConfig(String name, int index, String device, String configPath, String correctionPath,
+			int pixels, int bitDepth, int controlPort) {
+		this.name = name;
+		this.index = index;
+		this.device = device;
+		this.configPath = configPath;
+		this.correctionPath = correctionPath;
+		this.pixels = pixels;
+		this.bitDepth = bitDepth;
+		this.controlPort = controlPort;
+	}
+
+	/**
+	 * The single sensor the plugin used before sensors were configurable.
+	 */
+	public static SensorConfig defaults() {
+		return new SensorConfig("fgFocus", 0, DEFAULT_DEVICE,
+				DEFAULT_DIRECTORY + "/fgFocus.cfg",
+				DEFAULT_DIRECTORY + "/fgFocusCorrection.properties",
+				DEFAULT_PIXELS, DEFAULT_BIT_DEPTH, LockControlServer.DEFAULT_PORT);
+	}
+
+	public static String defaultPath() {
+		return System.getProperty("fgfocus.sensors", DEFAULT_DIRECTORY + "/fgFocusSensors.properties");
+	}
+
+	/**
+	 * Reads the sensors from {@link #defaultPath()}, or returns the default
+	 * sensor when the file does not exist.
+	 */
+	public static List<SensorConfig> loadAll() throws IOException {
+		File file = new File(defaultPath());
+		if (!file.isFile()) {
+			List<SensorConfig> sensors = new ArrayList<>();
+			sensors.add(defaults());
+			return sensors;
+		}
+		return loadAll(file.getPath());
+	}
+
+	public static List<SensorConfig> loadAll(String path) throws IOException {
+		Properties props = new Properties();
+		try (InputStream in = new FileInputStream(path)) {
+			props.load(in);
+		}
+
+		String directory = new File(path).getAbsoluteFile().getParent();
+		List<SensorConfig> sensors = new ArrayList<>();
+		String[] names = props.getProperty("sensors", "fgFocus").split(",");
+		for (int i = 0; i < names.length; i++) {
+			String name = names[i].trim();
+			if (name.isEmpty()) {
+				continue;
+			}
+			int index = sensors.size();
+			String prefix = "sensor." + name + ".";
+			// The first sensor keeps the historical file names, the others are named after the sensor
+			String base = index == 0 ? "fgFocus" : "fgFocus-" + name;
+			sensors.add(new SensorConfig(name, index,
+					props.getProperty(prefix + "device", DEFAULT_DEVICE).trim(),
+					props.getProperty(prefix + "config", directory + "/" + base + ".cfg").trim(),
+					props.getProperty(prefix + "correction", directory + "/" + base + "Correction.properties").trim(),
+					parseInt(props, prefix + "pixels", DEFAULT_PIXELS),
+					parseInt(props, prefix + "bitDepth", DEFAULT_BIT_DEPTH),
+					parseInt(props, prefix + "port", LockControlServer.DEFAULT_PORT + index)));
+		}
+		if (sensors.isEmpty()) {
+			throw new IOException("No sensors listed in " + path);
+		}
+		return sensors;
+	}
+
+	private static int parseInt(Properties props, String key, int fallback) throws IOException {
+		String value = props.getProperty(key);
+		if (value == null) {
+			return fallback;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid value for " + key + ": " + value);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Position in the sensor list; 0 for the first (or only) sensor.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Device label of the sensor in its configuration file.
+	 */
+	public String getDevice() {
+		return device;
+	}
+
+	public String getConfigPath() {
+		return configPath;
+	}
+
+	/**
+	 * Where the dark/flat correction of this sensor is stored.
+	 */
+	public String getCorrectionPath() {
+		return correctionPath;
+	}
+
+	public int getPixels() {
+		return pixels;
+	}
+
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	/**
+	 * Largest value a pixel can report.
+	 */
+	public int getMaxValue() {
+		return (1 << bitDepth) - 1;
+	}
+
+	/**
+	 * Port of the {@link LockControlServer} of this sensor.
+	 */
+	public int getControlPort() {
+		return controlPort;
+	}
+
+	/**
+	 * Prefix for the names of this sensor's threads.
+	 */
+	String getThreadPrefix() {
+		return index == 0 ? "fgFocus" : "fgFocus " + name;
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + device + ", " + pixels + " px, " + bitDepth + " bit)";
+	}
+}
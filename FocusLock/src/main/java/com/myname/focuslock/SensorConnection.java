@@ -0,0 +1,132 @@
+package com.myname.focuslock;
+
+import java.util.function.Consumer;
+
+/**
+ * Connection state machine for the light sensor.
+ *
+ * CONNECTED - frames arrive normally.
+ * DEGRADED - recent snaps failed or the last frame is too old; retries back off exponentially.
+ * RECONNECTING - too many consecutive failures, the sensor device is being reinitialized.
+ * FAILED - reconnecting did not help; the sensor is only probed at the maximum backoff.
+ *
+ * Any successful frame returns the machine to CONNECTED.
+ */
+public class SensorConnection {
+	public enum State {
+		CONNECTED,
+		DEGRADED,
+		RECONNECTING,
+		FAILED
+	}
+
+	private final long baseBackoffMs = 10;
+	private final long maxBackoffMs = 2000;
+	private final int failuresBeforeReconnect = 5;
+	private final int reconnectsBeforeFailed = 3;
+
+	private volatile State state = State.CONNECTED;
+	private volatile long lastFrameNanos = System.nanoTime();
+	private int failures = 0;
+	private int reconnects = 0;
+	private Consumer<State> onStateChange;
+
+	public void setOnStateChange(Consumer<State> callback) {
+		this.onStateChange = callback;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public boolean isConnected() {
+		return state == State.CONNECTED;
+	}
+
+	public synchronized void frameReceived() {
+		lastFrameNanos = System.nanoTime();
+		failures = 0;
+		reconnects = 0;
+		setState(State.CONNECTED);
+	}
+
+	/**
+	 * Records a failed snap. Returns true when the sensor should be
+	 * reinitialized before the next attempt.
+	 */
+	public synchronized boolean failure() {
+		failures++;
+		if (state == State.FAILED) {
+			// Keep probing, but only try a reconnect every few failures
+			return failures % failuresBeforeReconnect == 0;
+		}
+		if (failures >= failuresBeforeReconnect) {
+			failures = 0;
+			setState(State.RECONNECTING);
+			return true;
+		}
+		setState(State.DEGRADED);
+		return false;
+	}
+
+	public synchronized void reconnectSucceeded() {
+		// Connected again only once a frame actually arrives
+		if (state != State.FAILED) {
+			setState(State.DEGRADED);
+		}
+	}
+
+	public synchronized void reconnectFailed() {
+		reconnects++;
+		setState(reconnects >= reconnectsBeforeFailed ? State.FAILED : State.DEGRADED);
+	}
+
+	/**
+	 * Number of reconnect attempts since the last good frame.
+	 */
+	public synchronized int getReconnectAttempts() {
+		return reconnects;
+	}
+
+	/**
+	 * Delay before the next attempt: doubles with every consecutive failure.
+	 */
+	public synchronized long backoffMs() {
+		if (state == State.FAILED) {
+			return maxBackoffMs;
+		}
+		if (state == State.CONNECTED) {
+			return 0;
+		}
+		int shift = Math.min(Math.max(failures - 1, 0) + 2 * reconnects, 16);
+		return Math.min(baseBackoffMs << shift, maxBackoffMs);
+	}
+
+	public void resetFrameAge() {
+		lastFrameNanos = System.nanoTime();
+	}
+
+	public long frameAgeMs() {
+		return (System.nanoTime() - lastFrameNanos) / 1_000_000L;
+	}
+
+	/**
+	 * Watchdog check: a connected sensor that has not delivered a frame for
+	 * {@code maxAgeMs} is marked degraded.
+	 */
+	public synchronized void checkFrameAge(long maxAgeMs) {
+		if (state == State.CONNECTED && frameAgeMs() > maxAgeMs) {
+			setState(State.DEGRADED);
+		}
+	}
+
+	private void setState(State newState) {
+		if (state == newState) {
+			return;
+		}
+		state = newState;
+		if (onStateChange != null) {
+			onStateChange.accept(newState);
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.myname.focuslock;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Dark-frame subtraction and flat-field correction for the light sensor.
+ * The dark profile removes the fixed-pattern offset, the flat profile the
+ * pixel-to-pixel gain variation: corrected = (raw - dark) * gain.
+ * Decoding and correction are fused into one pass over the frame so the
+ * polling loop does not allocate.
+ */
+public class SensorCorrection {
+	private static final String KEY_DARK = "dark";
+	private static final String KEY_FLAT = "flat";
+
+	// Immutable snapshot, swapped as a whole so the decode loop never sees half an update
+	private static final class Tables {
+		final double[] dark;
+		final double[] flat;
+		final double[] gain;
+
+		Tables(double[] dark, double[] flat, double[] gain) {
+			this.dark = dark;
+			this.flat = flat;
+			this.gain = gain;
+		}
+	}
+
+	private volatile Tables tables = new Tables(null, null, null);
+
+	public synchronized void setDark(double[] profile) {
+		Tables t = tables;
+		tables = new Tables(profile.clone(), t.flat, computeGain(profile, t.flat));
+	}
+
+	public synchronized void setFlat(double[] profile) {
+		Tables t = tables;
+		tables = new Tables(t.dark, profile.clone(), computeGain(t.dark, profile));
+	}
+
+	public synchronized void clear() {
+		tables = new Tables(null, null, null);
+	}
+
+	public boolean hasDark() {
+		return tables.dark != null;
+	}
+
+	public boolean hasFlat() {
+		return tables.flat != null;
+	}
+
+	public boolean isActive() {
+		Tables t = tables;
+		return t.dark != null || t.gain != null;
+	}
+
+	/**
+	 * Decodes little-endian 16-bit pixels from {@code raw} into {@code out},
+	 * applying the correction on the fly.
+	 */
+	public void decode(byte[] raw, short[] out) {
+		Tables t = tables;
+		int n = raw.length / 2;
+		double[] dark = matches(t.dark, n) ? t.dark : null;
+		double[] gain = matches(t.gain, n) ? t.gain : null;
+
+		if (dark == null && gain == null) {
+			for (int i = 0; i < n; i++) {
+				out[i] = (short) (((raw[2 * i + 1] & 0xFF) << 8) | (raw[2 * i] & 0xFF));
+			}
+		} else if (gain == null) {
+			for (int i = 0; i < n; i++) {
+				int v = ((raw[2 * i + 1] & 0xFF) << 8) | (raw[2 * i] & 0xFF);
+				out[i] = clamp(v - dark[i]);
+			}
+		} else if (dark == null) {
+			for (int i = 0; i < n; i++) {
+				int v = ((raw[2 * i + 1] & 0xFF) << 8) | (raw[2 * i] & 0xFF);
+				out[i] = clamp(v * gain[i]);
+			}
+		} else {
+			for (int i = 0; i < n; i++) {
+				int v = ((raw[2 * i + 1] & 0xFF) << 8) | (raw[2 * i] & 0xFF);
+				out[i] = clamp((v - dark[i]) * gain[i]);
+			}
+		}
+	}
+
+	/**
+	 * Applies the correction to already decoded pixels. {@code in} and
+	 * {@code out} may be the same array.
+	 */
+	public void apply(short[] in, short[] out) {
+		Tables t = tables;
+		int n = in.length;
+		double[] dark = matches(t.dark, n) ? t.dark : null;
+		double[] gain = matches(t.gain, n) ? t.gain : null;
+
+		if (dark == null && gain == null) {
+			if (in != out) {
+				System.arraycopy(in, 0, out, 0, n);
+			}
+			return;
+		}
+		for (int i = 0; i < n; i++) {
+			double v = (in[i] & 0xFFFF) - (dark != null ? dark[i] : 0.0);
+			out[i] = clamp(gain != null ? v * gain[i] : v);
+		}
+	}
+
+	public synchronized void save(String path) throws IOException {
+		Tables t = tables;
+		Properties props = new Properties();
+		if (t.dark != null) {
+			props.setProperty(KEY_DARK, join(t.dark));
+		}
+		if (t.flat != null) {
+			props.setProperty(KEY_FLAT, join(t.flat));
+		}
+		try (OutputStream out = new FileOutputStream(path)) {
+			props.store(out, "fgFocus light sensor dark/flat profiles");
+		}
+	}
+
+	public synchronized void load(String path) throws IOException {
+		Properties props = new Properties();
+		try (InputStream in = new FileInputStream(path)) {
+			props.load(in);
+		}
+		double[] dark = split(props.getProperty(KEY_DARK));
+		double[] flat = split(props.getProperty(KEY_FLAT));
+		tables = new Tables(dark, flat, computeGain(dark, flat));
+	}
+
+	private static double[] computeGain(double[] dark, double[] flat) {
+		if (flat == null) {
+			return null;
+		}
+		int n = flat.length;
+		boolean useDark = matches(dark, n);
+		double[] signal = new double[n];
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			signal[i] = flat[i] - (useDark ? dark[i] : 0.0);
+			sum += signal[i];
+		}
+		double mean = sum / n;
+
+		double[] gain = new double[n];
+		for (int i = 0; i < n; i++) {
+			// Dead or unlit pixels keep unit gain rather than blowing up
+			gain[i] = (signal[i] > 1.0 && mean > 1.0) ? mean / signal[i] : 1.0;
+		}
+		return gain;
+	}
+
+	private static boolean matches(double[] table, int n) {
+		return table != null && table.length == n;
+	}
+
+	private static short clamp(double v) {
+		if (v <= 0) {
+			return 0;
+		}
+		if (v >= Short.MAX_VALUE) {
+			return Short.MAX_VALUE;
+		}
+		return (short) (v + 0.5);
+	}
+
+	private static String join(double[] values) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(values[i]);
+		}
+		return sb.toString();
+	}
+
+	private static double[] split(String text) {
+		if (text == null || text.trim().isEmpty()) {
+			return null;
+		}
+		String[] parts = text.split(",");
+		double[] values = new double[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			values[i] = Double.parseDouble(parts[i].trim());
+		}
+		return values;
+	}
+}
@@ -0,0 +1,169 @@
+package com.myname.focuslock;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Light sensor frames with their timestamps, for replaying a session offline
+ * with {@link ReplayEngine}.
+ *
+ * Stored as text, one frame per line: the time in ms since the first frame,
+ * then the pixel values, tab separated. Lines starting with # are comments.
+ */
+public class SensorRecording {
+	private final long[] timesMs;
+	private final short[][] frames;
+
+	public SensorRecording(long[] timesMs, short[][] frames) {
+		if (timesMs.length != frames.length) {
+			throw new IllegalArgumentException("One timestamp per frame is required");
+		}
+		this.timesMs = timesMs;
+		this.frames = frames;
+	}
+
+	public int size() {
+		return frames.length;
+	}
+
+	public long getTimeMs(int index) {
+		return timesMs[index];
+	}
+
+	/**
+	 * The recorded frame; shared, do not modify.
+	 */
+	public short[] getFrame(int index) {
+		return frames[index];
+	}
+
+	public long getDurationMs() {
+		return frames.length == 0 ? 0 : timesMs[frames.length - 1] - timesMs[0];
+	}
+
+	/**
+	 * Synthetic recording of a 128 pixel, 12 bit sensor: a Gaussian beam that
+	 * drifts linearly by {@code driftPxPerS} plus a random walk of
+	 * {@code walkPx} per frame, with {@code noise} counts of read noise.
+	 */
+	public static SensorRecording simulate(long durationMs, long intervalMs, double driftPxPerS,
+			double walkPx, double noise, long seed) {
+		final int pixels = 128;
+		final double amplitude = 3000;
+		final double background = 100;
+		final double sigma = 8;
+
+		Random random = new Random(seed);
+		int n = (int) (durationMs / intervalMs) + 1;
+		long[] timesMs = new long[n];
+		short[][] frames = new short[n][pixels];
+		double mean = pixels / 2.0;
+		for (int f = 0; f < n; f++) {
+			timesMs[f] = f * intervalMs;
+			double mu = mean + driftPxPerS * timesMs[f] / 1000.0;
+			for (int i = 0; i < pixels; i++) {
+				double dx = i - mu;
+				double value = background + amplitude * Math.exp(-dx * dx / (2 * sigma * sigma))
+						+ noise * random.nextGaussian();
+				frames[f][i] = (short) Math.max(0, Math.min(4095, Math.round(value)));
+			}
+			mean += walkPx * random.nextGaussian();
+		}
+		return new SensorRecording(timesMs, frames);
+	}
+
+	public static SensorRecording load(String path) throws IOException {
+		List<Long> times = new ArrayList<>();
+		List<short[]> frames = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				short[] frame = new short[fields.length - 1];
+				for (int i = 0; i < frame.length; i++) {
+					frame[i] = (short) Integer.parseInt(fields[i + 1]);
+				}
+				times.add(Long.parseLong(fields[0]));
+				frames.add(frame);
+			}
+		}
+		long[] timesMs = new long[times.size()];
+		for (int i = 0; i < timesMs.length; i++) {
+			timesMs[i] = times.get(i);
+		}
+		return new SensorRecording(timesMs, frames.toArray(new short[0][]));
+	}
+
+	public void save(String path) throws IOException {
+		try (Recorder recorder = new Recorder(path)) {
+			for (int i = 0; i < frames.length; i++) {
+				recorder.write(timesMs[i], frames[i]);
+			}
+		}
+	}
+
+	/**
+	 * Streams frames to a recording file as they arrive. Register it as a
+	 * frame listener of the engine while monitoring.
+	 */
+	public static class Recorder implements Consumer<short[]>, Closeable {
+		private final BufferedWriter writer;
+		private final StringBuilder line = new StringBuilder();
+		private long startNanos = -1;
+		private IOException failure;
+
+		public Recorder(String path) throws IOException {
+			writer = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8);
+			writer.write("# fgFocus sensor recording: time [ms] then pixel values");
+			writer.newLine();
+		}
+
+		@Override
+		public synchronized void accept(short[] frame) {
+			long now = System.nanoTime();
+			if (startNanos < 0) {
+				startNanos = now;
+			}
+			try {
+				write((now - startNanos) / 1_000_000L, frame);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		synchronized void write(long timeMs, short[] frame) throws IOException {
+			line.setLength(0);
+			line.append(timeMs);
+			for (short value : frame) {
+				line.append('\t').append(value & 0xFFFF);
+			}
+			writer.write(line.toString());
+			writer.newLine();
+		}
+
+		/**
+		 * The first write error, if any; frames after it are likely lost.
+		 */
+		public IOException getFailure() {
+			return failure;
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package com.myname.focuslock;
+
+/**
+ * Refines the calibration slope while the lock runs. Every correction the
+ * lock sends is a small calibration step: the stage moves by a known dz and
+ * the beam follows by dz / slope pixels. A recursive least-squares fit with
+ * exponential forgetting tracks
+ *
+ * mean shift = gain * dz + drift,   gain = -1 / slope
+ *
+ * where the drift term absorbs the sample drift of one cycle.
+ *
+ * Moves made only in response to fit noise carry that noise into the
+ * regression and bias the estimate, so a sample is used only when the
+ * commanded move is large against the uncertainty of the fitted mean.
+ * Updates are also skipped while there is no excitation, which keeps the
+ * covariance from winding up during long quiet stretches.
+ */
+public class SlopeEstimator {
+	// Initial covariance: a weak prior, so the first real moves dominate
+	private static final double PRIOR = 100;
+	// Residuals beyond this many standard deviations are discarded as outliers
+	private static final double OUTLIER_SIGMAS = 5;
+
+	private volatile double forgetting = 0.99;
+	private volatile double minExcitation = 3;
+	private volatile double minExcitationUm = 0.005;
+	private volatile double maxRelativeError = 0.1;
+	private volatile int minUpdates = 20;
+
+	private double calibratedSlope = Double.NaN;
+	private double gain;
+	private double drift;
+	private double p00, p01, p11;
+	private double residualVar = Double.NaN;
+	private long updates;
+	private long rejected;
+
+	/**
+	 * Starts over from a calibration slope in µm per pixel.
+	 */
+	public synchronized void reset(double slopeUmPerPx) {
+		calibratedSlope = slopeUmPerPx;
+		gain = -1 / slopeUmPerPx;
+		drift = 0;
+		p00 = PRIOR;
+		p01 = 0;
+		p11 = PRIOR;
+		residualVar = Double.NaN;
+		updates = 0;
+		rejected = 0;
+	}
+
+	/**
+	 * Feeds one cycle: the stage moved by {@code deltaZUm} between two frames
+	 * whose fitted means differ by {@code deltaMeanPx}; {@code differenceErrorPx}
+	 * is the standard error of that difference. Returns true when the sample was
+	 * used.
+	 */
+	public synchronized boolean update(double deltaZUm, double deltaMeanPx, double differenceErrorPx) {
+		if (Double.isNaN(calibratedSlope) || Double.isNaN(deltaZUm) || Double.isNaN(deltaMeanPx)) {
+			return false;
+		}
+		double excitationPx = Math.abs(gain * deltaZUm);
+		double noisePx = Double.isNaN(differenceErrorPx) ? 0 : differenceErrorPx;
+		if (Math.abs(deltaZUm) < minExcitationUm || excitationPx < minExcitation * noisePx) {
+			rejected++;
+			return false;
+		}
+
+		double residual = deltaMeanPx - (gain * deltaZUm + drift);
+		if (updates >= 5 && residual * residual > OUTLIER_SIGMAS * OUTLIER_SIGMAS * residualVar) {
+			rejected++;
+			return false;
+		}
+
+		// RLS step with regressor [dz, 1]
+		double lambda = forgetting;
+		double q0 = p00 * deltaZUm + p01;
+		double q1 = p01 * deltaZUm + p11;
+		double denominator = lambda + deltaZUm * q0 + q1;
+		double k0 = q0 / denominator;
+		double k1 = q1 / denominator;
+		gain += k0 * residual;
+		drift += k1 * residual;
+		p00 = (p00 - k0 * q0) / lambda;
+		p01 = (p01 - k0 * q1) / lambda;
+		p11 = (p11 - k1 * q1) / lambda;
+
+		residualVar = Double.isNaN(residualVar) ? residual * residual
+				: lambda * residualVar + (1 - lambda) * residual * residual;
+		updates++;
+		return true;
+	}
+
+	/**
+	 * True once enough samples were used and the slope is known to within
+	 * the maximum relative error.
+	 */
+	public synchronized boolean isConverged() {
+		return updates >= minUpdates && getSlopeStdDev() <= maxRelativeError * Math.abs(getSlope());
+	}
+
+	/**
+	 * Estimated slope in µm per pixel.
+	 */
+	public synchronized double getSlope() {
+		return -1 / gain;
+	}
+
+	public synchronized double getSlopeStdDev() {
+		if (Double.isNaN(residualVar)) {
+			return Double.NaN;
+		}
+		// Propagated through slope = -1 / gain
+		double gainStd = Math.sqrt(Math.max(p00, 0) * residualVar);
+		return gainStd / (gain * gain);
+	}
+
+	/**
+	 * Estimated drift of the beam per cycle in pixels, excluding the
+	 * corrections.
+	 */
+	public synchronized double getDrift() {
+		return drift;
+	}
+
+	/**
+	 * Slope of the calibration the estimator started from.
+	 */
+	public synchronized double getCalibratedSlope() {
+		return calibratedSlope;
+	}
+
+	public synchronized long getUpdates() {
+		return updates;
+	}
+
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Weight of past samples per update; 0.99 remembers about 100 samples.
+	 */
+	public void setForgetting(double forgetting) {
+		this.forgetting = forgetting;
+	}
+
+	/**
+	 * Smallest move, in standard errors of the fitted mean and in µm, that
+	 * counts as excitation.
+	 */
+	public void setMinExcitation(double standardErrors, double um) {
+		this.minExcitation = standardErrors;
+		this.minExcitationUm = um;
+	}
+
+	/**
+	 * Accuracy needed before {@link #isConverged()}: relative standard
+	 * deviation of the slope and number of samples used.
+	 */
+	public void setConvergence(double maxRelativeError, int minUpdates) {
+		this.maxRelativeError = maxRelativeError;
+		this.minUpdates = minUpdates;
+	}
+}
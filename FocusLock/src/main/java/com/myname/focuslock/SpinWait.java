@@ -0,0 +1,51 @@
+package com.myname.focuslock;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Busy-waits until a deadline for sub-millisecond wake-up precision. Uses
+ * {@code Thread.onSpinWait()} when the JVM has it (Java 9 and later) and
+ * falls back to {@link Thread#yield()} on the Java 8 runtime Micro-Manager
+ * ships with.
+ */
+final class SpinWait {
+	private static final MethodHandle ON_SPIN_WAIT = lookup();
+
+	private SpinWait() {
+	}
+
+	private static MethodHandle lookup() {
+		try {
+			return MethodHandles.lookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	static boolean hasOnSpinWait() {
+		return ON_SPIN_WAIT != null;
+	}
+
+	/**
+	 * Spins until {@link System#nanoTime()} reaches {@code deadlineNanos} or
+	 * the thread is interrupted.
+	 */
+	static void until(long deadlineNanos) {
+		while (System.nanoTime() - deadlineNanos < 0) {
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			if (ON_SPIN_WAIT != null) {
+				try {
+					ON_SPIN_WAIT.invokeExact();
+				} catch (Throwable t) {
+					Thread.yield();
+				}
+			} else {
+				Thread.yield();
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.myname.focuslock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Grants one focus lock at a time the right to move a stage. With several
+ * sensors on a scope, e.g. one per objective turret position, every sensor
+ * has its own {@link FocusLockEngine}, but they all drive the same Z stage;
+ * two loops correcting it at once would fight each other. An engine claims
+ * the arbiter of its stage before locking or calibrating and releases it
+ * when done.
+ */
+public final class StageArbiter {
+	private static final Map<String, StageArbiter> arbiters = new HashMap<>();
+
+	private final String stage;
+	private Object owner;
+
+	private StageArbiter(String stage) {
+		this.stage = stage;
+	}
+
+	/**
+	 * The arbiter shared by everything that moves {@code stage}.
+	 */
+	public static synchronized StageArbiter forStage(String stage) {
+		return arbiters.computeIfAbsent(stage == null ? "" : stage, StageArbiter::new);
+	}
+
+	public String getStage() {
+		return stage;
+	}
+
+	/**
+	 * Takes the stage for {@code owner}. Returns false when someone else
+	 * holds it; claiming it again as its owner succeeds.
+	 */
+	public synchronized boolean claim(Object owner) {
+		if (this.owner != null && this.owner != owner) {
+			return false;
+		}
+		this.owner = owner;
+		return true;
+	}
+
+	/**
+	 * Gives the stage back; does nothing unless {@code owner} holds it.
+	 */
+	public synchronized void release(Object owner) {
+		if (this.owner == owner) {
+			this.owner = null;
+		}
+	}
+
+	public synchronized Object getOwner() {
+		return owner;
+	}
+}
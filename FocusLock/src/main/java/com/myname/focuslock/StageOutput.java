@@ -0,0 +1,164 @@
+package com.myname.focuslock;
+
+/**
+ * Turns the corrections of the lock into stage commands. Every command costs
+ * a serial round trip and settle time, and a piezo controller heats up under
+ * a stream of sub-nanometre moves, so:
+ *
+ * - corrections smaller than the dead-band are not sent;
+ * - the rest are rounded to the step size of the drive, and dropped when
+ *   that rounds them to zero;
+ * - when a move reverses the direction of the last one, the lost motion of
+ *   the drive at that position (backlash, piezo hysteresis) is added, so the
+ *   stage actually travels the requested distance.
+ *
+ * Dropped corrections are not carried over: the error they were meant to
+ * correct is measured again on the next frame and the controller decides
+ * anew.
+ */
+public class StageOutput {
+	private volatile double stepUm = 0;
+	private volatile double deadBandUm = 0.001;
+	// Lost motion on reversal, interpolated over the stage position
+	private volatile double[] backlashPositionsUm = new double[0];
+	private volatile double[] backlashUm = new double[0];
+
+	private int lastDirection = 0;
+	private double lastMotionUm = 0;
+	private volatile long sent = 0;
+	private volatile long avoided = 0;
+
+	/**
+	 * Plans a move of {@code deltaUm} from {@code positionUm}. Returns the
+	 * relative command to send, or 0 when the move is not worth sending.
+	 */
+	public synchronized double plan(double positionUm, double deltaUm) {
+		lastMotionUm = 0;
+		if (Double.isNaN(deltaUm) || Math.abs(deltaUm) < deadBandUm) {
+			avoided++;
+			return 0;
+		}
+		double motion = quantise(deltaUm);
+		if (motion == 0) {
+			avoided++;
+			return 0;
+		}
+
+		int direction = motion > 0 ? 1 : -1;
+		double command = motion;
+		if (lastDirection != 0 && direction != lastDirection) {
+			command = quantise(motion + direction * backlashAt(positionUm));
+		}
+		lastDirection = direction;
+		lastMotionUm = motion;
+		sent++;
+		return command;
+	}
+
+	/**
+	 * Distance the stage travels for the last planned command, without the
+	 * backlash it takes up; 0 when the command was dropped.
+	 */
+	public synchronized double getLastMotionUm() {
+		return lastMotionUm;
+	}
+
+	/**
+	 * Forgets the direction of the last move, e.g. after the stage was moved
+	 * by someone else.
+	 */
+	public synchronized void reset() {
+		lastDirection = 0;
+	}
+
+	/**
+	 * Resolution of the drive in µm; 0 sends corrections unrounded.
+	 */
+	public void setStepSize(double stepUm) {
+		this.stepUm = stepUm;
+	}
+
+	public double getStepSize() {
+		return stepUm;
+	}
+
+	/**
+	 * Corrections below {@code deadBandUm} are not sent. Defaults to 1 nm.
+	 */
+	public void setDeadBand(double deadBandUm) {
+		this.deadBandUm = deadBandUm;
+	}
+
+	public double getDeadBand() {
+		return deadBandUm;
+	}
+
+	/**
+	 * Lost motion on reversal, the same over the whole travel.
+	 */
+	public void setBacklash(double um) {
+		setBacklash(new double[] {0}, new double[] {um});
+	}
+
+	/**
+	 * Lost motion on reversal, measured at the stage positions
+	 * {@code positionsUm} (ascending) and interpolated between them.
+	 */
+	public synchronized void setBacklash(double[] positionsUm, double[] um) {
+		if (positionsUm.length != um.length) {
+			throw new IllegalArgumentException("Positions and backlash must be the same length");
+		}
+		for (int i = 1; i < positionsUm.length; i++) {
+			if (positionsUm[i] <= positionsUm[i - 1]) {
+				throw new IllegalArgumentException("Positions must be ascending");
+			}
+		}
+		backlashPositionsUm = positionsUm.clone();
+		backlashUm = um.clone();
+	}
+
+	/**
+	 * Lost motion at {@code positionUm}, held constant beyond the measured
+	 * positions.
+	 */
+	public double backlashAt(double positionUm) {
+		double[] x = backlashPositionsUm;
+		double[] y = backlashUm;
+		int n = x.length;
+		if (n == 0) {
+			return 0;
+		}
+		if (positionUm <= x[0]) {
+			return y[0];
+		}
+		if (positionUm >= x[n - 1]) {
+			return y[n - 1];
+		}
+		int i = 1;
+		while (x[i] < positionUm) {
+			i++;
+		}
+		double w = (positionUm - x[i - 1]) / (x[i] - x[i - 1]);
+		return y[i - 1] + w * (y[i] - y[i - 1]);
+	}
+
+	/**
+	 * Stage commands sent.
+	 */
+	public long getSentCount() {
+		return sent;
+	}
+
+	/**
+	 * Corrections not sent because they fell inside the dead-band or below
+	 * one step.
+	 */
+	public long getAvoidedCount() {
+		return avoided;
+	}
+
+	private double quantise(double um) {
+		double step = stepUm;
+		return step > 0 ? Math.round(um / step) * step : um;
+	}
+}
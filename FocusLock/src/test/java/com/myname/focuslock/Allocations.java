@@ -0,0 +1,57 @@
+package com.myname.focuslock;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Assume;
+
+/**
+ * Heap bytes allocated by the calling thread, from the HotSpot thread MX
+ * bean. Tests that use it are skipped on JVMs without allocation counting.
+ */
+final class Allocations {
+	private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+	private Allocations() {
+	}
+
+	private static com.sun.management.ThreadMXBean threads() {
+		try {
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+				if (hotspot.isThreadAllocatedMemorySupported()) {
+					hotspot.setThreadAllocatedMemoryEnabled(true);
+					return hotspot;
+				}
+			}
+		} catch (LinkageError | UnsupportedOperationException e) {
+			// Not a HotSpot JVM
+		}
+		return null;
+	}
+
+	static void assumeSupported() {
+		Assume.assumeTrue("Thread allocation counting not supported", THREADS != null);
+	}
+
+	static long allocatedBytes() {
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Mean bytes allocated per run of {@code body}, after enough runs for the
+	 * JIT to compile it. The counter itself costs nothing once warmed up.
+	 */
+	static double perCall(int runs, Runnable body) {
+		assumeSupported();
+		for (int i = 0; i < 20000; i++) {
+			body.run();
+		}
+		allocatedBytes();
+		long before = allocatedBytes();
+		for (int i = 0; i < runs; i++) {
+			body.run();
+		}
+		return (double) (allocatedBytes() - before) / runs;
+	}
+}
@@ -0,0 +1,139 @@
+package com.myname.focuslock;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Golden 128-pixel frames with the beam parameters they were made from, kept
+ * in src/test/resources/golden. Each set is a {@link SensorRecording} file
+ * ({@code <name>.txt}) and a truth file ({@code <name>.truth}) with one line
+ * per frame: mean, sigma, amplitude and background.
+ *
+ * The checked-in sets are simulated by {@link #main(String[])}, which
+ * rewrites them identically from fixed seeds. A recording of a real beam
+ * can be added next to them with a truth file from a stage sweep.
+ */
+final class GoldenFrames {
+	final String name;
+	final short[][] frames;
+	// [frame][mean, sigma, amplitude, background]
+	final double[][] truth;
+
+	private GoldenFrames(String name, short[][] frames, double[][] truth) {
+		this.name = name;
+		this.frames = frames;
+		this.truth = truth;
+	}
+
+	static GoldenFrames load(String name) throws IOException {
+		SensorRecording recording = SensorRecording.load(resource(name + ".txt").toString());
+		List<double[]> truth = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(resource(name + ".truth"), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				double[] values = new double[4];
+				for (int i = 0; i < 4; i++) {
+					values[i] = Double.parseDouble(fields[i]);
+				}
+				truth.add(values);
+			}
+		}
+		if (truth.size() != recording.size()) {
+			throw new IOException(name + ": " + recording.size() + " frames but " + truth.size() + " truth lines");
+		}
+		short[][] frames = new short[recording.size()][];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = recording.getFrame(i);
+		}
+		return new GoldenFrames(name, frames, truth.toArray(new double[0][]));
+	}
+
+	int size() {
+		return frames.length;
+	}
+
+	double mean(int frame) {
+		return truth[frame][0];
+	}
+
+	private static Path resource(String file) throws IOException {
+		URL url = GoldenFrames.class.getResource("/golden/" + file);
+		if (url == null) {
+			throw new IOException("Golden data set missing: " + file);
+		}
+		try {
+			return Paths.get(url.toURI());
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Writes the simulated sets to the directory given as argument, by
+	 * default src/test/resources/golden.
+	 */
+	public static void main(String[] args) throws IOException {
+		Path dir = Paths.get(args.length > 0 ? args[0] : "src/test/resources/golden");
+		Files.createDirectories(dir);
+		// Beam well inside the array
+		simulate(dir, "centred", 200, 40, 88, 6.5, 3000, 0, 1);
+		// Low signal, e.g. a weakly reflecting sample
+		simulate(dir, "dim", 200, 40, 88, 6.5, 200, 0, 2);
+		// Beam partly off the array
+		simulate(dir, "edge", 200, 6, 14, 6.5, 3000, 0, 3);
+		// Wide beam on stray light, for the fit with background
+		simulate(dir, "background", 200, 40, 88, 12, 2000, 400, 4);
+	}
+
+	/**
+	 * Frames with the mean spread evenly over [{@code from}, {@code to}],
+	 * shot noise of one count per electron plus 5 counts of read noise,
+	 * rounded and clipped to 12 bits like the sensor. Every second frame of
+	 * the edge set is mirrored to the high edge.
+	 */
+	private static void simulate(Path dir, String name, int count, double from, double to, double sigma,
+			double amplitude, double background, long seed) throws IOException {
+		final int pixels = 128;
+		Random random = new Random(seed);
+		long[] times = new long[count];
+		short[][] frames = new short[count][pixels];
+		double[][] truth = new double[count][];
+		for (int f = 0; f < count; f++) {
+			double mean = from + (to - from) * random.nextDouble();
+			if (name.equals("edge") && f % 2 == 1) {
+				mean = pixels - 1 - mean;
+			}
+			double s = sigma * (0.9 + 0.2 * random.nextDouble());
+			times[f] = 100L * f;
+			for (int i = 0; i < pixels; i++) {
+				double dx = i - mean;
+				double signal = background + amplitude * Math.exp(-dx * dx / (2 * s * s));
+				double value = signal + Math.sqrt(signal + 25) * random.nextGaussian();
+				frames[f][i] = (short) Math.max(0, Math.min(4095, Math.round(value)));
+			}
+			truth[f] = new double[] {mean, s, amplitude, background};
+		}
+		new SensorRecording(times, frames).save(dir.resolve(name + ".txt").toString());
+		try (BufferedWriter writer = Files.newBufferedWriter(dir.resolve(name + ".truth"), StandardCharsets.UTF_8)) {
+			writer.write("# mean\tsigma\tamplitude\tbackground, one line per frame of " + name + ".txt\n");
+			for (double[] t : truth) {
+				writer.write(String.format(java.util.Locale.ROOT, "%.6f\t%.6f\t%.1f\t%.1f%n", t[0], t[1], t[2], t[3]));
+			}
+		}
+	}
+}
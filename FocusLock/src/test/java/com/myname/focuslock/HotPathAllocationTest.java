@@ -0,0 +1,148 @@
+package com.myname.focuslock;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The per-frame path of the lock must not allocate: garbage on the polling
+ * and loop threads eventually stops them for a collection in the middle of
+ * a cycle. Each step runs on a golden frame after warm-up, so the JIT has
+ * compiled it as it runs in the plugin.
+ *
+ * Outside of these tests remain the image array the core hands over per
+ * frame and the futures of the stage I/O thread.
+ */
+public class HotPathAllocationTest {
+	private short[] frame;
+	private byte[] raw;
+
+	@Before
+	public void setUp() throws IOException {
+		frame = GoldenFrames.load("centred").frames[0];
+		raw = new byte[2 * frame.length];
+		for (int i = 0; i < frame.length; i++) {
+			raw[2 * i] = (byte) frame[i];
+			raw[2 * i + 1] = (byte) (frame[i] >> 8);
+		}
+	}
+
+	private static void assertNoAllocation(String step, Runnable body) {
+		double bytes = Allocations.perCall(100000, body);
+		assertTrue(step + " allocated " + bytes + " bytes per call", bytes < 1);
+	}
+
+	@Test
+	public void decode() {
+		SensorCorrection correction = new SensorCorrection();
+		short[] out = new short[frame.length];
+		assertNoAllocation("decode", () -> correction.decode(raw, out));
+
+		double[] dark = new double[frame.length];
+		double[] flat = new double[frame.length];
+		Arrays.fill(dark, 3);
+		Arrays.fill(flat, 1000);
+		flat[10] = 900;
+		correction.setDark(dark);
+		correction.setFlat(flat);
+		assertNoAllocation("corrected decode", () -> correction.decode(raw, out));
+		assertNoAllocation("correction in place", () -> correction.apply(out, out));
+	}
+
+	@Test
+	public void frameFilters() {
+		for (FrameFilter.Type type : FrameFilter.Type.values()) {
+			FrameFilter filter = type.create(5);
+			if (filter == null) {
+				continue;
+			}
+			double[] values = new double[frame.length];
+			assertNoAllocation(type + " filter", () -> {
+				for (int i = 0; i < values.length; i++) {
+					values[i] = frame[i];
+				}
+				filter.apply(values);
+			});
+		}
+	}
+
+	@Test
+	public void controlStep() {
+		PidController pid = new PidController(0.5, 0.05, 0);
+		StageOutput output = new StageOutput();
+		output.setBacklash(0.02);
+		LoopRate rate = new LoopRate(100, 2000);
+		double[] error = {0};
+		long[] time = {0};
+		assertNoAllocation("control step", () -> {
+			// Alternate the sign so the backlash path runs too
+			error[0] = (time[0] & 1) == 0 ? 0.05 : -0.04;
+			double delta = pid.update(error[0], 0.1);
+			double command = output.plan(10, delta);
+			rate.update(error[0], command, time[0]++ * 100_000_000L);
+		});
+	}
+
+	/**
+	 * A whole cycle of the sequential loop from the decoded frame on: frame
+	 * filter, fit with the lock's reused fitter, beam check, control step
+	 * and statistics.
+	 */
+	@Test
+	public void lockStep() {
+		SensorCorrection correction = new SensorCorrection();
+		short[] pixels = new short[frame.length];
+		double[] values = new double[frame.length];
+		FrameFilter filter = FrameFilter.Type.EMA.create(5);
+		GaussianFitter fitter = new GaussianFitter(frame.length);
+		BeamDetector detector = new BeamDetector();
+		fitter.setData(frame);
+		double[] reference = fitter.fit();
+		detector.setReference(reference[0], reference[2]);
+		double refMean = reference[1];
+		PidController pid = new PidController(0.5, 0.05, 0);
+		StageOutput output = new StageOutput();
+		output.setBacklash(0.02);
+		LoopRate rate = new LoopRate(100, 2000);
+		LockStatistics stats = new LockStatistics();
+		long[] time = {0};
+		assertNoAllocation("lock step", () -> {
+			correction.decode(raw, pixels);
+			for (int i = 0; i < values.length; i++) {
+				values[i] = pixels[i] & 0xFFFF;
+			}
+			filter.apply(values);
+			fitter.setData(values);
+			double[] fit = fitter.fit();
+			detector.check(values, fit);
+			double errorPx = fit[1] - refMean;
+			double errorUm = errorPx * -0.2;
+			long now = time[0]++ * 100_000_000L;
+			rate.update(errorUm, 0, now);
+			double command = FocusTask.command(pid, output, errorPx, 0.1, -0.2, 10);
+			stats.add(errorUm, command, now);
+		});
+	}
+
+	@Test
+	public void lookupTable() {
+		int points = 21;
+		double[] positions = new double[points];
+		double[] means = new double[points];
+		for (int i = 0; i < points; i++) {
+			positions[i] = -1 + 0.1 * i;
+			means[i] = 64 + 20 * Math.tanh(positions[i]);
+		}
+		FocusLookupTable table = FocusLookupTable.fromSweep(positions, means);
+		double[] px = {0};
+		double[] sink = {0};
+		assertNoAllocation("lookup", () -> {
+			px[0] = px[0] > 127 ? 0 : px[0] + 0.37;
+			sink[0] += table.toUm(px[0]);
+		});
+	}
+}
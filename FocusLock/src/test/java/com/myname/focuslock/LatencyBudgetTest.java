@@ -0,0 +1,126 @@
+package com.myname.focuslock;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Time the lock spends per frame between receiving the bytes and sending the
+ * stage command: decode, fit and control step. The budgets are about ten
+ * times what a current desktop needs, so they only catch a change that
+ * makes the path much slower, e.g. back to a per-pixel exp() or to the
+ * generic optimizer. On slow build machines scale them with
+ * {@code -Dfocuslock.budgetScale=4}.
+ *
+ * The median of many frames is compared, so a stray collection or context
+ * switch does not fail the test.
+ */
+public class LatencyBudgetTest {
+	private static final double SCALE = Double.parseDouble(System.getProperty("focuslock.budgetScale", "1"));
+	private static final int ROUNDS = 10;
+
+	/**
+	 * Median time in µs of {@code step} over every frame of the set, after a
+	 * warm-up round for the JIT.
+	 */
+	private static double medianMicros(GoldenFrames golden, FrameStep step) {
+		int n = golden.size();
+		for (int i = 0; i < 50 * n; i++) {
+			step.run(i % n);
+		}
+		long[] times = new long[ROUNDS * n];
+		for (int i = 0; i < times.length; i++) {
+			long start = System.nanoTime();
+			step.run(i % n);
+			times[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(times);
+		return times[times.length / 2] / 1000.0;
+	}
+
+	private interface FrameStep {
+		void run(int frame);
+	}
+
+	private static void assertWithin(String step, double micros, double budgetMicros) {
+		double budget = budgetMicros * SCALE;
+		assertTrue(step + " took " + micros + " µs per frame, budget " + budget + " µs", micros < budget);
+	}
+
+	private static byte[][] encode(GoldenFrames golden) {
+		byte[][] raw = new byte[golden.size()][];
+		for (int f = 0; f < raw.length; f++) {
+			short[] frame = golden.frames[f];
+			raw[f] = new byte[2 * frame.length];
+			for (int i = 0; i < frame.length; i++) {
+				raw[f][2 * i] = (byte) frame[i];
+				raw[f][2 * i + 1] = (byte) (frame[i] >> 8);
+			}
+		}
+		return raw;
+	}
+
+	@Test
+	public void decode() throws IOException {
+		GoldenFrames golden = GoldenFrames.load("centred");
+		byte[][] raw = encode(golden);
+		SensorCorrection correction = new SensorCorrection();
+		double[] dark = new double[128];
+		Arrays.fill(dark, 3);
+		correction.setDark(dark);
+		short[] out = new short[128];
+		assertWithin("decode", medianMicros(golden, f -> correction.decode(raw[f], out)), 10);
+	}
+
+	@Test
+	public void fit() throws IOException {
+		GoldenFrames golden = GoldenFrames.load("centred");
+		GaussianFitter fitter = new GaussianFitter(golden.frames[0].length);
+		assertWithin("fit", medianMicros(golden, f -> {
+			fitter.setData(golden.frames[f]);
+			fitter.fit();
+		}), 75);
+	}
+
+	@Test
+	public void fitWithBackground() throws IOException {
+		GoldenFrames golden = GoldenFrames.load("background");
+		GaussianFitter fitter = new GaussianFitter(golden.frames[0].length);
+		assertWithin("fit with background", medianMicros(golden, f -> {
+			fitter.setData(golden.frames[f]);
+			fitter.fitWithBackground();
+		}), 100);
+	}
+
+	/**
+	 * Decode, fit and control step of one lock cycle together, the control
+	 * step being the sequential loop's own {@link FocusTask#command}.
+	 */
+	@Test
+	public void lockCycle() throws IOException {
+		GoldenFrames golden = GoldenFrames.load("centred");
+		byte[][] raw = encode(golden);
+		SensorCorrection correction = new SensorCorrection();
+		short[] pixels = new short[128];
+		GaussianFitter fitter = new GaussianFitter(pixels.length);
+		PidController pid = new PidController(0.5, 0.05, 0);
+		StageOutput output = new StageOutput();
+		LoopRate rate = new LoopRate(100, 2000);
+		LockStatistics stats = new LockStatistics();
+		long[] time = {0};
+		double slope = -0.2;
+		assertWithin("lock cycle", medianMicros(golden, f -> {
+			correction.decode(raw[f], pixels);
+			fitter.setData(pixels);
+			double errorPx = fitter.fit()[1] - 64;
+			double errorUm = errorPx * slope;
+			long now = time[0]++ * 100_000_000L;
+			rate.update(errorUm, 0, now);
+			double command = FocusTask.command(pid, output, errorPx, 0.1, slope, 10);
+			stats.add(errorUm, command, now);
+		}), 100);
+	}
+}
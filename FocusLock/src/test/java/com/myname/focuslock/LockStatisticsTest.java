@@ -0,0 +1,132 @@
+package com.myname.focuslock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LockStatisticsTest {
+	private static final long PERIOD_NANOS = 100_000_000L;
+
+	/**
+	 * Window statistics against a direct computation over the same samples,
+	 * well past the first rebuild of the running sums.
+	 */
+	@Test
+	public void matchesDirectComputation() {
+		int window = 50;
+		LockStatistics stats = new LockStatistics(window, 6);
+		Random random = new Random(7);
+		int count = 1234;
+		double[] errors = new double[count];
+		double[] open = new double[count];
+		double applied = 0;
+		for (int i = 0; i < count; i++) {
+			double moved = 0.01 * random.nextGaussian();
+			errors[i] = 0.02 * random.nextGaussian() + 0.001 * i;
+			applied += moved;
+			open[i] = errors[i] + applied;
+			stats.add(errors[i], moved, i * PERIOD_NANOS);
+		}
+
+		double sum2 = 0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = count - window; i < count; i++) {
+			sum2 += errors[i] * errors[i];
+			min = Math.min(min, errors[i]);
+			max = Math.max(max, errors[i]);
+		}
+		assertEquals(Math.sqrt(sum2 / window), stats.getRmsUm(), 1e-12);
+		assertEquals(max - min, stats.getPeakToPeakUm(), 1e-12);
+		assertEquals(slope(errors, count - window, count), stats.getResidualDriftUmPerS(), 1e-9);
+		assertEquals(slope(open, count - window, count), stats.getDriftUmPerS(), 1e-9);
+
+		double[] adev = stats.getAllanDeviationUm();
+		for (int k = 0; k < adev.length; k++) {
+			assertEquals("octave " + k, allan(open, 1 << k), adev[k], 1e-9);
+		}
+	}
+
+	@Test
+	public void driftOfARamp() {
+		LockStatistics stats = new LockStatistics();
+		// The sample drifts by 10 nm/s; the lock takes out each step as it comes
+		double rate = 0.01;
+		double previous = 0;
+		for (int i = 0; i < 500; i++) {
+			double position = rate * i * 0.1;
+			stats.add(0, position - previous, i * PERIOD_NANOS);
+			previous = position;
+		}
+		assertEquals(rate, stats.getDriftUmPerS(), 1e-9);
+		assertEquals(0, stats.getResidualDriftUmPerS(), 1e-12);
+		assertEquals(0.1, stats.getSamplePeriodS(), 1e-12);
+	}
+
+	@Test
+	public void resetStartsOver() {
+		LockStatistics stats = new LockStatistics();
+		for (int i = 0; i < 300; i++) {
+			stats.add(1, 0, i * PERIOD_NANOS);
+		}
+		stats.reset();
+		assertEquals(0, stats.getCount());
+		assertTrue(Double.isNaN(stats.getRmsUm()));
+		assertTrue(Double.isNaN(stats.getBestTauS()));
+	}
+
+	@Test
+	public void addDoesNotAllocate() {
+		LockStatistics stats = new LockStatistics();
+		Random random = new Random(3);
+		double[] noise = new double[1024];
+		for (int i = 0; i < noise.length; i++) {
+			noise[i] = 0.02 * random.nextGaussian();
+		}
+		long[] time = {0};
+		double bytes = Allocations.perCall(100000, () -> {
+			long t = time[0]++;
+			stats.add(noise[(int) (t & 1023)], 0.001, t * PERIOD_NANOS);
+		});
+		assertTrue("allocated " + bytes + " bytes per sample", bytes < 1);
+	}
+
+	private static double slope(double[] y, int from, int to) {
+		double sumT = 0;
+		double sumY = 0;
+		double sumTT = 0;
+		double sumTY = 0;
+		int n = to - from;
+		for (int i = from; i < to; i++) {
+			double t = i * PERIOD_NANOS / 1e9;
+			sumT += t;
+			sumY += y[i];
+			sumTT += t * t;
+			sumTY += t * y[i];
+		}
+		return (sumTY - sumT * sumY / n) / (sumTT - sumT * sumT / n);
+	}
+
+	/**
+	 * Overlapping Allan deviation over averages of {@code m} samples.
+	 */
+	private static double allan(double[] y, int m) {
+		double sum = 0;
+		int pairs = 0;
+		for (int start = 0; start + 2 * m <= y.length; start++) {
+			double first = 0;
+			double second = 0;
+			for (int i = 0; i < m; i++) {
+				first += y[start + i];
+				second += y[start + m + i];
+			}
+			double d = (second - first) / m;
+			sum += d * d;
+			pairs++;
+		}
+		return Math.sqrt(sum / (2.0 * pairs));
+	}
+}
@@ -0,0 +1,85 @@
+package com.myname.focuslock;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class PackedPixelsTest {
+
+	@Test
+	public void lengths() {
+		assertEquals(192, PackedPixels.packedLength(128));
+		assertEquals(128, PackedPixels.pixels(192));
+		assertEquals(5, PackedPixels.packedLength(3));
+		assertEquals(3, PackedPixels.pixels(5));
+	}
+
+	/**
+	 * The layout the firmware sends, see DeviceAdapter/gFocus/protocol.h.
+	 */
+	@Test
+	public void byteLayout() {
+		byte[] packed = new byte[3];
+		PackedPixels.pack12(new short[] {0xABC, 0x123}, packed);
+		assertArrayEquals(new byte[] {(byte) 0xBC, 0x3A, 0x12}, packed);
+	}
+
+	@Test
+	public void roundTripOfGoldenFrames() throws IOException {
+		GoldenFrames golden = GoldenFrames.load("centred");
+		byte[] packed = new byte[PackedPixels.packedLength(128)];
+		short[] unpacked = new short[128];
+		for (short[] frame : golden.frames) {
+			PackedPixels.pack12(frame, packed);
+			PackedPixels.unpack12(packed, unpacked);
+			assertArrayEquals(frame, unpacked);
+		}
+	}
+
+	/**
+	 * Every length exercises the four-pixel loop, the pair loop and the odd
+	 * last pixel in turn.
+	 */
+	@Test
+	public void roundTripOfAnyLength() {
+		for (int n = 1; n <= 13; n++) {
+			short[] frame = new short[n];
+			for (int i = 0; i < n; i++) {
+				frame[i] = (short) ((i * 1237 + 4095) & 0x0FFF);
+			}
+			byte[] packed = new byte[PackedPixels.packedLength(n)];
+			short[] unpacked = new short[n];
+			PackedPixels.pack12(frame, packed);
+			PackedPixels.unpack12(packed, unpacked);
+			assertArrayEquals("length " + n, frame, unpacked);
+		}
+	}
+
+	@Test
+	public void extremes() {
+		short[] frame = new short[128];
+		Arrays.fill(frame, (short) 4095);
+		frame[0] = 0;
+		frame[127] = 0;
+		byte[] packed = new byte[192];
+		short[] unpacked = new short[128];
+		PackedPixels.pack12(frame, packed);
+		PackedPixels.unpack12(packed, unpacked);
+		assertArrayEquals(frame, unpacked);
+	}
+
+	@Test
+	public void unpackDoesNotAllocate() throws IOException {
+		short[] frame = GoldenFrames.load("centred").frames[0];
+		byte[] packed = new byte[192];
+		short[] unpacked = new short[128];
+		PackedPixels.pack12(frame, packed);
+		double bytes = Allocations.perCall(10000, () -> PackedPixels.unpack12(packed, unpacked));
+		assertTrue("allocated " + bytes + " bytes per frame", bytes < 1);
+	}
+}